@@ -0,0 +1,118 @@
+package com.kylin.soa.esb;
+
+import java.lang.management.ManagementFactory;
+
+import org.jboss.soa.esb.actions.AbstractActionPipelineProcessor;
+import org.jboss.soa.esb.actions.ActionPipelineProcessor;
+import org.jboss.soa.esb.actions.ActionProcessingException;
+import org.jboss.soa.esb.helpers.ConfigTree;
+import org.jboss.soa.esb.listeners.message.CompiledActionPipeline;
+import org.jboss.soa.esb.message.Message;
+import org.jboss.soa.esb.message.format.MessageFactory;
+
+/**
+ * Compares a pipeline whose actions are invoked through the ActionPipelineProcessor
+ * interface with the same pipeline invoking a named process method of each action.
+ * <p/>
+ * The pipeline holds several action classes so that the invocation sites are
+ * polymorphic, as they are in a deployed service.  Reports the time and, where the
+ * JVM supports it, the bytes allocated per message.
+ */
+public class ActionInvocationBenchmark {
+
+	private static final int MESSAGES = 5000000 ;
+
+	private static final String[] ACTION_CLASSES = {
+		FirstAction.class.getName(), SecondAction.class.getName(),
+		ThirdAction.class.getName(), FourthAction.class.getName()
+	} ;
+
+	public static void main(String[] args) throws Exception {
+
+		final int messages = (args.length > 0 ? Integer.parseInt(args[0]) : MESSAGES) ;
+		final Message message = MessageFactory.getInstance().getMessage() ;
+
+		final CompiledActionPipeline direct = compile(ActionPipelineProcessor.PROCESS_METHOD) ;
+		final CompiledActionPipeline named = compile("handle") ;
+
+		// warm up
+		run(direct, message, messages / 10) ;
+		run(named, message, messages / 10) ;
+
+		report("interface", direct, message, messages) ;
+		report("named method", named, message, messages) ;
+
+		direct.destroy() ;
+		named.destroy() ;
+	}
+
+	private static CompiledActionPipeline compile(final String processMethod) throws Exception {
+		final ConfigTree config = new ConfigTree("service") ;
+		for (String actionClass: ACTION_CLASSES) {
+			final ConfigTree action = new ConfigTree(CompiledActionPipeline.ACTION_ELEMENT, config) ;
+			action.setAttribute(CompiledActionPipeline.ACTION_CLASS_ATTRIBUTE, actionClass) ;
+			action.setAttribute(CompiledActionPipeline.PROCESS_METHOD_ATTRIBUTE, processMethod) ;
+		}
+		final CompiledActionPipeline pipeline = new CompiledActionPipeline(config) ;
+		pipeline.initialise() ;
+		return pipeline ;
+	}
+
+	private static void run(final CompiledActionPipeline pipeline, final Message message, final int messages)
+		throws ActionProcessingException {
+		for (int i = 0 ; i < messages ; i++) {
+			pipeline.process(message) ;
+		}
+	}
+
+	private static void report(final String name, final CompiledActionPipeline pipeline, final Message message,
+		final int messages) throws ActionProcessingException {
+		final long allocatedBefore = getAllocatedBytes() ;
+		final long start = System.nanoTime() ;
+		run(pipeline, message, messages) ;
+		final long duration = System.nanoTime() - start ;
+		final long allocated = getAllocatedBytes() - allocatedBefore ;
+
+		System.out.println(name + ": " + ((double)duration / messages) + "ns/message" +
+			(allocatedBefore < 0 ? "" : ", " + ((double)allocated / messages) + " bytes/message")) ;
+	}
+
+	private static long getAllocatedBytes() {
+		final Object threadBean = ManagementFactory.getThreadMXBean() ;
+		if (threadBean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean)threadBean).getThreadAllocatedBytes(Thread.currentThread().getId()) ;
+		}
+		return -1 ;
+	}
+
+	public static class CountingAction extends AbstractActionPipelineProcessor {
+
+		private long count ;
+
+		public Message process(final Message message) throws ActionProcessingException {
+			count++ ;
+			return message ;
+		}
+
+		public Message handle(final Message message) throws ActionProcessingException {
+			count++ ;
+			return message ;
+		}
+
+		public long getCount() {
+			return count ;
+		}
+	}
+
+	public static class FirstAction extends CountingAction {
+	}
+
+	public static class SecondAction extends CountingAction {
+	}
+
+	public static class ThirdAction extends CountingAction {
+	}
+
+	public static class FourthAction extends CountingAction {
+	}
+}
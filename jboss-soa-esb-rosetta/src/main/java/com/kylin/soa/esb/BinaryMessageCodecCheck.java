@@ -0,0 +1,125 @@
+package com.kylin.soa.esb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+
+import org.jboss.soa.esb.addressing.Call;
+import org.jboss.soa.esb.message.BinaryMessageCodec;
+import org.jboss.soa.esb.message.Message;
+import org.jboss.soa.esb.message.format.MessageFactory;
+
+/**
+ * Exercises the {@link BinaryMessageCodec}: round trips a message holding every
+ * kind of value, decodes truncated and randomly corrupted encodings, which must
+ * either decode or raise an IOException, and compares the encoded size with Java
+ * serialization.
+ */
+public class BinaryMessageCodecCheck {
+
+	private static final int MUTATIONS = 100000 ;
+
+	public static void main(String[] args) throws Exception {
+
+		final int mutations = (args.length > 0 ? Integer.parseInt(args[0]) : MUTATIONS) ;
+		final Message message = createMessage() ;
+		final byte[] encoded = BinaryMessageCodec.encode(message) ;
+
+		roundTrip(message, encoded) ;
+		final int truncationFailures = truncate(encoded) ;
+		final int mutationFailures = mutate(encoded, mutations) ;
+		compareSize(message, encoded) ;
+
+		if ((truncationFailures > 0) || (mutationFailures > 0)) {
+			throw new IllegalStateException((truncationFailures + mutationFailures) + " inputs raised an unexpected exception") ;
+		}
+	}
+
+	private static Message createMessage() throws Exception {
+		final Message message = MessageFactory.getInstance().getMessage() ;
+		final Call call = new Call() ;
+		call.setMessageID(new URI("urn:message:1234")) ;
+		call.setAction(new URI("urn:action:order")) ;
+		message.getHeader().setCall(call) ;
+		message.getContext().setContext("correlation", "order-42") ;
+		message.getBody().add("<order id=\"42\"><item sku=\"A-1\" quantity=\"3\"/></order>") ;
+		message.getBody().add("raw", new byte[] {1, 2, 3, 4, 5}) ;
+		message.getBody().add("count", Integer.valueOf(3)) ;
+		message.getBody().add("total", Double.valueOf(29.97)) ;
+		message.getFault().setReason("none") ;
+		message.getAttachment().put("receipt", "attached") ;
+		message.getProperties().setProperty("priority", Long.valueOf(7)) ;
+		message.getProperties().setProperty("express", Boolean.TRUE) ;
+		message.getProperties().setProperty("received", new Date(0)) ;
+		return message ;
+	}
+
+	private static void roundTrip(final Message message, final byte[] encoded) throws IOException {
+		final Message decoded = BinaryMessageCodec.decode(encoded) ;
+		if (!Arrays.equals(encoded, BinaryMessageCodec.encode(decoded))) {
+			throw new IllegalStateException("Re-encoding the decoded message differs from the original encoding") ;
+		}
+		if (!message.getHeader().getCall().getMessageID().equals(decoded.getHeader().getCall().getMessageID()) ||
+			!message.getBody().get().equals(decoded.getBody().get()) ||
+			!Arrays.equals((byte[])message.getBody().get("raw"), (byte[])decoded.getBody().get("raw")) ||
+			!message.getProperties().getProperty("received").equals(decoded.getProperties().getProperty("received"))) {
+			throw new IllegalStateException("Decoded message differs from the original") ;
+		}
+		System.out.println("round trip: " + encoded.length + " bytes, ok") ;
+	}
+
+	private static int truncate(final byte[] encoded) {
+		int failures = 0 ;
+		for (int length = 0 ; length < encoded.length ; length++) {
+			try {
+				BinaryMessageCodec.decode(encoded, 0, length) ;
+				System.out.println("truncation to " + length + " bytes decoded") ;
+				failures++ ;
+			} catch (final IOException ioe) {
+				// expected
+			} catch (final Throwable th) {
+				System.out.println("truncation to " + length + " bytes raised " + th) ;
+				failures++ ;
+			}
+		}
+		System.out.println("truncation: " + encoded.length + " lengths, " + failures + " failures") ;
+		return failures ;
+	}
+
+	private static int mutate(final byte[] encoded, final int mutations) {
+		final Random random = new Random(42) ;
+		int decoded = 0 ;
+		int failures = 0 ;
+		for (int count = 0 ; count < mutations ; count++) {
+			final byte[] corrupt = encoded.clone() ;
+			final int changes = 1 + random.nextInt(4) ;
+			for (int change = 0 ; change < changes ; change++) {
+				corrupt[random.nextInt(corrupt.length)] = (byte)random.nextInt(256) ;
+			}
+			try {
+				BinaryMessageCodec.decode(corrupt) ;
+				decoded++ ;
+			} catch (final IOException ioe) {
+				// expected
+			} catch (final Throwable th) {
+				if (failures++ < 10) {
+					System.out.println("mutation " + count + " raised " + th) ;
+				}
+			}
+		}
+		System.out.println("mutation: " + mutations + " inputs, " + decoded + " decoded, " + failures + " failures") ;
+		return failures ;
+	}
+
+	private static void compareSize(final Message message, final byte[] encoded) throws IOException {
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream() ;
+		final ObjectOutputStream oos = new ObjectOutputStream(baos) ;
+		oos.writeObject(message) ;
+		oos.close() ;
+		System.out.println("size: codec " + encoded.length + " bytes, serialization " + baos.size() + " bytes") ;
+	}
+}
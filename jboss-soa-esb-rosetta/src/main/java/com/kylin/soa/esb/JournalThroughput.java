@@ -0,0 +1,103 @@
+package com.kylin.soa.esb;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.soa.esb.actions.AbstractActionPipelineProcessor;
+import org.jboss.soa.esb.actions.ActionProcessingException;
+import org.jboss.soa.esb.helpers.ConfigTree;
+import org.jboss.soa.esb.listeners.message.CompiledActionPipeline;
+import org.jboss.soa.esb.listeners.message.JournaledActionPipeline;
+import org.jboss.soa.esb.listeners.message.MessageJournal;
+import org.jboss.soa.esb.message.Message;
+import org.jboss.soa.esb.message.format.MessageFactory;
+
+/**
+ * Measures the durable throughput of a {@link JournaledActionPipeline} as the
+ * number of threads delivering messages grows, showing the fsyncs shared through
+ * group commit.
+ * <p/>
+ * The journal is written to a temporary directory, or the directory given as the
+ * second argument, which should be on the disk being measured.
+ */
+public class JournalThroughput {
+
+	private static final int MESSAGES = 20000 ;
+
+	private static final int[] THREADS = {1, 2, 4, 8, 16} ;
+
+	private static final int PAYLOAD_SIZE = 512 ;
+
+	public static void main(String[] args) throws Exception {
+
+		final int messages = (args.length > 0 ? Integer.parseInt(args[0]) : MESSAGES) ;
+		final File parent = (args.length > 1 ? new File(args[1]) : new File(System.getProperty("java.io.tmpdir"))) ;
+
+		// warm up
+		run(parent, 1, messages / 10) ;
+
+		for (int threads: THREADS) {
+			final long start = System.nanoTime() ;
+			final long processed = run(parent, threads, messages) ;
+			final long duration = System.nanoTime() - start ;
+			System.out.println(threads + " threads: " + processed + " messages, " +
+				(processed * 1000000000L / duration) + " messages/s") ;
+		}
+	}
+
+	private static long run(final File parent, final int threads, final int messages) throws Exception {
+		final File directory = new File(parent, "journal-throughput-" + System.nanoTime()) ;
+		final ConfigTree config = new ConfigTree("service") ;
+		final ConfigTree action = new ConfigTree(CompiledActionPipeline.ACTION_ELEMENT, config) ;
+		action.setAttribute(CompiledActionPipeline.ACTION_CLASS_ATTRIBUTE, NoopAction.class.getName()) ;
+		final JournaledActionPipeline pipeline = new JournaledActionPipeline(new CompiledActionPipeline(config),
+			new MessageJournal(directory, MessageJournal.DEFAULT_SEGMENT_SIZE), false) ;
+		pipeline.initialise() ;
+
+		final AtomicLong processed = new AtomicLong() ;
+		final CountDownLatch done = new CountDownLatch(threads) ;
+		final int perThread = messages / threads ;
+		for (int i = 0 ; i < threads ; i++) {
+			new Thread() {
+				public void run() {
+					try {
+						final MessageFactory factory = MessageFactory.getInstance() ;
+						for (int count = 0 ; count < perThread ; count++) {
+							final Message message = factory.getMessage() ;
+							message.getBody().add(new byte[PAYLOAD_SIZE]) ;
+							pipeline.process(message) ;
+							processed.incrementAndGet() ;
+						}
+					} catch (final ActionProcessingException ape) {
+						ape.printStackTrace() ;
+					} finally {
+						done.countDown() ;
+					}
+				}
+			}.start() ;
+		}
+		done.await() ;
+
+		pipeline.destroy() ;
+		delete(directory) ;
+		return processed.get() ;
+	}
+
+	private static void delete(final File directory) {
+		final File[] files = directory.listFiles() ;
+		if (files != null) {
+			for (File file: files) {
+				file.delete() ;
+			}
+		}
+		directory.delete() ;
+	}
+
+	public static class NoopAction extends AbstractActionPipelineProcessor {
+
+		public Message process(final Message message) throws ActionProcessingException {
+			return message ;
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package com.kylin.soa.esb;
+
+import org.jboss.soa.esb.ConfigurationException;
+import org.jboss.soa.esb.helpers.ConfigTree;
+import org.jboss.soa.esb.listeners.lifecycle.AbstractManagedLifecycle;
+import org.jboss.soa.esb.listeners.lifecycle.LifecycleMBeanRegistrar;
+import org.jboss.soa.esb.listeners.lifecycle.ManagedLifecycleException;
+
+/**
+ * Compares the time taken to boot a set of lifecycles for each MBean registration mode.
+ * <p/>
+ * The boot time is the time taken to initialise and start every lifecycle, the
+ * commit time is the time taken to register the MBeans still queued once the
+ * lifecycles have started.
+ */
+public class MBeanRegistrationBootTime {
+
+	private static final int LIFECYCLES = 2000 ;
+
+	public static void main(String[] args) throws Exception {
+
+		final int count = (args.length > 0 ? Integer.parseInt(args[0]) : LIFECYCLES) ;
+
+		// warm up
+		for (LifecycleMBeanRegistrar.Mode mode: LifecycleMBeanRegistrar.Mode.values()) {
+			boot(mode, count / 10) ;
+		}
+		for (LifecycleMBeanRegistrar.Mode mode: LifecycleMBeanRegistrar.Mode.values()) {
+			boot(mode, count) ;
+		}
+	}
+
+	private static void boot(final LifecycleMBeanRegistrar.Mode mode, final int count) throws Exception {
+		final NoopLifecycle[] lifecycles = new NoopLifecycle[count] ;
+		for (int i = 0 ; i < count ; i++) {
+			final ConfigTree config = new ConfigTree("lifecycle-" + i) ;
+			config.setAttribute(AbstractManagedLifecycle.PARAM_MBEAN_REGISTRATION, mode.name()) ;
+			lifecycles[i] = new NoopLifecycle(config) ;
+		}
+
+		final long start = System.nanoTime() ;
+		for (NoopLifecycle lifecycle: lifecycles) {
+			lifecycle.initialise() ;
+			lifecycle.start() ;
+		}
+		final long booted = System.nanoTime() ;
+		LifecycleMBeanRegistrar.commit() ;
+		final long committed = System.nanoTime() ;
+
+		System.out.println(mode + ": " + count + " lifecycles booted in " + ((booted - start) / 1000000) +
+			"ms, queued registrations committed in " + ((committed - booted) / 1000000) + "ms") ;
+
+		for (NoopLifecycle lifecycle: lifecycles) {
+			lifecycle.stop() ;
+			lifecycle.destroy() ;
+		}
+	}
+
+	private static final class NoopLifecycle extends AbstractManagedLifecycle {
+
+		private static final long serialVersionUID = 1L;
+
+		NoopLifecycle(final ConfigTree config) throws ConfigurationException {
+			super(config) ;
+		}
+
+		protected void doInitialise() throws ManagedLifecycleException {
+		}
+
+		protected void doStart() throws ManagedLifecycleException {
+		}
+
+		protected void doStop() throws ManagedLifecycleException {
+		}
+
+		protected void doDestroy() throws ManagedLifecycleException {
+		}
+	}
+}
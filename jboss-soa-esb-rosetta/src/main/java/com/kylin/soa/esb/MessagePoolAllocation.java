@@ -0,0 +1,103 @@
+package com.kylin.soa.esb;
+
+import java.lang.management.ManagementFactory;
+
+import org.jboss.soa.esb.actions.AbstractActionPipelineProcessor;
+import org.jboss.soa.esb.actions.ActionProcessingException;
+import org.jboss.soa.esb.helpers.ConfigTree;
+import org.jboss.soa.esb.listeners.message.CompiledActionPipeline;
+import org.jboss.soa.esb.message.Message;
+import org.jboss.soa.esb.message.MessagePool;
+import org.jboss.soa.esb.message.format.MessageFactory;
+
+/**
+ * Compares the bytes allocated per message when the gateway creates a message
+ * for each request with acquiring the message from a {@link MessagePool}.
+ * <p/>
+ * Each message passes through a pipeline which reads the request and adds a
+ * response property, the result is then read and released as a gateway would.
+ */
+public class MessagePoolAllocation {
+
+	private static final int MESSAGES = 2000000 ;
+
+	public static void main(String[] args) throws Exception {
+
+		final int messages = (args.length > 0 ? Integer.parseInt(args[0]) : MESSAGES) ;
+
+		final CompiledActionPipeline unpooled = compile() ;
+		final CompiledActionPipeline pooled = compile() ;
+		pooled.setMessagePool(new MessagePool(null, 64)) ;
+
+		// warm up
+		run(unpooled, messages / 10) ;
+		run(pooled, messages / 10) ;
+
+		report("factory", unpooled, messages) ;
+		report("pool", pooled, messages) ;
+
+		final MessagePool pool = pooled.getMessagePool() ;
+		System.out.println("pool: created " + pool.getCreatedCount() + " messages for " + pool.getAcquiredCount() +
+			" acquisitions, " + pool.getOutstandingCount() + " outstanding") ;
+
+		unpooled.destroy() ;
+		pooled.destroy() ;
+	}
+
+	private static CompiledActionPipeline compile() throws Exception {
+		final ConfigTree config = new ConfigTree("service") ;
+		final ConfigTree action = new ConfigTree(CompiledActionPipeline.ACTION_ELEMENT, config) ;
+		action.setAttribute(CompiledActionPipeline.ACTION_CLASS_ATTRIBUTE, ResponseAction.class.getName()) ;
+		final CompiledActionPipeline pipeline = new CompiledActionPipeline(config) ;
+		pipeline.initialise() ;
+		return pipeline ;
+	}
+
+	private static long run(final CompiledActionPipeline pipeline, final int messages) throws ActionProcessingException {
+		final MessagePool pool = pipeline.getMessagePool() ;
+		final MessageFactory factory = MessageFactory.getInstance() ;
+		long responses = 0 ;
+		for (int i = 0 ; i < messages ; i++) {
+			final Message message = (pool != null ? pool.acquire() : factory.getMessage()) ;
+			message.getBody().add("request") ;
+			final Message result = pipeline.process(message) ;
+			if (result.getProperties().getProperty(ResponseAction.RESPONSE) != null) {
+				responses++ ;
+			}
+			pipeline.release(result) ;
+		}
+		return responses ;
+	}
+
+	private static void report(final String name, final CompiledActionPipeline pipeline, final int messages)
+		throws ActionProcessingException {
+		final long allocatedBefore = getAllocatedBytes() ;
+		final long start = System.nanoTime() ;
+		final long responses = run(pipeline, messages) ;
+		final long duration = System.nanoTime() - start ;
+		final long allocated = getAllocatedBytes() - allocatedBefore ;
+
+		System.out.println(name + ": " + responses + " responses, " + ((double)duration / messages) + "ns/message" +
+			(allocatedBefore < 0 ? "" : ", " + ((double)allocated / messages) + " bytes/message")) ;
+	}
+
+	private static long getAllocatedBytes() {
+		final Object threadBean = ManagementFactory.getThreadMXBean() ;
+		if (threadBean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean)threadBean).getThreadAllocatedBytes(Thread.currentThread().getId()) ;
+		}
+		return -1 ;
+	}
+
+	public static class ResponseAction extends AbstractActionPipelineProcessor {
+
+		static final String RESPONSE = "response" ;
+
+		public Message process(final Message message) throws ActionProcessingException {
+			if (message.getBody().get() != null) {
+				message.getProperties().setProperty(RESPONSE, Boolean.TRUE) ;
+			}
+			return message ;
+		}
+	}
+}
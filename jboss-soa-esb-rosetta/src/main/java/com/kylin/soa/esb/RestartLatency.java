@@ -0,0 +1,134 @@
+package com.kylin.soa.esb;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.soa.esb.ConfigurationException;
+import org.jboss.soa.esb.helpers.ConfigTree;
+import org.jboss.soa.esb.listeners.lifecycle.AbstractThreadedManagedLifecycle;
+import org.jboss.soa.esb.listeners.lifecycle.ManagedLifecycleCancellationToken;
+import org.jboss.soa.esb.listeners.lifecycle.ManagedLifecycleException;
+
+/**
+ * Measures the recovery to first message latency of a warm restart against a
+ * full destroy and reconstruct of a threaded lifecycle.
+ * <p/>
+ * The gateway builds a lookup table in doInitialise, standing in for the caches,
+ * connections and parsed configuration of a real gateway, and handles its first
+ * message as soon as doRun is entered.
+ */
+public class RestartLatency {
+
+	private static final int ITERATIONS = 200 ;
+
+	private static final int TABLE_SIZE = 200000 ;
+
+	public static void main(String[] args) throws Exception {
+
+		final int iterations = (args.length > 0 ? Integer.parseInt(args[0]) : ITERATIONS) ;
+
+		// warm up
+		reconstruct(iterations / 10) ;
+		restart(iterations / 10) ;
+
+		report("reconstruct", reconstruct(iterations), iterations) ;
+		report("restart", restart(iterations), iterations) ;
+	}
+
+	private static long reconstruct(final int iterations) throws Exception {
+		LatencyGateway gateway = newGateway() ;
+		gateway.initialise() ;
+		gateway.start() ;
+		gateway.awaitFirstMessage() ;
+
+		long total = 0 ;
+		for (int i = 0 ; i < iterations ; i++) {
+			final long start = System.nanoTime() ;
+			gateway.stop() ;
+			gateway.waitUntilStopped() ;
+			gateway.destroy() ;
+			gateway = newGateway() ;
+			gateway.initialise() ;
+			gateway.start() ;
+			gateway.awaitFirstMessage() ;
+			total += System.nanoTime() - start ;
+		}
+		gateway.stop() ;
+		gateway.waitUntilStopped() ;
+		gateway.destroy() ;
+		return total ;
+	}
+
+	private static long restart(final int iterations) throws Exception {
+		final LatencyGateway gateway = newGateway() ;
+		gateway.initialise() ;
+		gateway.start() ;
+		gateway.awaitFirstMessage() ;
+
+		long total = 0 ;
+		for (int i = 0 ; i < iterations ; i++) {
+			final long start = System.nanoTime() ;
+			gateway.restart() ;
+			gateway.awaitFirstMessage() ;
+			total += System.nanoTime() - start ;
+		}
+		gateway.stop() ;
+		gateway.waitUntilStopped() ;
+		gateway.destroy() ;
+		return total ;
+	}
+
+	private static LatencyGateway newGateway() throws ConfigurationException {
+		final ConfigTree config = new ConfigTree("latency-gateway") ;
+		config.setAttribute(AbstractThreadedManagedLifecycle.PARAM_INTERRUPT_ON_STOP, "true") ;
+		return new LatencyGateway(config) ;
+	}
+
+	private static void report(final String name, final long total, final int iterations) {
+		System.out.println(name + ": " + iterations + " recoveries, average recovery to first message " +
+			(total / iterations / 1000) + "us") ;
+	}
+
+	private static final class LatencyGateway extends AbstractThreadedManagedLifecycle {
+
+		private static final long serialVersionUID = 1L;
+
+		private Map<String, Integer> table ;
+
+		private volatile CountDownLatch firstMessage = new CountDownLatch(1) ;
+
+		LatencyGateway(final ConfigTree config) throws ConfigurationException {
+			super(config) ;
+		}
+
+		protected void doInitialise() throws ManagedLifecycleException {
+			final Map<String, Integer> table = new HashMap<String, Integer>() ;
+			for (int i = 0 ; i < TABLE_SIZE ; i++) {
+				table.put("key-" + i, Integer.valueOf(i)) ;
+			}
+			this.table = table ;
+		}
+
+		protected void doResetRunState() throws ManagedLifecycleException {
+			firstMessage = new CountDownLatch(1) ;
+		}
+
+		protected void doRun() {
+			final ManagedLifecycleCancellationToken token = getCancellationToken() ;
+			if (table.get("key-0") != null) {
+				firstMessage.countDown() ;
+			}
+			while (!token.await(100)) {
+				heartbeat() ;
+			}
+		}
+
+		void awaitFirstMessage() throws InterruptedException {
+			if (!firstMessage.await(10, TimeUnit.SECONDS)) {
+				throw new IllegalStateException("No message handled") ;
+			}
+		}
+	}
+}
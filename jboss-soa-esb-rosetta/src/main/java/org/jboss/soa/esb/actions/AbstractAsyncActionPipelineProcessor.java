@@ -0,0 +1,60 @@
+package org.jboss.soa.esb.actions;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.jboss.soa.esb.message.Message;
+
+/**
+ * Abstract asynchronous processor providing a blocking {@link #process(Message)}
+ * so that the action can also be used in synchronous pipelines.
+ */
+public abstract class AbstractAsyncActionPipelineProcessor extends AbstractActionPipelineProcessor implements AsyncActionPipelineProcessor {
+
+    /**
+     * Perform the action processing on the specified message, waiting for
+     * the asynchronous processing to complete.
+     * 
+     * @param message The current message being processed.
+     * @return The message to be passed to the next stage of the pipeline.
+     * @throws ActionProcessingException for errors during processing.
+     */
+	public Message process(final Message message) throws ActionProcessingException {
+		final BlockingCallback callback = new BlockingCallback();
+		processAsync(message, callback);
+		return callback.await();
+	}
+
+    /**
+     * Callback releasing the thread waiting in process.
+     */
+	private static final class BlockingCallback implements ActionCompletionCallback {
+		private final CountDownLatch latch = new CountDownLatch(1);
+		private volatile Message result;
+		private volatile Throwable failure;
+
+		public void completed(final Message message) {
+			result = message;
+			latch.countDown();
+		}
+
+		public void failed(final Throwable th) {
+			failure = th;
+			latch.countDown();
+		}
+
+		Message await() throws ActionProcessingException {
+			try {
+				latch.await();
+			} catch (final InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new ActionProcessingException("Interrupted while waiting for asynchronous processing", ie);
+			}
+			if (failure instanceof ActionProcessingException) {
+				throw (ActionProcessingException)failure;
+			} else if (failure != null) {
+				throw new ActionProcessingException(failure);
+			}
+			return result;
+		}
+	}
+}
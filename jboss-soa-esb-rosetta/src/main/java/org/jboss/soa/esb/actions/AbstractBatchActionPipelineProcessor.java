@@ -0,0 +1,20 @@
+package org.jboss.soa.esb.actions;
+
+/**
+ * Abstract batch processor adapting {@link #process(org.jboss.soa.esb.message.Message)}
+ * to batch delivery.  Subclasses override {@link #processBatch(MessageBatch)}
+ * when they can do better than processing each message in turn.
+ */
+public abstract class AbstractBatchActionPipelineProcessor extends AbstractActionPipelineProcessor implements BatchActionPipelineProcessor {
+
+    /**
+     * Perform the action processing on the active entries of the batch,
+     * invoking process for each entry.
+     * 
+     * @param batch The batch of messages being processed.
+     * @throws ActionProcessingException for errors affecting the whole batch.
+     */
+	public void processBatch(final MessageBatch batch) throws ActionProcessingException {
+		batch.processEach(this);
+	}
+}
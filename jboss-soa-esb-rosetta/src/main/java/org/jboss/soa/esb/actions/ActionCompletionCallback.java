@@ -0,0 +1,27 @@
+package org.jboss.soa.esb.actions;
+
+import org.jboss.soa.esb.message.Message;
+
+/**
+ * Callback notified when the asynchronous processing of a message completes.
+ * <p/>
+ * Exactly one of the methods must be invoked, once, for each message.  The
+ * callback may be invoked on any thread, including the thread which started the
+ * processing.
+ */
+public interface ActionCompletionCallback {
+
+    /**
+     * The processing completed successfully.
+     * 
+     * @param message The message to be passed to the next stage of the pipeline, or null to terminate the pipeline.
+     */
+    public void completed(final Message message) ;
+
+    /**
+     * The processing failed.
+     * 
+     * @param th The throwable raised by the processing.
+     */
+    public void failed(final Throwable th) ;
+}
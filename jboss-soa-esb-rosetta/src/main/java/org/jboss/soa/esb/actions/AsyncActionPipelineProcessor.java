@@ -0,0 +1,24 @@
+package org.jboss.soa.esb.actions;
+
+import org.jboss.soa.esb.message.Message;
+
+/**
+ * Interface representing processor actions which complete their processing
+ * asynchronously.
+ * <p/>
+ * An asynchronous action starts the processing of the message and returns
+ * immediately, releasing the calling thread while it waits on I/O.  The pipeline
+ * continues with the next stage when the action notifies the callback.
+ * Synchronous pipelines invoke {@link #process(Message)} instead, which is
+ * expected to wait for the asynchronous processing.
+ */
+public interface AsyncActionPipelineProcessor extends ActionPipelineProcessor {
+
+    /**
+     * Start the action processing on the specified message.
+     * 
+     * @param message The current message being processed.
+     * @param callback The callback to notify when the processing completes.
+     */
+    public void processAsync(final Message message, final ActionCompletionCallback callback) ;
+}
@@ -0,0 +1,302 @@
+package org.jboss.soa.esb.actions;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.jboss.soa.esb.ConfigurationException;
+import org.jboss.soa.esb.addressing.Call;
+import org.jboss.soa.esb.helpers.ConfigTree;
+import org.jboss.soa.esb.listeners.message.MessageDeliverException;
+import org.jboss.soa.esb.message.CopyOnWriteMessage;
+import org.jboss.soa.esb.message.Message;
+import org.jboss.soa.esb.message.MessagePayloadProxy;
+import org.jboss.soa.esb.message.body.content.BufferPayload;
+import org.jboss.soa.esb.message.body.content.BytesBody;
+
+/**
+ * Audit action printing a summary of each message without blocking the pipeline.
+ * <p/>
+ * Each audit record is formatted into a reusable per-thread buffer and handed to
+ * a background writer, which prints the records in batches and flushes the
+ * stream once per batch.  The pipeline thread never waits on the stream: if the
+ * writer falls behind and its queue fills, records are dropped and counted.
+ * <p/>
+ * The sampleRate attribute audits every Nth message, the maxPayloadLength
+ * attribute truncates the printed payload and attachments, zero meaning no limit.
+ */
+public class AuditPrintln extends AbstractActionPipelineProcessor {
+
+    private static final Logger logger = Logger.getLogger(AuditPrintln.class) ;
+
+    public static final String PRE_MESSAGE = "message" ;
+    public static final String PRINT_STREAM = "outputstream" ;
+    public static final String SAMPLE_RATE = "sampleRate" ;
+    public static final String MAX_PAYLOAD_LENGTH = "maxPayloadLength" ;
+    public static final String QUEUE_SIZE = "queueSize" ;
+    public static final String DEFAULT_PRE_MESSAGE = "Audit" ;
+
+    public static final int DEFAULT_MAX_PAYLOAD_LENGTH = 1024 ;
+    public static final int DEFAULT_QUEUE_SIZE = 10000 ;
+
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator") ;
+
+    /**
+     * The maximum number of records printed in one batch.
+     */
+    private static final int MAX_BATCH = 256 ;
+
+    /**
+     * The capacity above which a per-thread buffer is discarded rather than reused.
+     */
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024 ;
+
+    private final MessagePayloadProxy payloadProxy ;
+    private final String printlnMessage ;
+    private final PrintStream stream ;
+    private final long sampleRate ;
+    private final int maxPayloadLength ;
+
+    /**
+     * The records waiting for the writer.
+     */
+    private final BlockingQueue<String> queue ;
+    /**
+     * The per-thread format buffers.
+     */
+    private final ThreadLocal<StringBuilder> buffers = new ThreadLocal<StringBuilder>() ;
+    /**
+     * The number of messages seen, used for sampling.
+     */
+    private final AtomicLong messageCount = new AtomicLong() ;
+    /**
+     * The number of records printed.
+     */
+    private final AtomicLong writtenCount = new AtomicLong() ;
+    /**
+     * The number of records dropped because the queue was full.
+     */
+    private final AtomicLong droppedCount = new AtomicLong() ;
+
+    /**
+     * The background writer.
+     */
+    private Thread writer ;
+    /**
+     * Is the writer accepting records?
+     */
+    private volatile boolean running ;
+
+    /**
+     * Public constructor.
+     *
+     * @param config Configuration.
+     * @throws ConfigurationException for invalid sampling, truncation or queue sizes.
+     */
+    public AuditPrintln(final ConfigTree config) throws ConfigurationException {
+        printlnMessage = config.getAttribute(PRE_MESSAGE, DEFAULT_PRE_MESSAGE) ;
+        stream = ("true".equals(config.getAttribute(PRINT_STREAM, "true")) ? System.out : System.err) ;
+        sampleRate = config.getLongAttribute(SAMPLE_RATE, 1) ;
+        if (sampleRate < 1) {
+            throw new ConfigurationException("Invalid " + SAMPLE_RATE + " value of " + sampleRate) ;
+        }
+        final long maxLength = config.getLongAttribute(MAX_PAYLOAD_LENGTH, DEFAULT_MAX_PAYLOAD_LENGTH) ;
+        if ((maxLength < 0) || (maxLength > Integer.MAX_VALUE)) {
+            throw new ConfigurationException("Invalid " + MAX_PAYLOAD_LENGTH + " value of " + maxLength) ;
+        }
+        maxPayloadLength = (maxLength == 0 ? Integer.MAX_VALUE : (int)maxLength) ;
+        final long queueSize = config.getLongAttribute(QUEUE_SIZE, DEFAULT_QUEUE_SIZE) ;
+        if ((queueSize < 1) || (queueSize > Integer.MAX_VALUE)) {
+            throw new ConfigurationException("Invalid " + QUEUE_SIZE + " value of " + queueSize) ;
+        }
+        queue = new ArrayBlockingQueue<String>((int)queueSize) ;
+
+        final String primaryDataLocation = config.getAttribute("datalocation") ;
+        if (primaryDataLocation != null) {
+            config.setAttribute(MessagePayloadProxy.GET_PAYLOAD_LOCATION, primaryDataLocation) ;
+            payloadProxy = new MessagePayloadProxy(config) ;
+        } else {
+            payloadProxy = new MessagePayloadProxy(config, new String[] {BytesBody.BYTES_LOCATION}, new String[] {BytesBody.BYTES_LOCATION}) ;
+        }
+        payloadProxy.setNullGetPayloadHandling(MessagePayloadProxy.NullPayloadHandling.NONE) ;
+    }
+
+    /**
+     * Start the background writer.
+     */
+    public synchronized void initialise() throws ActionLifecycleException {
+        if (writer == null) {
+            running = true ;
+            writer = new Thread(new Writer(), "AuditPrintln-" + printlnMessage) ;
+            writer.setDaemon(true) ;
+            writer.start() ;
+        }
+    }
+
+    /**
+     * Stop the background writer once the queued records have been printed.
+     */
+    public synchronized void destroy() throws ActionLifecycleException {
+        if (writer != null) {
+            running = false ;
+            try {
+                writer.join() ;
+            } catch (final InterruptedException ie) {
+                Thread.currentThread().interrupt() ;
+            }
+            writer = null ;
+        }
+    }
+
+    public Message process(final Message message) throws ActionProcessingException {
+        if ((messageCount.getAndIncrement() % sampleRate) != 0) {
+            return message ;
+        }
+        StringBuilder builder = buffers.get() ;
+        if ((builder == null) || (builder.capacity() > MAX_RETAINED_CAPACITY)) {
+            builder = new StringBuilder(256) ;
+            buffers.set(builder) ;
+        }
+        builder.setLength(0) ;
+        format(CopyOnWriteMessage.forReading(message), builder) ;
+        if (!running || !queue.offer(builder.toString())) {
+            droppedCount.incrementAndGet() ;
+        }
+        return message ;
+    }
+
+    /**
+     * Get the number of audit records printed.
+     * @return The number of records printed.
+     */
+    public long getWrittenCount() {
+        return writtenCount.get() ;
+    }
+
+    /**
+     * Get the number of audit records dropped because the writer was not keeping up.
+     * @return The number of records dropped.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get() ;
+    }
+
+    /**
+     * Format the audit record of the message.
+     * @param message The message.
+     * @param builder The buffer receiving the record.
+     * @throws ActionProcessingException for errors retrieving the payload.
+     */
+    private void format(final Message message, final StringBuilder builder) throws ActionProcessingException {
+        builder.append(printlnMessage).append(": type=").append(message.getType()) ;
+        final Call call = message.getHeader().getCall() ;
+        if (call != null) {
+            builder.append(", messageID=").append(call.getMessageID()) ;
+        }
+        builder.append(", payload=[") ;
+        try {
+            appendPayload(payloadProxy.getPayload(message), builder) ;
+        } catch (final MessageDeliverException mde) {
+            throw new ActionProcessingException(mde) ;
+        }
+        builder.append(']') ;
+        final int attachments = message.getAttachment().getUnnamedCount() ;
+        for(int count = 0 ; count < attachments ; count++) {
+            final Object attachment = message.getAttachment().itemAt(count) ;
+            builder.append(", attachment ").append(count).append("=[") ;
+            if (attachment instanceof Message) {
+                try {
+                    appendPayload(payloadProxy.getPayload(CopyOnWriteMessage.forReading((Message)attachment)), builder) ;
+                } catch (final MessageDeliverException mde) {
+                    throw new ActionProcessingException(mde) ;
+                }
+            } else {
+                appendPayload(attachment, builder) ;
+            }
+            builder.append(']') ;
+        }
+        builder.append(LINE_SEPARATOR) ;
+    }
+
+    /**
+     * Append the payload, truncated to the maximum payload length.
+     * @param payload The payload.
+     * @param builder The buffer receiving the payload.
+     */
+    private void appendPayload(final Object payload, final StringBuilder builder) {
+        if (payload instanceof byte[]) {
+            final byte[] bytes = (byte[])payload ;
+            final int length = Math.min(bytes.length, maxPayloadLength) ;
+            builder.append(new String(bytes, 0, length)) ;
+            appendTruncation(bytes.length - length, "bytes", builder) ;
+        } else if (payload instanceof BufferPayload) {
+            final ByteBuffer view ;
+            try {
+                view = ((BufferPayload)payload).asBuffer() ;
+            } catch (final IllegalStateException ise) {
+                builder.append(payload) ;
+                return ;
+            }
+            final int size = view.remaining() ;
+            final int length = Math.min(size, maxPayloadLength) ;
+            view.limit(view.position() + length) ;
+            builder.append(Charset.defaultCharset().decode(view)) ;
+            appendTruncation(size - length, "bytes", builder) ;
+        } else if (payload != null) {
+            final String value = payload.toString() ;
+            final int length = Math.min(value.length(), maxPayloadLength) ;
+            builder.append(value, 0, length) ;
+            appendTruncation(value.length() - length, "characters", builder) ;
+        }
+    }
+
+    private static void appendTruncation(final int truncated, final String unit, final StringBuilder builder) {
+        if (truncated > 0) {
+            builder.append("... (").append(truncated).append(' ').append(unit).append(" truncated)") ;
+        }
+    }
+
+    /**
+     * The background writer, printing the queued records in batches.
+     */
+    private final class Writer implements Runnable {
+        public void run() {
+            final List<String> batch = new ArrayList<String>(MAX_BATCH) ;
+            final StringBuilder output = new StringBuilder() ;
+            while(running || !queue.isEmpty()) {
+                try {
+                    final String first = queue.poll(100, TimeUnit.MILLISECONDS) ;
+                    if (first == null) {
+                        continue ;
+                    }
+                    batch.add(first) ;
+                } catch (final InterruptedException ie) {
+                    break ;
+                }
+                queue.drainTo(batch, MAX_BATCH - 1) ;
+                for(String record: batch) {
+                    output.append(record) ;
+                }
+                try {
+                    stream.print(output) ;
+                    stream.flush() ;
+                } catch (final RuntimeException re) {
+                    logger.warn("Failed to print audit records", re) ;
+                }
+                writtenCount.addAndGet(batch.size()) ;
+                batch.clear() ;
+                output.setLength(0) ;
+                if (output.capacity() > MAX_RETAINED_CAPACITY) {
+                    output.trimToSize() ;
+                }
+            }
+        }
+    }
+}
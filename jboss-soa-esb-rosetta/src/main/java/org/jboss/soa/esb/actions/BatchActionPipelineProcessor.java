@@ -0,0 +1,22 @@
+package org.jboss.soa.esb.actions;
+
+/**
+ * Interface representing processor actions able to process a micro-batch of
+ * messages in a single call.
+ * <p/>
+ * Batching allows an action to amortise expensive work, such as I/O, lookups or
+ * flushing output, across many messages.  The outcome of each message is still
+ * recorded individually in the {@link MessageBatch} so that the pipeline invokes
+ * processSuccess or processException for every message as it would for
+ * {@link ActionPipelineProcessor#process(org.jboss.soa.esb.message.Message)}.
+ */
+public interface BatchActionPipelineProcessor extends ActionPipelineProcessor {
+
+    /**
+     * Perform the action processing on the active entries of the batch.
+     * 
+     * @param batch The batch of messages being processed.
+     * @throws ActionProcessingException for errors affecting the whole batch, every active entry is failed.
+     */
+    public void processBatch(final MessageBatch batch) throws ActionProcessingException ;
+}
@@ -0,0 +1,274 @@
+package org.jboss.soa.esb.actions;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.jboss.soa.esb.ConfigurationException;
+import org.jboss.soa.esb.helpers.ConfigTree;
+import org.jboss.soa.esb.listeners.message.CompiledActionPipeline;
+import org.jboss.soa.esb.listeners.message.MessageDeliverException;
+import org.jboss.soa.esb.message.Body;
+import org.jboss.soa.esb.message.CopyOnWriteMessage;
+import org.jboss.soa.esb.message.Message;
+import org.jboss.soa.esb.message.MessagePayloadProxy;
+import org.jboss.soa.esb.message.body.content.BufferPayload;
+import org.jboss.soa.esb.message.body.content.BytesBody;
+
+/**
+ * Action memoizing the result of a deterministic sub-pipeline.
+ * <p/>
+ * The actions nested within this action form the sub-pipeline.  The payload of
+ * each message is read through the payload proxy and keyed: byte array and buffer
+ * payloads by a copy of their contents, string and boxed primitive payloads by the
+ * payload itself.  Messages with other payloads, which may be modified once they
+ * have been keyed, always execute the sub-pipeline.  If a result is cached for the
+ * key the body of the incoming message is replaced by the cached body without
+ * executing the sub-pipeline, otherwise the sub-pipeline is executed and the body
+ * of its result cached.  Sub-pipelines terminating the message are not cached.
+ * <p/>
+ * Only the body is cached, the header, context, fault, attachments and properties
+ * of a message answered from the cache are its own.  The body entries are
+ * captured when the result is cached and the same entry values are placed in every
+ * message answered from the cache, so they must not be modified in place.  The
+ * cache is bounded by the
+ * cacheCapacity and cacheTtl (milliseconds, zero for no expiry) attributes and
+ * evicts using W-TinyLFU, see {@link TinyLfuCache}.
+ */
+public class CachingAction extends AbstractActionPipelineProcessor {
+
+    public static final String CACHE_CAPACITY = "cacheCapacity" ;
+    public static final String CACHE_TTL = "cacheTtl" ;
+
+    public static final int DEFAULT_CACHE_CAPACITY = 1000 ;
+    public static final long DEFAULT_CACHE_TTL = 60000 ;
+
+    private final MessagePayloadProxy payloadProxy ;
+    private final CompiledActionPipeline pipeline ;
+    private final TinyLfuCache<Object, CachedBody> cache ;
+
+    /**
+     * Public constructor.
+     *
+     * @param config Configuration, containing the actions of the sub-pipeline.
+     * @throws ConfigurationException for errors creating the sub-pipeline or invalid cache bounds.
+     */
+    public CachingAction(final ConfigTree config) throws ConfigurationException {
+        final long capacity = config.getLongAttribute(CACHE_CAPACITY, DEFAULT_CACHE_CAPACITY) ;
+        if ((capacity < 1) || (capacity > Integer.MAX_VALUE)) {
+            throw new ConfigurationException("Invalid " + CACHE_CAPACITY + " value of " + capacity) ;
+        }
+        final long ttl = config.getLongAttribute(CACHE_TTL, DEFAULT_CACHE_TTL) ;
+        if (ttl < 0) {
+            throw new ConfigurationException("Invalid " + CACHE_TTL + " value of " + ttl) ;
+        }
+        cache = new TinyLfuCache<Object, CachedBody>((int)capacity, ttl) ;
+        pipeline = new CompiledActionPipeline(config) ;
+
+        final String primaryDataLocation = config.getAttribute("datalocation") ;
+        if (primaryDataLocation != null) {
+            config.setAttribute(MessagePayloadProxy.GET_PAYLOAD_LOCATION, primaryDataLocation) ;
+            payloadProxy = new MessagePayloadProxy(config) ;
+        } else {
+            payloadProxy = new MessagePayloadProxy(config, new String[] {BytesBody.BYTES_LOCATION}, new String[] {BytesBody.BYTES_LOCATION}) ;
+        }
+        payloadProxy.setNullGetPayloadHandling(MessagePayloadProxy.NullPayloadHandling.NONE) ;
+    }
+
+    public void initialise() throws ActionLifecycleException {
+        pipeline.initialise() ;
+    }
+
+    public void destroy() throws ActionLifecycleException {
+        pipeline.destroy() ;
+        cache.clear() ;
+    }
+
+    public Message process(final Message message) throws ActionProcessingException {
+        final Object payload ;
+        try {
+            payload = payloadProxy.getPayload(CopyOnWriteMessage.forReading(message)) ;
+        } catch (final MessageDeliverException mde) {
+            throw new ActionProcessingException(mde) ;
+        }
+        final Object key = createKey(payload) ;
+        if (key == null) {
+            return pipeline.process(message) ;
+        }
+
+        final CachedBody cached = cache.get(key) ;
+        if (cached != null) {
+            cached.applyTo(message.getBody()) ;
+            return message ;
+        }
+        final Message result = pipeline.process(message) ;
+        if (result != null) {
+            final Message snapshot ;
+            try {
+                snapshot = result.copy() ;
+            } catch (final IOException ioe) {
+                throw new ActionProcessingException("Failed to copy the result for caching", ioe) ;
+            }
+            cache.put(key, new CachedBody(CopyOnWriteMessage.forReading(snapshot).getBody())) ;
+        }
+        return result ;
+    }
+
+    /**
+     * Get the number of requests answered from the cache.
+     * @return The number of hits.
+     */
+    public long getHitCount() {
+        return cache.getHits() ;
+    }
+
+    /**
+     * Get the number of requests executing the sub-pipeline.
+     * @return The number of misses.
+     */
+    public long getMissCount() {
+        return cache.getMisses() ;
+    }
+
+    /**
+     * Get the proportion of requests answered from the cache.
+     * @return The hit rate, between 0 and 1.
+     */
+    public double getHitRate() {
+        final long hits = cache.getHits() ;
+        final long total = hits + cache.getMisses() ;
+        return (total == 0 ? 0 : (double)hits / total) ;
+    }
+
+    /**
+     * Get the number of entries evicted or refused admission because of the capacity.
+     * @return The number of evictions.
+     */
+    public long getEvictionCount() {
+        return cache.getEvictions() ;
+    }
+
+    /**
+     * Get the number of entries discarded because their time to live elapsed.
+     * @return The number of expirations.
+     */
+    public long getExpirationCount() {
+        return cache.getExpirations() ;
+    }
+
+    /**
+     * Get the number of cached results.
+     * @return The cache size.
+     */
+    public int getCacheSize() {
+        return cache.size() ;
+    }
+
+    /**
+     * Create the cache key of the payload.
+     * @param payload The payload.
+     * @return The key, or null if the payload cannot be keyed.
+     */
+    private static Object createKey(final Object payload) {
+        if (payload instanceof byte[]) {
+            return new PayloadKey(((byte[])payload).clone()) ;
+        } else if (payload instanceof BufferPayload) {
+            final ByteBuffer buffer ;
+            try {
+                buffer = ((BufferPayload)payload).asBuffer() ;
+            } catch (final IllegalStateException ise) {
+                return null ;
+            }
+            final byte[] contents = new byte[buffer.remaining()] ;
+            buffer.get(contents) ;
+            return new PayloadKey(contents) ;
+        } else if ((payload != null) && isImmutable(payload.getClass())) {
+            return payload ;
+        }
+        return null ;
+    }
+
+    /**
+     * Can payloads of the class be used as keys without being copied?
+     * @param payloadClass The class of the payload.
+     * @return true if instances of the class cannot be modified, false otherwise.
+     */
+    private static boolean isImmutable(final Class<?> payloadClass) {
+        return (payloadClass == String.class) || (payloadClass == Integer.class) || (payloadClass == Long.class)
+            || (payloadClass == Short.class) || (payloadClass == Byte.class) || (payloadClass == Character.class)
+            || (payloadClass == Boolean.class) || (payloadClass == Double.class) || (payloadClass == Float.class) ;
+    }
+
+    /**
+     * The entries of a cached result body.
+     */
+    private static final class CachedBody {
+        private final String[] names ;
+        private final Object[] values ;
+
+        /**
+         * Capture the entries of the body.
+         * @param body The body of a private copy of the result.
+         */
+        CachedBody(final Body body) {
+            names = body.getNames() ;
+            values = new Object[names.length] ;
+            for(int count = 0 ; count < names.length ; count++) {
+                values[count] = body.get(names[count]) ;
+            }
+        }
+
+        /**
+         * Replace the entries of the body with the cached entries.
+         * @param body The body of the incoming message.
+         */
+        void applyTo(final Body body) {
+            for(String name: body.getNames()) {
+                body.remove(name) ;
+            }
+            for(int count = 0 ; count < names.length ; count++) {
+                body.add(names[count], values[count]) ;
+            }
+        }
+    }
+
+    /**
+     * The contents of a byte array or buffer payload, hashed with 64 bit FNV-1a.
+     */
+    private static final class PayloadKey {
+        /**
+         * The FNV-1a 64 bit offset basis and prime.
+         */
+        private static final long SEED = 0xcbf29ce484222325L ;
+        private static final long PRIME = 0x100000001b3L ;
+
+        private final byte[] contents ;
+        private final long hash ;
+
+        /**
+         * Create the key, taking ownership of the contents.
+         * @param contents The payload contents.
+         */
+        PayloadKey(final byte[] contents) {
+            long value = SEED ;
+            for(int count = 0 ; count < contents.length ; count++) {
+                value = (value ^ (contents[count] & 0xff)) * PRIME ;
+            }
+            this.contents = contents ;
+            this.hash = value ;
+        }
+
+        public boolean equals(final Object other) {
+            if (!(other instanceof PayloadKey)) {
+                return false ;
+            }
+            final PayloadKey key = (PayloadKey)other ;
+            return (hash == key.hash) && Arrays.equals(contents, key.contents) ;
+        }
+
+        public int hashCode() {
+            final long mixed = hash ^ (hash >>> 29) ;
+            return (int)(mixed ^ (mixed >>> 32)) ;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package org.jboss.soa.esb.actions;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.jboss.soa.esb.ConfigurationException;
+import org.jboss.soa.esb.helpers.ConfigTree;
+import org.jboss.soa.esb.listeners.lifecycle.AbstractManagedLifecycle;
+import org.jboss.soa.esb.listeners.message.DeadLetterStore;
+import org.jboss.soa.esb.message.BinaryMessageCodec;
+import org.jboss.soa.esb.message.CopyOnWriteMessage;
+import org.jboss.soa.esb.message.Message;
+
+/**
+ * Action recording the messages which fail processing in a {@link DeadLetterStore}.
+ * <p/>
+ * The action passes each message on unchanged.  When a subsequent action raises
+ * an exception the message, as it was received by this action, is appended to
+ * the store held in the deadLetterDirectory together with its fault and the
+ * exception, keyed by the category and name of the enclosing service.  The action
+ * is therefore normally configured as the first action of the pipeline, so that a
+ * replayed message passes through the pipeline exactly as it was first received.
+ * <p/>
+ * The received message is snapshotted as it passes through the action and held
+ * by the action, keyed by the identity of the message, until the outcome is
+ * notified; it is only encoded if processing fails.  A {@link CopyOnWriteMessage}
+ * is snapshotted by copying it, which shares its components until a later action
+ * changes them.  Other messages are only snapshotted, through a full copy, if the
+ * deadLetterSnapshot attribute is true.  Messages without a snapshot, or replaced
+ * by a later action so that the outcome cannot be matched to the snapshot, are
+ * recorded as they reached the failing action.
+ * <p/>
+ * Actions sharing a directory share a single store.  If the deadLetterSync
+ * attribute is true each record is forced to disk before processException
+ * returns.  The recorded messages can be re-injected into a pipeline through
+ * {@link org.jboss.soa.esb.listeners.message.DeadLetterReplayer}.
+ */
+public class DeadLetterAction extends AbstractActionPipelineProcessor {
+
+    private static final Logger logger = Logger.getLogger(DeadLetterAction.class) ;
+
+    public static final String DEAD_LETTER_DIRECTORY = "deadLetterDirectory" ;
+    public static final String DEAD_LETTER_SYNC = "deadLetterSync" ;
+    public static final String DEAD_LETTER_SNAPSHOT = "deadLetterSnapshot" ;
+
+    /**
+     * The age after which a snapshot whose outcome was not matched is discarded, 10 minutes.
+     */
+    private static final long SNAPSHOT_EXPIRY = 10 * 60 * 1000 ;
+
+    /**
+     * The number of snapshots between purges of expired snapshots.
+     */
+    private static final int PURGE_INTERVAL = 1024 ;
+
+    /**
+     * The open stores and their reference counts, keyed by directory.
+     */
+    private static final Map<File, SharedStore> STORES = new HashMap<File, SharedStore>() ;
+
+    private final File directory ;
+    private final boolean sync ;
+    private final String category ;
+    private final String name ;
+    /**
+     * Are messages other than copy-on-write messages snapshotted?
+     */
+    private final boolean snapshotAll ;
+    /**
+     * The snapshots of the messages in flight, keyed by message identity.
+     */
+    private final Map<Message, Snapshot> inFlight = new IdentityHashMap<Message, Snapshot>() ;
+    /**
+     * The number of snapshots taken.
+     */
+    private final AtomicLong snapshotCount = new AtomicLong() ;
+    private DeadLetterStore store ;
+
+    /**
+     * Public constructor.
+     *
+     * @param config Configuration.
+     * @throws ConfigurationException if the deadLetterDirectory attribute is missing or invalid.
+     */
+    public DeadLetterAction(final ConfigTree config) throws ConfigurationException {
+        final File configuredDirectory = new File(config.getRequiredAttribute(DEAD_LETTER_DIRECTORY)) ;
+        try {
+            directory = configuredDirectory.getCanonicalFile() ;
+        } catch (final IOException ioe) {
+            throw new ConfigurationException("Invalid " + DEAD_LETTER_DIRECTORY + " value of " + configuredDirectory, ioe) ;
+        }
+        sync = config.getBooleanAttribute(DEAD_LETTER_SYNC, false) ;
+        category = getServiceAttribute(config, AbstractManagedLifecycle.PARAM_SERVICE_CATEGORY) ;
+        name = getServiceAttribute(config, AbstractManagedLifecycle.PARAM_SERVICE_NAME) ;
+        snapshotAll = config.getBooleanAttribute(DEAD_LETTER_SNAPSHOT, false) ;
+    }
+
+    public void initialise() throws ActionLifecycleException {
+        synchronized(STORES) {
+            SharedStore shared = STORES.get(directory) ;
+            if (shared == null) {
+                final DeadLetterStore newStore = new DeadLetterStore(directory, sync) ;
+                try {
+                    newStore.open() ;
+                } catch (final IOException ioe) {
+                    throw new ActionLifecycleException("Failed to open dead letter store " + directory, ioe) ;
+                }
+                shared = new SharedStore(newStore) ;
+                STORES.put(directory, shared) ;
+            }
+            shared.references++ ;
+            store = shared.store ;
+        }
+    }
+
+    public void destroy() throws ActionLifecycleException {
+        synchronized(STORES) {
+            final SharedStore shared = STORES.get(directory) ;
+            if ((store != null) && (shared != null) && (shared.store == store) && (--shared.references == 0)) {
+                STORES.remove(directory) ;
+                store.close() ;
+            }
+            store = null ;
+        }
+    }
+
+    public Message process(final Message message) throws ActionProcessingException {
+        if (snapshotAll || (message instanceof CopyOnWriteMessage)) {
+            final Message received ;
+            try {
+                received = message.copy() ;
+            } catch (final IOException ioe) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Failed to snapshot received message for service " + category + ':' + name, ioe) ;
+                }
+                return message ;
+            }
+            final long now = System.currentTimeMillis() ;
+            synchronized(inFlight) {
+                inFlight.put(message, new Snapshot(received, now)) ;
+                if ((snapshotCount.incrementAndGet() % PURGE_INTERVAL) == 0) {
+                    purgeExpired(now) ;
+                }
+            }
+        }
+        return message ;
+    }
+
+    public void processSuccess(final Message message) {
+        removeReceived(message) ;
+    }
+
+    public void processException(final Message message, final Throwable th) {
+        final byte[] received = encode(removeReceived(message)) ;
+        final DeadLetterStore currentStore ;
+        synchronized(STORES) {
+            currentStore = store ;
+        }
+        if (currentStore == null) {
+            logger.error("Dead letter store " + directory + " is not open, discarding failed message", th) ;
+            return ;
+        }
+        try {
+            if (received != null) {
+                currentStore.append(category, name, received, CopyOnWriteMessage.forReading(message).getFault(), th) ;
+            } else {
+                currentStore.append(category, name, message, th) ;
+            }
+        } catch (final IOException ioe) {
+            logger.error("Failed to record dead letter for service " + category + ':' + name, ioe) ;
+        }
+    }
+
+    /**
+     * Get the dead letter store, once initialised.
+     * @return The store, or null if the action is not initialised.
+     */
+    public DeadLetterStore getStore() {
+        synchronized(STORES) {
+            return store ;
+        }
+    }
+
+    /**
+     * Remove the snapshot of the received message.
+     * @param message The message notified to the callback.
+     * @return The message received by this action, or null if not snapshotted.
+     */
+    private Message removeReceived(final Message message) {
+        final Snapshot snapshot ;
+        synchronized(inFlight) {
+            snapshot = (inFlight.isEmpty() ? null : inFlight.remove(message)) ;
+        }
+        return (snapshot == null ? null : snapshot.message) ;
+    }
+
+    /**
+     * Encode the snapshot of the received message.
+     * @param received The message received by this action, or null if not snapshotted.
+     * @return The encoded message, or null if not snapshotted or the encoding failed.
+     */
+    private byte[] encode(final Message received) {
+        if (received == null) {
+            return null ;
+        }
+        try {
+            return BinaryMessageCodec.encode(received) ;
+        } catch (final IOException ioe) {
+            logger.warn("Failed to encode received message for service " + category + ':' + name
+                + ", recording the message as it reached the failing action", ioe) ;
+            return null ;
+        }
+    }
+
+    /**
+     * Discard the snapshots whose outcome could not be matched, because the
+     * message was replaced.  Must be called holding the in flight lock.
+     * @param now The current time.
+     */
+    private void purgeExpired(final long now) {
+        final Iterator<Snapshot> snapshots = inFlight.values().iterator() ;
+        while(snapshots.hasNext()) {
+            if (now - snapshots.next().taken >= SNAPSHOT_EXPIRY) {
+                snapshots.remove() ;
+            }
+        }
+    }
+
+    /**
+     * Locate a service attribute on the action configuration or its enclosing elements.
+     * @param config The action configuration.
+     * @param attribute The attribute name.
+     * @return The attribute value, or null if not present.
+     */
+    private static String getServiceAttribute(final ConfigTree config, final String attribute) {
+        for(ConfigTree current = config ; current != null ; current = current.getParent()) {
+            final String value = current.getAttribute(attribute) ;
+            if (value != null) {
+                return value ;
+            }
+        }
+        return null ;
+    }
+
+    /**
+     * A snapshot of a message in flight.
+     */
+    private static final class Snapshot {
+        final Message message ;
+        final long taken ;
+
+        Snapshot(final Message message, final long taken) {
+            this.message = message ;
+            this.taken = taken ;
+        }
+    }
+
+    /**
+     * A store shared by the actions configured with the same directory.
+     */
+    private static final class SharedStore {
+        final DeadLetterStore store ;
+        int references ;
+
+        SharedStore(final DeadLetterStore store) {
+            this.store = store ;
+        }
+    }
+}
@@ -0,0 +1,488 @@
+package org.jboss.soa.esb.actions;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.jboss.soa.esb.ConfigurationException;
+import org.jboss.soa.esb.addressing.Call;
+import org.jboss.soa.esb.helpers.ConfigTree;
+import org.jboss.soa.esb.listeners.message.MessageDeliverException;
+import org.jboss.soa.esb.message.CopyOnWriteMessage;
+import org.jboss.soa.esb.message.Message;
+import org.jboss.soa.esb.message.MessagePayloadProxy;
+import org.jboss.soa.esb.message.body.content.BufferPayload;
+import org.jboss.soa.esb.message.body.content.BytesBody;
+
+/**
+ * Idempotent receiver, filtering messages which have already been seen within a time window.
+ * <p/>
+ * Each message is identified by a 64 bit fingerprint of its message id or, if
+ * the dedupKey attribute is "payload", of its payload.  The fingerprint is
+ * checked against two tiers:
+ * <ul>
+ * <li>a lock striped cache of recently seen fingerprints, giving an exact answer
+ * for the most recent messages, and</li>
+ * <li>a rolling Bloom filter of two generations, each covering one time window,
+ * remembering older fingerprints in bounded memory at the cost of a small false
+ * positive rate.</li>
+ * </ul>
+ * A fingerprint is remembered for at least the dedupWindow and at most twice the
+ * window, depending on the age of the Bloom filter generation it was added to.
+ * Messages without a message id, or without a payload, are always accepted, as
+ * are messages whose buffer payload has already been released.
+ * <p/>
+ * An accepted fingerprint is reserved in the recent cache, so copies arriving
+ * while the message is being processed are filtered, and is only added to the
+ * Bloom filter once the pipeline has processed the message successfully.  If the
+ * pipeline fails the reservation is withdrawn, so the redelivery of the message
+ * is processed.  The reservations in flight are tracked by the action, keyed by
+ * the identity of the message, so the message itself is not modified.  If a later
+ * action replaces the message the outcome cannot be matched to the reservation,
+ * which then simply expires from the recent cache at the end of the window.
+ * Duplicates are dropped by terminating the pipeline or, if the duplicateAction
+ * attribute is "fault", reported through an exception so the preceding actions
+ * see it in processException.
+ */
+public class DuplicateFilter extends AbstractActionPipelineProcessor {
+
+    public static final String DEDUP_KEY = "dedupKey" ;
+    public static final String DEDUP_WINDOW = "dedupWindow" ;
+    public static final String DEDUP_CACHE_SIZE = "dedupCacheSize" ;
+    public static final String DEDUP_EXPECTED_MESSAGES = "dedupExpectedMessages" ;
+    public static final String DEDUP_FALSE_POSITIVE_RATE = "dedupFalsePositiveRate" ;
+    public static final String DUPLICATE_ACTION = "duplicateAction" ;
+
+    public static final String KEY_MESSAGE_ID = "messageId" ;
+    public static final String KEY_PAYLOAD = "payload" ;
+    public static final String ACTION_DROP = "drop" ;
+    public static final String ACTION_FAULT = "fault" ;
+
+    public static final long DEFAULT_DEDUP_WINDOW = 300000 ;
+    public static final int DEFAULT_DEDUP_CACHE_SIZE = 65536 ;
+    public static final int DEFAULT_DEDUP_EXPECTED_MESSAGES = 1000000 ;
+    public static final float DEFAULT_DEDUP_FALSE_POSITIVE_RATE = 0.001f ;
+
+    /**
+     * The number of cache stripes.
+     */
+    private static final int STRIPES = 64 ;
+
+    /**
+     * The number of reservations between purges of unmatched in flight reservations.
+     */
+    private static final int PURGE_INTERVAL = 1024 ;
+
+    private static final long FNV_SEED = 0xcbf29ce484222325L ;
+    private static final long FNV_PRIME = 0x100000001b3L ;
+
+    private final MessagePayloadProxy payloadProxy ;
+    private final boolean payloadKey ;
+    private final boolean fault ;
+    private final long window ;
+
+    /**
+     * The recent fingerprint cache stripes.
+     */
+    private final RecentStripe[] stripes ;
+    /**
+     * The number of bits in each Bloom filter generation.
+     */
+    private final int bloomBits ;
+    /**
+     * The number of hash functions of the Bloom filter.
+     */
+    private final int bloomHashes ;
+    /**
+     * The Bloom filter generation receiving new fingerprints.
+     */
+    private volatile AtomicLongArray currentBloom ;
+    /**
+     * The previous Bloom filter generation.
+     */
+    private volatile AtomicLongArray previousBloom ;
+    /**
+     * The start of the current generation.
+     */
+    private volatile long generationStart = System.currentTimeMillis() ;
+
+    /**
+     * The reservations of the messages in flight, keyed by message identity.
+     */
+    private final Map<Message, Reservation> inFlight = new IdentityHashMap<Message, Reservation>() ;
+    /**
+     * The number of reservations made.
+     */
+    private final AtomicLong reservationCount = new AtomicLong() ;
+
+    private final AtomicLong checkedCount = new AtomicLong() ;
+    private final AtomicLong duplicateCount = new AtomicLong() ;
+    private final AtomicLong probableDuplicateCount = new AtomicLong() ;
+
+    /**
+     * Public constructor.
+     *
+     * @param config Configuration.
+     * @throws ConfigurationException for invalid key, window or sizing attributes.
+     */
+    public DuplicateFilter(final ConfigTree config) throws ConfigurationException {
+        final String key = config.getAttribute(DEDUP_KEY, KEY_MESSAGE_ID) ;
+        if (KEY_PAYLOAD.equals(key)) {
+            payloadKey = true ;
+        } else if (KEY_MESSAGE_ID.equals(key)) {
+            payloadKey = false ;
+        } else {
+            throw new ConfigurationException("Invalid " + DEDUP_KEY + " value of " + key) ;
+        }
+        final String duplicateAction = config.getAttribute(DUPLICATE_ACTION, ACTION_DROP) ;
+        if (ACTION_FAULT.equals(duplicateAction)) {
+            fault = true ;
+        } else if (ACTION_DROP.equals(duplicateAction)) {
+            fault = false ;
+        } else {
+            throw new ConfigurationException("Invalid " + DUPLICATE_ACTION + " value of " + duplicateAction) ;
+        }
+        window = config.getLongAttribute(DEDUP_WINDOW, DEFAULT_DEDUP_WINDOW) ;
+        if (window < 1) {
+            throw new ConfigurationException("Invalid " + DEDUP_WINDOW + " value of " + window) ;
+        }
+        final long cacheSize = config.getLongAttribute(DEDUP_CACHE_SIZE, DEFAULT_DEDUP_CACHE_SIZE) ;
+        if ((cacheSize < STRIPES) || (cacheSize > Integer.MAX_VALUE)) {
+            throw new ConfigurationException("Invalid " + DEDUP_CACHE_SIZE + " value of " + cacheSize) ;
+        }
+        final long expected = config.getLongAttribute(DEDUP_EXPECTED_MESSAGES, DEFAULT_DEDUP_EXPECTED_MESSAGES) ;
+        final float fpp = config.getFloatAttribute(DEDUP_FALSE_POSITIVE_RATE, DEFAULT_DEDUP_FALSE_POSITIVE_RATE) ;
+        if ((expected < 1) || (fpp <= 0) || (fpp >= 1)) {
+            throw new ConfigurationException("Invalid Bloom filter sizing of " + expected + " messages at rate " + fpp) ;
+        }
+        final double bits = Math.ceil(-expected * Math.log(fpp) / (Math.log(2) * Math.log(2))) ;
+        if (bits > Integer.MAX_VALUE - 63) {
+            throw new ConfigurationException("Bloom filter of " + (long)bits + " bits is too large") ;
+        }
+        bloomBits = (int)Math.max(64, bits) ;
+        bloomHashes = Math.max(1, (int)Math.round(bloomBits / (double)expected * Math.log(2))) ;
+        currentBloom = new AtomicLongArray((bloomBits + 63) >>> 6) ;
+        previousBloom = new AtomicLongArray((bloomBits + 63) >>> 6) ;
+
+        stripes = new RecentStripe[STRIPES] ;
+        for(int count = 0 ; count < STRIPES ; count++) {
+            stripes[count] = new RecentStripe((int)(cacheSize / STRIPES), window) ;
+        }
+
+        final String primaryDataLocation = config.getAttribute("datalocation") ;
+        if (primaryDataLocation != null) {
+            config.setAttribute(MessagePayloadProxy.GET_PAYLOAD_LOCATION, primaryDataLocation) ;
+            payloadProxy = new MessagePayloadProxy(config) ;
+        } else {
+            payloadProxy = new MessagePayloadProxy(config, new String[] {BytesBody.BYTES_LOCATION}, new String[] {BytesBody.BYTES_LOCATION}) ;
+        }
+        payloadProxy.setNullGetPayloadHandling(MessagePayloadProxy.NullPayloadHandling.NONE) ;
+    }
+
+    public Message process(final Message message) throws ActionProcessingException {
+        final long fingerprint ;
+        if (payloadKey) {
+            final Object payload ;
+            try {
+                payload = payloadProxy.getPayload(CopyOnWriteMessage.forReading(message)) ;
+            } catch (final MessageDeliverException mde) {
+                throw new ActionProcessingException(mde) ;
+            }
+            if (payload == null) {
+                return message ;
+            }
+            try {
+                fingerprint = fingerprint(payload) ;
+            } catch (final IllegalStateException ise) {
+                // released buffer payload, nothing to fingerprint
+                return message ;
+            }
+        } else {
+            final Call call = CopyOnWriteMessage.forReading(message).getHeader().getCall() ;
+            final URI messageID = (call != null ? call.getMessageID() : null) ;
+            if (messageID == null) {
+                return message ;
+            }
+            fingerprint = fingerprint(messageID.toString()) ;
+        }
+
+        if (!isDuplicate(fingerprint)) {
+            reserve(message, fingerprint) ;
+            return message ;
+        }
+        if (fault) {
+            throw new ActionProcessingException("Duplicate message detected") ;
+        }
+        return null ;
+    }
+
+    public void processSuccess(final Message message) {
+        final Reservation reservation = release(message) ;
+        if (reservation != null) {
+            commit(reservation.fingerprint) ;
+        }
+    }
+
+    public void processException(final Message message, final Throwable th) {
+        final Reservation reservation = release(message) ;
+        if (reservation != null) {
+            withdraw(reservation.fingerprint) ;
+        }
+    }
+
+    /**
+     * Check the fingerprint, reserving it in the recent cache if it has not been seen.
+     * @param fingerprint The fingerprint.
+     * @return true if the fingerprint has been seen within the window, false otherwise.
+     */
+    boolean isDuplicate(final long fingerprint) {
+        checkedCount.incrementAndGet() ;
+        final long now = System.currentTimeMillis() ;
+        if (now - generationStart >= window) {
+            rotate(now) ;
+        }
+        final RecentStripe stripe = stripes[(int)(mix(fingerprint) >>> 58)] ;
+        final Long key = Long.valueOf(fingerprint) ;
+        synchronized(stripe) {
+            if (stripe.containsRecent(key, now)) {
+                duplicateCount.incrementAndGet() ;
+                return true ;
+            }
+            if (bloomContains(currentBloom, fingerprint) || bloomContains(previousBloom, fingerprint)) {
+                probableDuplicateCount.incrementAndGet() ;
+                return true ;
+            }
+            stripe.put(key, Long.valueOf(now)) ;
+        }
+        return false ;
+    }
+
+    /**
+     * Remember the reserved fingerprint of a successfully processed message in the Bloom filter.
+     * @param fingerprint The fingerprint.
+     */
+    void commit(final long fingerprint) {
+        bloomAdd(currentBloom, fingerprint) ;
+    }
+
+    /**
+     * Withdraw the reservation of the fingerprint of a message which failed processing.
+     * @param fingerprint The fingerprint.
+     */
+    void withdraw(final long fingerprint) {
+        final RecentStripe stripe = stripes[(int)(mix(fingerprint) >>> 58)] ;
+        synchronized(stripe) {
+            stripe.remove(Long.valueOf(fingerprint)) ;
+        }
+    }
+
+    /**
+     * Get the number of messages checked.
+     * @return The number of messages checked.
+     */
+    public long getCheckedCount() {
+        return checkedCount.get() ;
+    }
+
+    /**
+     * Get the number of duplicates found in the recent cache.
+     * @return The number of exact duplicates.
+     */
+    public long getDuplicateCount() {
+        return duplicateCount.get() ;
+    }
+
+    /**
+     * Get the number of duplicates found only in the Bloom filter, which may include false positives.
+     * @return The number of probable duplicates.
+     */
+    public long getProbableDuplicateCount() {
+        return probableDuplicateCount.get() ;
+    }
+
+    /**
+     * Estimate the current false positive rate of the Bloom filter from the proportion of bits set.
+     * @return The estimated probability of reporting an unseen message as a duplicate.
+     */
+    public double getEstimatedFalsePositiveRate() {
+        final double current = fillRatio(currentBloom) ;
+        final double previous = fillRatio(previousBloom) ;
+        final double currentRate = Math.pow(current, bloomHashes) ;
+        final double previousRate = Math.pow(previous, bloomHashes) ;
+        return currentRate + previousRate - (currentRate * previousRate) ;
+    }
+
+    /**
+     * Start a new Bloom filter generation, discarding the oldest.
+     * @param now The current time.
+     */
+    private synchronized void rotate(final long now) {
+        if (now - generationStart < window) {
+            return ;
+        }
+        final AtomicLongArray oldest = previousBloom ;
+        for(int count = 0 ; count < oldest.length() ; count++) {
+            oldest.set(count, 0) ;
+        }
+        previousBloom = currentBloom ;
+        currentBloom = oldest ;
+        generationStart = now ;
+    }
+
+    private boolean bloomContains(final AtomicLongArray bloom, final long fingerprint) {
+        final int hash1 = (int)fingerprint ;
+        final int hash2 = (int)(fingerprint >>> 32) ;
+        for(int count = 1 ; count <= bloomHashes ; count++) {
+            final int bit = ((hash1 + count * hash2) & Integer.MAX_VALUE) % bloomBits ;
+            if ((bloom.get(bit >>> 6) & (1L << bit)) == 0) {
+                return false ;
+            }
+        }
+        return true ;
+    }
+
+    private void bloomAdd(final AtomicLongArray bloom, final long fingerprint) {
+        final int hash1 = (int)fingerprint ;
+        final int hash2 = (int)(fingerprint >>> 32) ;
+        for(int count = 1 ; count <= bloomHashes ; count++) {
+            final int bit = ((hash1 + count * hash2) & Integer.MAX_VALUE) % bloomBits ;
+            final int index = bit >>> 6 ;
+            final long mask = 1L << bit ;
+            long current = bloom.get(index) ;
+            while(((current & mask) == 0) && !bloom.compareAndSet(index, current, current | mask)) {
+                current = bloom.get(index) ;
+            }
+        }
+    }
+
+    private double fillRatio(final AtomicLongArray bloom) {
+        long set = 0 ;
+        for(int count = 0 ; count < bloom.length() ; count++) {
+            set += Long.bitCount(bloom.get(count)) ;
+        }
+        return (double)set / bloomBits ;
+    }
+
+    /**
+     * Track the reservation of the message until its outcome is notified.
+     * @param message The message.
+     * @param fingerprint The reserved fingerprint.
+     */
+    private void reserve(final Message message, final long fingerprint) {
+        final long now = System.currentTimeMillis() ;
+        synchronized(inFlight) {
+            inFlight.put(message, new Reservation(fingerprint, now)) ;
+            if ((reservationCount.incrementAndGet() % PURGE_INTERVAL) == 0) {
+                purgeUnmatched(now) ;
+            }
+        }
+    }
+
+    /**
+     * Stop tracking the reservation of the message.
+     * @param message The message notified to the callback.
+     * @return The reservation, or null if the message did not reserve a fingerprint.
+     */
+    private Reservation release(final Message message) {
+        synchronized(inFlight) {
+            return (inFlight.isEmpty() ? null : inFlight.remove(message)) ;
+        }
+    }
+
+    /**
+     * Discard the reservations whose outcome could not be matched, because the
+     * message was replaced, once they have expired from the recent cache.  Must be
+     * called holding the in flight lock.
+     * @param now The current time.
+     */
+    private void purgeUnmatched(final long now) {
+        final Iterator<Reservation> reservations = inFlight.values().iterator() ;
+        while(reservations.hasNext()) {
+            if (now - reservations.next().reserved >= window) {
+                reservations.remove() ;
+            }
+        }
+    }
+
+    /**
+     * Compute the fingerprint of a payload.
+     * @param payload The payload.
+     * @return The 64 bit fingerprint.
+     */
+    private static long fingerprint(final Object payload) {
+        if (payload instanceof byte[]) {
+            final byte[] bytes = (byte[])payload ;
+            long hash = FNV_SEED ;
+            for(int count = 0 ; count < bytes.length ; count++) {
+                hash = (hash ^ (bytes[count] & 0xff)) * FNV_PRIME ;
+            }
+            return mix(hash) ;
+        } else if (payload instanceof BufferPayload) {
+            final ByteBuffer buffer = ((BufferPayload)payload).asBuffer() ;
+            long hash = FNV_SEED ;
+            while(buffer.hasRemaining()) {
+                hash = (hash ^ (buffer.get() & 0xff)) * FNV_PRIME ;
+            }
+            return mix(hash) ;
+        } else {
+            final String value = payload.toString() ;
+            long hash = FNV_SEED ;
+            for(int count = 0 ; count < value.length() ; count++) {
+                hash = (hash ^ value.charAt(count)) * FNV_PRIME ;
+            }
+            return mix(hash) ;
+        }
+    }
+
+    /**
+     * Spread the bits of the hash.
+     */
+    private static long mix(final long hash) {
+        long mixed = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL ;
+        mixed = (mixed ^ (mixed >>> 33)) * 0xc4ceb9fe1a85ec53L ;
+        return mixed ^ (mixed >>> 33) ;
+    }
+
+    /**
+     * A fingerprint reserved for a message in flight.
+     */
+    private static final class Reservation {
+        private final long fingerprint ;
+        private final long reserved ;
+
+        Reservation(final long fingerprint, final long reserved) {
+            this.fingerprint = fingerprint ;
+            this.reserved = reserved ;
+        }
+    }
+
+    /**
+     * A stripe of the recent fingerprint cache, guarded by its own monitor.
+     */
+    private static final class RecentStripe extends LinkedHashMap<Long, Long> {
+        private static final long serialVersionUID = 4532063451732960872L;
+
+        private final int capacity ;
+        private final long window ;
+
+        RecentStripe(final int capacity, final long window) {
+            super(capacity * 2, 0.75f, false) ;
+            this.capacity = capacity ;
+            this.window = window ;
+        }
+
+        boolean containsRecent(final Long key, final long now) {
+            final Long seen = get(key) ;
+            return ((seen != null) && (now - seen.longValue() < window)) ;
+        }
+
+        protected boolean removeEldestEntry(final Map.Entry<Long, Long> eldest) {
+            return (size() > capacity) ;
+        }
+    }
+}
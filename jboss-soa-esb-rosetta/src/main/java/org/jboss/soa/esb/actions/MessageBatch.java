@@ -0,0 +1,160 @@
+package org.jboss.soa.esb.actions;
+
+import java.util.List;
+
+import org.jboss.soa.esb.message.Message;
+
+/**
+ * A micro-batch of messages delivered to a {@link BatchActionPipelineProcessor}.
+ * <p/>
+ * Each entry carries its own outcome so that the per-message semantics of the
+ * pipeline are preserved: an action replaces an entry with the message to pass to
+ * the next stage, terminates it by setting it to null or fails it with the
+ * throwable to report through processException.  Entries which have been
+ * terminated or failed are no longer active and are skipped by later stages.
+ */
+public final class MessageBatch {
+
+    /**
+     * The messages, shared with any enclosing batch.
+     */
+    private final Message[] messages ;
+    /**
+     * The failures, shared with any enclosing batch.
+     */
+    private final Throwable[] failures ;
+    /**
+     * The position of the first entry of this batch.
+     */
+    private final int offset ;
+    /**
+     * The number of entries in this batch.
+     */
+    private final int size ;
+
+    /**
+     * Create a batch containing the specified messages.
+     * @param messages The messages.
+     */
+    public MessageBatch(final List<Message> messages) {
+        this(messages.toArray(new Message[messages.size()]), new Throwable[messages.size()], 0, messages.size()) ;
+    }
+
+    private MessageBatch(final Message[] messages, final Throwable[] failures, final int offset, final int size) {
+        this.messages = messages ;
+        this.failures = failures ;
+        this.offset = offset ;
+        this.size = size ;
+    }
+
+    /**
+     * Get the number of entries in the batch.
+     * @return The number of entries.
+     */
+    public int size() {
+        return size ;
+    }
+
+    /**
+     * Get the current message of the entry.
+     * @param index The position of the entry.
+     * @return The message, or null if the entry has been terminated or failed.
+     */
+    public Message get(final int index) {
+        return messages[position(index)] ;
+    }
+
+    /**
+     * Replace the message of the entry.
+     * @param index The position of the entry.
+     * @param message The message to pass to the next stage, or null to terminate the entry.
+     */
+    public void set(final int index, final Message message) {
+        messages[position(index)] = message ;
+    }
+
+    /**
+     * Fail the entry.
+     * @param index The position of the entry.
+     * @param cause The throwable to report through processException.
+     */
+    public void fail(final int index, final Throwable cause) {
+        failures[position(index)] = cause ;
+    }
+
+    /**
+     * Get the failure of the entry.
+     * @param index The position of the entry.
+     * @return The failure, or null if the entry has not failed.
+     */
+    public Throwable getFailure(final int index) {
+        return failures[position(index)] ;
+    }
+
+    /**
+     * Is the entry still being processed?
+     * @param index The position of the entry.
+     * @return true if the entry has neither been terminated nor failed, false otherwise.
+     */
+    public boolean isActive(final int index) {
+        final int position = position(index) ;
+        return ((messages[position] != null) && (failures[position] == null)) ;
+    }
+
+    /**
+     * Get the number of entries still being processed.
+     * @return The number of active entries.
+     */
+    public int getActiveCount() {
+        int active = 0 ;
+        for(int count = 0 ; count < size ; count++) {
+            if (isActive(count)) {
+                active++ ;
+            }
+        }
+        return active ;
+    }
+
+    /**
+     * Create a view over a range of entries.  Changes made through the view are
+     * visible through this batch.
+     * @param fromIndex The position of the first entry, inclusive.
+     * @param toIndex The position of the last entry, exclusive.
+     * @return The view.
+     */
+    public MessageBatch subBatch(final int fromIndex, final int toIndex) {
+        if ((fromIndex < 0) || (toIndex > size) || (fromIndex > toIndex)) {
+            throw new IndexOutOfBoundsException("Invalid range " + fromIndex + " to " + toIndex + " for batch of size " + size) ;
+        }
+        return new MessageBatch(messages, failures, offset + fromIndex, toIndex - fromIndex) ;
+    }
+
+    /**
+     * Process each active entry through {@link ActionPipelineProcessor#process(Message)},
+     * recording the outcome of each entry.
+     * @param processor The action processor.
+     */
+    public void processEach(final ActionPipelineProcessor processor) {
+        for(int count = 0 ; count < size ; count++) {
+            if (isActive(count)) {
+                try {
+                    set(count, processor.process(get(count))) ;
+                } catch (final Throwable th) {
+                    fail(count, th) ;
+                }
+            }
+        }
+    }
+
+    /**
+     * Map the batch position onto the shared arrays.
+     * @param index The position of the entry.
+     * @return The array position.
+     */
+    private int position(final int index) {
+        if ((index < 0) || (index >= size)) {
+            throw new IndexOutOfBoundsException("Index " + index + " for batch of size " + size) ;
+        }
+        return offset + index ;
+    }
+}
@@ -0,0 +1,162 @@
+package org.jboss.soa.esb.actions;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.soa.esb.ConfigurationException;
+import org.jboss.soa.esb.helpers.ConfigTree;
+import org.jboss.soa.esb.listeners.message.CompiledActionPipeline;
+import org.jboss.soa.esb.message.Attachment;
+import org.jboss.soa.esb.message.Message;
+
+/**
+ * Split/process/aggregate action for message attachments.
+ * <p/>
+ * Each unnamed attachment which is itself a message is processed through the
+ * sub-pipeline formed by the actions nested within this action.  The attachments
+ * are processed in parallel on a pool of attachmentThreads threads, so the latency
+ * of the action follows the slowest attachment rather than the sum of them.  Once
+ * all have completed the results replace the attachments in their original
+ * positions, an attachment whose sub-pipeline terminates keeps its original message.
+ * <p/>
+ * The outcomes are collected as the attachments complete.  The first failure
+ * cancels the attachments still being processed and is raised so that the
+ * preceding actions are notified through processException.  No attachment is
+ * replaced on failure, but the attached messages are processed in place and may
+ * already have been modified by the actions of the sub-pipeline.
+ */
+public class ParallelAttachmentProcessor extends AbstractActionPipelineProcessor {
+
+    public static final String ATTACHMENT_THREADS = "attachmentThreads" ;
+
+    private final CompiledActionPipeline pipeline ;
+    private final int threads ;
+    private ExecutorService executor ;
+
+    /**
+     * Public constructor.
+     *
+     * @param config Configuration, containing the actions of the sub-pipeline.
+     * @throws ConfigurationException for errors creating the sub-pipeline or an invalid thread count.
+     */
+    public ParallelAttachmentProcessor(final ConfigTree config) throws ConfigurationException {
+        final long threadCount = config.getLongAttribute(ATTACHMENT_THREADS, Runtime.getRuntime().availableProcessors()) ;
+        if ((threadCount < 1) || (threadCount > 1024)) {
+            throw new ConfigurationException("Invalid " + ATTACHMENT_THREADS + " value of " + threadCount) ;
+        }
+        threads = (int)threadCount ;
+        pipeline = new CompiledActionPipeline(config) ;
+    }
+
+    public synchronized void initialise() throws ActionLifecycleException {
+        pipeline.initialise() ;
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(), new AttachmentThreadFactory()) ;
+    }
+
+    public synchronized void destroy() throws ActionLifecycleException {
+        if (executor != null) {
+            executor.shutdown() ;
+            executor = null ;
+        }
+        pipeline.destroy() ;
+    }
+
+    public Message process(final Message message) throws ActionProcessingException {
+        final Attachment attachment = message.getAttachment() ;
+        final int count = attachment.getUnnamedCount() ;
+        final List<Integer> positions = new ArrayList<Integer>(count) ;
+        final List<Callable<Message>> tasks = new ArrayList<Callable<Message>>(count) ;
+        for(int index = 0 ; index < count ; index++) {
+            final Object item = attachment.itemAt(index) ;
+            if (item instanceof Message) {
+                final Message attachedMessage = (Message)item ;
+                positions.add(Integer.valueOf(index)) ;
+                tasks.add(new Callable<Message>() {
+                    public Message call() throws ActionProcessingException {
+                        return pipeline.process(attachedMessage) ;
+                    }
+                }) ;
+            }
+        }
+        if (tasks.isEmpty()) {
+            return message ;
+        }
+
+        final ExecutorService currentExecutor ;
+        synchronized(this) {
+            currentExecutor = executor ;
+        }
+        if (currentExecutor == null) {
+            throw new ActionProcessingException("Parallel attachment processor has not been initialised") ;
+        }
+
+        final CompletionService<Message> completionService = new ExecutorCompletionService<Message>(currentExecutor) ;
+        final Map<Future<Message>, Integer> futures = new HashMap<Future<Message>, Integer>() ;
+        final Message[] results = new Message[tasks.size()] ;
+        try {
+            for(int index = 0 ; index < tasks.size() ; index++) {
+                futures.put(completionService.submit(tasks.get(index)), Integer.valueOf(index)) ;
+            }
+            for(int remaining = tasks.size() ; remaining > 0 ; remaining--) {
+                final Future<Message> future = completionService.take() ;
+                results[futures.get(future).intValue()] = future.get() ;
+            }
+        } catch (final ExecutionException ee) {
+            cancel(futures.keySet()) ;
+            final Throwable cause = ee.getCause() ;
+            if (cause instanceof ActionProcessingException) {
+                throw (ActionProcessingException)cause ;
+            }
+            throw new ActionProcessingException("Unexpected exception processing attachment", cause) ;
+        } catch (final InterruptedException ie) {
+            cancel(futures.keySet()) ;
+            Thread.currentThread().interrupt() ;
+            throw new ActionProcessingException("Interrupted while processing attachments", ie) ;
+        } catch (final RejectedExecutionException ree) {
+            cancel(futures.keySet()) ;
+            throw new ActionProcessingException("Parallel attachment processor has been destroyed", ree) ;
+        }
+
+        for(int index = 0 ; index < results.length ; index++) {
+            if (results[index] != null) {
+                attachment.replaceItemAt(positions.get(index).intValue(), results[index]) ;
+            }
+        }
+        return message ;
+    }
+
+    private static void cancel(final Collection<Future<Message>> futures) {
+        for(Future<Message> future: futures) {
+            future.cancel(true) ;
+        }
+    }
+
+    /**
+     * The thread factory for the attachment pool.
+     */
+    private static final class AttachmentThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger() ;
+
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "ParallelAttachmentProcessor-" + count.incrementAndGet()) ;
+            thread.setDaemon(true) ;
+            return thread ;
+        }
+    }
+}
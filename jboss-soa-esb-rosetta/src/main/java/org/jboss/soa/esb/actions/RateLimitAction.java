@@ -0,0 +1,522 @@
+package org.jboss.soa.esb.actions;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.jboss.soa.esb.ConfigurationException;
+import org.jboss.soa.esb.helpers.ConfigTree;
+import org.jboss.soa.esb.message.Context;
+import org.jboss.soa.esb.message.CopyOnWriteMessage;
+import org.jboss.soa.esb.message.Message;
+
+/**
+ * Rate limiting action, shedding load once the configured rate is exceeded.
+ * <p/>
+ * Messages are admitted at up to rateLimit messages per second with bursts of up
+ * to rateLimitBurst messages.  If the rateLimitKey attribute names one or more
+ * message properties, or context entries when rateLimitKeyLocation is "context",
+ * each distinct combination of their values is limited separately.
+ * <p/>
+ * Each limit is a token bucket split into stripes, each stripe holding an equal
+ * share of the rate and burst.  A stripe is a single atomic theoretical arrival
+ * time, advanced by compare and swap, so admitting a message takes no lock.  A
+ * thread draws on the stripe selected by its identity and only moves on to the
+ * other stripes when its own is exhausted.
+ * <p/>
+ * Messages exceeding the limit are handled according to the rateLimitPolicy:
+ * <ul>
+ * <li>reject, the default, raises a {@link RateLimitExceededException} so the
+ * preceding actions are notified through processException,</li>
+ * <li>delay holds the message until the stripe which refills first admits it,
+ * raising an exception if that would take longer than rateLimitMaxDelay
+ * milliseconds, and</li>
+ * <li>shed drops the message, raising a {@link RateLimitExceededException} so the
+ * gateway does not mistake the dropped message for one processed successfully,
+ * counting it as shed rather than rejected.</li>
+ * </ul>
+ * If rateLimitAdaptive is true the action measures the latency of the subsequent
+ * actions and, while their mean latency exceeds rateLimitTargetLatency
+ * milliseconds, reduces the rate in proportion to the excess, down to
+ * rateLimitMinRate.  The rate recovers additively once the latency falls below
+ * the target.
+ */
+public class RateLimitAction extends AbstractActionPipelineProcessor {
+
+    public static final String RATE_LIMIT = "rateLimit" ;
+    public static final String RATE_LIMIT_BURST = "rateLimitBurst" ;
+    public static final String RATE_LIMIT_KEY = "rateLimitKey" ;
+    public static final String RATE_LIMIT_KEY_LOCATION = "rateLimitKeyLocation" ;
+    public static final String RATE_LIMIT_POLICY = "rateLimitPolicy" ;
+    public static final String RATE_LIMIT_MAX_DELAY = "rateLimitMaxDelay" ;
+    public static final String RATE_LIMIT_STRIPES = "rateLimitStripes" ;
+    public static final String RATE_LIMIT_MAX_KEYS = "rateLimitMaxKeys" ;
+    public static final String RATE_LIMIT_ADAPTIVE = "rateLimitAdaptive" ;
+    public static final String RATE_LIMIT_TARGET_LATENCY = "rateLimitTargetLatency" ;
+    public static final String RATE_LIMIT_MIN_RATE = "rateLimitMinRate" ;
+
+    public static final String LOCATION_PROPERTIES = "properties" ;
+    public static final String LOCATION_CONTEXT = "context" ;
+    public static final String POLICY_REJECT = "reject" ;
+    public static final String POLICY_DELAY = "delay" ;
+    public static final String POLICY_SHED = "shed" ;
+
+    public static final long DEFAULT_RATE_LIMIT_MAX_DELAY = 1000 ;
+    public static final int DEFAULT_RATE_LIMIT_MAX_KEYS = 10000 ;
+
+    /**
+     * The context key holding the time a message was admitted, when adaptive.
+     */
+    private static final String ADMITTED_CONTEXT_KEY = RateLimitAction.class.getName() + ".admitted" ;
+
+    private static final long NANOS_PER_SECOND = 1000000000L ;
+    private static final long NANOS_PER_MILLI = 1000000L ;
+    /**
+     * The interval between adaptive adjustments of the rate.
+     */
+    private static final long ADJUSTMENT_INTERVAL = 100 * NANOS_PER_MILLI ;
+    /**
+     * The minimum interval between purges of idle limits once rateLimitMaxKeys is reached.
+     */
+    private static final long PURGE_INTERVAL = NANOS_PER_SECOND ;
+    /**
+     * The weight of each interval in the smoothed latency.
+     */
+    private static final double LATENCY_SMOOTHING = 0.3 ;
+
+    private static final int POLICY_TYPE_REJECT = 0 ;
+    private static final int POLICY_TYPE_DELAY = 1 ;
+    private static final int POLICY_TYPE_SHED = 2 ;
+
+    private final double maxRate ;
+    private final double minRate ;
+    private final double burst ;
+    private final String[] keyNames ;
+    private final boolean contextKey ;
+    private final int policy ;
+    private final long maxDelay ;
+    private final int stripeCount ;
+    private final int maxKeys ;
+    private final boolean adaptive ;
+    private final long targetLatency ;
+
+    /**
+     * The current rate, in messages per second.
+     */
+    private volatile double rate ;
+    /**
+     * The limits, keyed by the values of the key attributes.
+     */
+    private final ConcurrentMap<Object, StripedBucket> buckets = new ConcurrentHashMap<Object, StripedBucket>() ;
+    /**
+     * The limit shared by all messages when no key is configured, or when the number of keys is exceeded.
+     */
+    private final StripedBucket sharedBucket ;
+    /**
+     * The time of the last purge of idle limits.
+     */
+    private final AtomicLong lastPurge = new AtomicLong(System.nanoTime() - PURGE_INTERVAL) ;
+
+    private final AtomicLong admittedCount = new AtomicLong() ;
+    private final AtomicLong delayedCount = new AtomicLong() ;
+    private final AtomicLong rejectedCount = new AtomicLong() ;
+    private final AtomicLong shedCount = new AtomicLong() ;
+
+    /**
+     * The latency total and sample count of the current adjustment interval.
+     */
+    private final AtomicLong latencyTotal = new AtomicLong() ;
+    private final AtomicLong latencySamples = new AtomicLong() ;
+    /**
+     * The start of the current adjustment interval.
+     */
+    private final AtomicLong adjustmentStart = new AtomicLong(System.nanoTime()) ;
+    /**
+     * The smoothed latency, in nanoseconds, only updated by the thread adjusting the rate.
+     */
+    private volatile double smoothedLatency ;
+
+    /**
+     * Public constructor.
+     *
+     * @param config Configuration.
+     * @throws ConfigurationException for invalid rate, key or policy attributes.
+     */
+    public RateLimitAction(final ConfigTree config) throws ConfigurationException {
+        maxRate = config.getFloatAttribute(RATE_LIMIT, 0) ;
+        if (maxRate <= 0) {
+            throw new ConfigurationException("Invalid or missing " + RATE_LIMIT + " value of " + config.getAttribute(RATE_LIMIT)) ;
+        }
+        burst = config.getFloatAttribute(RATE_LIMIT_BURST, (float)Math.max(1, maxRate)) ;
+        if (burst < 1) {
+            throw new ConfigurationException("Invalid " + RATE_LIMIT_BURST + " value of " + burst) ;
+        }
+
+        final String keys = config.getAttribute(RATE_LIMIT_KEY) ;
+        keyNames = (keys == null ? new String[0] : splitNames(keys)) ;
+        final String location = config.getAttribute(RATE_LIMIT_KEY_LOCATION, LOCATION_PROPERTIES) ;
+        if (LOCATION_CONTEXT.equals(location)) {
+            contextKey = true ;
+        } else if (LOCATION_PROPERTIES.equals(location)) {
+            contextKey = false ;
+        } else {
+            throw new ConfigurationException("Invalid " + RATE_LIMIT_KEY_LOCATION + " value of " + location) ;
+        }
+
+        final String policyName = config.getAttribute(RATE_LIMIT_POLICY, POLICY_REJECT) ;
+        if (POLICY_REJECT.equals(policyName)) {
+            policy = POLICY_TYPE_REJECT ;
+        } else if (POLICY_DELAY.equals(policyName)) {
+            policy = POLICY_TYPE_DELAY ;
+        } else if (POLICY_SHED.equals(policyName)) {
+            policy = POLICY_TYPE_SHED ;
+        } else {
+            throw new ConfigurationException("Invalid " + RATE_LIMIT_POLICY + " value of " + policyName) ;
+        }
+        final long maxDelayMillis = config.getLongAttribute(RATE_LIMIT_MAX_DELAY, DEFAULT_RATE_LIMIT_MAX_DELAY) ;
+        if (maxDelayMillis < 0) {
+            throw new ConfigurationException("Invalid " + RATE_LIMIT_MAX_DELAY + " value of " + maxDelayMillis) ;
+        }
+        maxDelay = maxDelayMillis * NANOS_PER_MILLI ;
+
+        final long stripes = config.getLongAttribute(RATE_LIMIT_STRIPES, Math.min(64, Runtime.getRuntime().availableProcessors())) ;
+        if ((stripes < 1) || (stripes > 1024)) {
+            throw new ConfigurationException("Invalid " + RATE_LIMIT_STRIPES + " value of " + stripes) ;
+        }
+        // each stripe must be able to hold at least one message
+        stripeCount = (int)Math.max(1, Math.min(stripes, (long)burst)) ;
+        final long keyLimit = config.getLongAttribute(RATE_LIMIT_MAX_KEYS, DEFAULT_RATE_LIMIT_MAX_KEYS) ;
+        if ((keyLimit < 1) || (keyLimit > Integer.MAX_VALUE)) {
+            throw new ConfigurationException("Invalid " + RATE_LIMIT_MAX_KEYS + " value of " + keyLimit) ;
+        }
+        maxKeys = (int)keyLimit ;
+
+        adaptive = config.getBooleanAttribute(RATE_LIMIT_ADAPTIVE, false) ;
+        if (adaptive) {
+            final long target = config.getLongAttribute(RATE_LIMIT_TARGET_LATENCY, 0) ;
+            if (target <= 0) {
+                throw new ConfigurationException("Invalid or missing " + RATE_LIMIT_TARGET_LATENCY + " value of " + config.getAttribute(RATE_LIMIT_TARGET_LATENCY)) ;
+            }
+            targetLatency = target * NANOS_PER_MILLI ;
+            minRate = config.getFloatAttribute(RATE_LIMIT_MIN_RATE, (float)(maxRate / 10)) ;
+            if ((minRate <= 0) || (minRate > maxRate)) {
+                throw new ConfigurationException("Invalid " + RATE_LIMIT_MIN_RATE + " value of " + minRate) ;
+            }
+        } else {
+            targetLatency = 0 ;
+            minRate = maxRate ;
+        }
+        rate = maxRate ;
+        sharedBucket = new StripedBucket(stripeCount) ;
+    }
+
+    public Message process(final Message message) throws ActionProcessingException {
+        final StripedBucket bucket = getBucket(message) ;
+        final long now = System.nanoTime() ;
+        final long interval = (long)(NANOS_PER_SECOND * stripeCount / rate) ;
+        final long tolerance = (long)(interval * (burst / stripeCount)) ;
+        final int first = (int)(Thread.currentThread().getId() % stripeCount) ;
+
+        boolean admitted = false ;
+        for(int count = 0 ; count < stripeCount ; count++) {
+            if (bucket.acquire((first + count) % stripeCount, now, interval, tolerance, 0) == 0) {
+                admitted = true ;
+                break ;
+            }
+        }
+        if (!admitted) {
+            switch(policy) {
+            case POLICY_TYPE_SHED:
+                shedCount.incrementAndGet() ;
+                throw new RateLimitExceededException("Rate limit of " + (long)rate + " messages per second exceeded, message shed") ;
+            case POLICY_TYPE_DELAY:
+                final long delay = bucket.acquire(bucket.getEarliestStripe(), now, interval, tolerance, maxDelay) ;
+                if (delay < 0) {
+                    rejectedCount.incrementAndGet() ;
+                    throw new RateLimitExceededException("Rate limit of " + (long)rate + " messages per second exceeded, delay would exceed " + (maxDelay / NANOS_PER_MILLI) + "ms") ;
+                }
+                delayedCount.incrementAndGet() ;
+                sleep(delay) ;
+                break ;
+            default:
+                rejectedCount.incrementAndGet() ;
+                throw new RateLimitExceededException("Rate limit of " + (long)rate + " messages per second exceeded") ;
+            }
+        }
+        admittedCount.incrementAndGet() ;
+        if (adaptive) {
+            message.getContext().setContext(ADMITTED_CONTEXT_KEY, Long.valueOf(System.nanoTime())) ;
+        }
+        return message ;
+    }
+
+    public void processSuccess(final Message message) {
+        recordLatency(message) ;
+    }
+
+    public void processException(final Message message, final Throwable th) {
+        recordLatency(message) ;
+    }
+
+    /**
+     * Get the current rate.
+     * @return The rate in messages per second, lower than the rateLimit while adaptive mode is reducing it.
+     */
+    public double getRate() {
+        return rate ;
+    }
+
+    /**
+     * Get the smoothed latency of the subsequent actions, when adaptive.
+     * @return The latency in milliseconds.
+     */
+    public double getSmoothedLatency() {
+        return smoothedLatency / NANOS_PER_MILLI ;
+    }
+
+    public long getAdmittedCount() {
+        return admittedCount.get() ;
+    }
+
+    public long getDelayedCount() {
+        return delayedCount.get() ;
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get() ;
+    }
+
+    public long getShedCount() {
+        return shedCount.get() ;
+    }
+
+    /**
+     * Get the number of separately limited keys.
+     * @return The number of keys.
+     */
+    public int getKeyCount() {
+        return buckets.size() ;
+    }
+
+    /**
+     * Get the limit of the message.
+     * @param message The message.
+     * @return The striped bucket for the values of the key attributes.
+     */
+    private StripedBucket getBucket(final Message message) {
+        if (keyNames.length == 0) {
+            return sharedBucket ;
+        }
+        final Message view = CopyOnWriteMessage.forReading(message) ;
+        final Object key ;
+        if (keyNames.length == 1) {
+            key = getKeyValue(view, keyNames[0]) ;
+        } else {
+            final Object[] values = new Object[keyNames.length] ;
+            for(int count = 0 ; count < keyNames.length ; count++) {
+                values[count] = getKeyValue(view, keyNames[count]) ;
+            }
+            key = Arrays.asList(values) ;
+        }
+        if (key == null) {
+            return sharedBucket ;
+        }
+        final StripedBucket bucket = buckets.get(key) ;
+        if (bucket != null) {
+            return bucket ;
+        }
+        if ((buckets.size() >= maxKeys) && !purgeIdle()) {
+            return sharedBucket ;
+        }
+        final StripedBucket newBucket = new StripedBucket(stripeCount) ;
+        final StripedBucket existing = buckets.putIfAbsent(key, newBucket) ;
+        return (existing != null ? existing : newBucket) ;
+    }
+
+    private Object getKeyValue(final Message message, final String name) {
+        return (contextKey ? message.getContext().getContext(name) : message.getProperties().getProperty(name)) ;
+    }
+
+    /**
+     * Remove the limits which have refilled completely and so are equivalent to new limits.
+     * <p/>
+     * The purge scans every limit, so it runs at most once per purge interval and on
+     * a single thread.  Other callers find the maximum still reached and use the
+     * shared limit.
+     * @return true if the number of keys is now below the maximum, false otherwise.
+     */
+    private boolean purgeIdle() {
+        final long now = System.nanoTime() ;
+        final long last = lastPurge.get() ;
+        if ((now - last < PURGE_INTERVAL) || !lastPurge.compareAndSet(last, now)) {
+            return false ;
+        }
+        final Iterator<StripedBucket> iter = buckets.values().iterator() ;
+        while(iter.hasNext()) {
+            if (iter.next().isIdle(now)) {
+                iter.remove() ;
+            }
+        }
+        return (buckets.size() < maxKeys) ;
+    }
+
+    /**
+     * Record the latency of the subsequent actions and adjust the rate, when adaptive.
+     * @param message The message.
+     */
+    private void recordLatency(final Message message) {
+        if (!adaptive) {
+            return ;
+        }
+        final Context context = message.getContext() ;
+        final Object admitted = context.removeContext(ADMITTED_CONTEXT_KEY) ;
+        if (!(admitted instanceof Long)) {
+            return ;
+        }
+        final long now = System.nanoTime() ;
+        latencyTotal.addAndGet(now - ((Long)admitted).longValue()) ;
+        latencySamples.incrementAndGet() ;
+
+        final long start = adjustmentStart.get() ;
+        if ((now - start >= ADJUSTMENT_INTERVAL) && adjustmentStart.compareAndSet(start, now)) {
+            adjustRate() ;
+        }
+    }
+
+    /**
+     * Adjust the rate from the latency of the completed interval, called by a single thread at a time.
+     */
+    private void adjustRate() {
+        final long samples = latencySamples.getAndSet(0) ;
+        final long total = latencyTotal.getAndSet(0) ;
+        if (samples == 0) {
+            return ;
+        }
+        final double latency = (double)total / samples ;
+        final double smoothed = (smoothedLatency == 0 ? latency :
+            smoothedLatency + LATENCY_SMOOTHING * (latency - smoothedLatency)) ;
+        smoothedLatency = smoothed ;
+
+        final double current = rate ;
+        final double adjusted ;
+        if (smoothed > targetLatency) {
+            // multiplicative decrease in proportion to the excess, at most halving the rate
+            adjusted = current * Math.max(0.5, targetLatency / smoothed) ;
+        } else {
+            // additive increase of 5% of the configured rate
+            adjusted = current + maxRate * 0.05 ;
+        }
+        rate = Math.max(minRate, Math.min(maxRate, adjusted)) ;
+    }
+
+    private static void sleep(final long nanos) throws ActionProcessingException {
+        if (nanos <= 0) {
+            return ;
+        }
+        try {
+            Thread.sleep(nanos / NANOS_PER_MILLI, (int)(nanos % NANOS_PER_MILLI)) ;
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt() ;
+            throw new ActionProcessingException("Interrupted while delayed by rate limit", ie) ;
+        }
+    }
+
+    private static String[] splitNames(final String names) throws ConfigurationException {
+        final String[] split = names.split(",") ;
+        for(int count = 0 ; count < split.length ; count++) {
+            split[count] = split[count].trim() ;
+            if (split[count].length() == 0) {
+                throw new ConfigurationException("Invalid " + RATE_LIMIT_KEY + " value of " + names) ;
+            }
+        }
+        return split ;
+    }
+
+    /**
+     * A token bucket split into stripes.
+     * <p/>
+     * Each stripe is held as its theoretical arrival time, the time at which the
+     * stripe would be full again.  A message is admitted by advancing the time by
+     * the stripe interval, provided the result lies no further in the future than
+     * the burst tolerance.
+     */
+    private static final class StripedBucket {
+        /**
+         * The spacing of the stripes within the array, keeping each on its own cache line.
+         */
+        private static final int STRIPE_SPACING = 8 ;
+
+        /**
+         * The theoretical arrival times of the stripes.
+         */
+        private final AtomicLongArray arrivals ;
+        private final int stripeCount ;
+
+        StripedBucket(final int stripeCount) {
+            this.stripeCount = stripeCount ;
+            arrivals = new AtomicLongArray(stripeCount * STRIPE_SPACING) ;
+            final long now = System.nanoTime() ;
+            for(int count = 0 ; count < stripeCount ; count++) {
+                arrivals.set(count * STRIPE_SPACING, now) ;
+            }
+        }
+
+        /**
+         * Take a token from the stripe.
+         * @param stripe The stripe index.
+         * @param now The current time, in nanoseconds.
+         * @param interval The time taken to refill one token of the stripe.
+         * @param tolerance The burst tolerance of the stripe.
+         * @param maxWait The maximum time the caller will wait for the token.
+         * @return The time the caller must wait before proceeding, or -1 if the token is not available within maxWait.
+         */
+        long acquire(final int stripe, final long now, final long interval, final long tolerance, final long maxWait) {
+            final int index = stripe * STRIPE_SPACING ;
+            while(true) {
+                final long current = arrivals.get(index) ;
+                final long next = Math.max(current, now) + interval ;
+                final long wait = next - now - tolerance ;
+                if (wait > maxWait) {
+                    return -1 ;
+                }
+                if (arrivals.compareAndSet(index, current, next)) {
+                    return Math.max(0, wait) ;
+                }
+            }
+        }
+
+        /**
+         * Get the stripe which refills first.
+         * @return The index of the stripe with the earliest theoretical arrival time.
+         */
+        int getEarliestStripe() {
+            int earliest = 0 ;
+            long earliestArrival = arrivals.get(0) ;
+            for(int count = 1 ; count < stripeCount ; count++) {
+                final long arrival = arrivals.get(count * STRIPE_SPACING) ;
+                if (arrival - earliestArrival < 0) {
+                    earliest = count ;
+                    earliestArrival = arrival ;
+                }
+            }
+            return earliest ;
+        }
+
+        /**
+         * Has every stripe refilled completely?
+         * @param now The current time, in nanoseconds.
+         * @return true if the bucket is full, false otherwise.
+         */
+        boolean isIdle(final long now) {
+            for(int count = 0 ; count < stripeCount ; count++) {
+                if (arrivals.get(count * STRIPE_SPACING) - now > 0) {
+                    return false ;
+                }
+            }
+            return true ;
+        }
+    }
+}
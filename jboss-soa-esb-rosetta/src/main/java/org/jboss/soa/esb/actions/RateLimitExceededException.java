@@ -0,0 +1,20 @@
+package org.jboss.soa.esb.actions;
+
+/**
+ * Exception raised when a message is refused by a rate limit.
+ * <p/>
+ * The exception is raised most often when the service is already overloaded, so
+ * it does not capture a stack trace.
+ */
+public class RateLimitExceededException extends ActionProcessingException {
+
+    private static final long serialVersionUID = -2907251347180254836L;
+
+    public RateLimitExceededException(final String message) {
+        super(message);
+    }
+
+    public Throwable fillInStackTrace() {
+        return this;
+    }
+}
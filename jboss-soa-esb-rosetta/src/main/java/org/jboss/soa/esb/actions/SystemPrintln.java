@@ -1,10 +1,13 @@
 package org.jboss.soa.esb.actions;
 
-import java.io.PrintStream;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
 
 import org.jboss.soa.esb.helpers.ConfigTree;
+import org.jboss.soa.esb.message.CopyOnWriteMessage;
 import org.jboss.soa.esb.message.Message;
 import org.jboss.soa.esb.message.MessagePayloadProxy;
+import org.jboss.soa.esb.message.body.content.BufferPayload;
 import org.jboss.soa.esb.message.body.content.BytesBody;
 import org.jboss.soa.esb.util.Util;
 import org.jboss.soa.esb.listeners.message.MessageDeliverException;
@@ -12,13 +15,15 @@ import org.jboss.soa.esb.listeners.message.MessageDeliverException;
 /**
  * Simple action that prints out the message contents using System.println.
  */
-public class SystemPrintln extends AbstractActionPipelineProcessor {
+public class SystemPrintln extends AbstractActionPipelineProcessor implements BatchActionPipelineProcessor {
 	
 	public static final String PRE_MESSAGE = "message";
 	public static final String FULL_MESSAGE = "printfull";
 	public static final String PRINT_STREAM = "outputstream";
     public static final String DEFAULT_PRE_MESSAGE = "Message structure";
     
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+    
     private MessagePayloadProxy payloadProxy;
     
     private String printlnMessage;
@@ -54,12 +59,79 @@ public class SystemPrintln extends AbstractActionPipelineProcessor {
 
 	public Message process(Message message) throws ActionProcessingException {
 		
-		System.out.println("Process Message: ");
-		System.out.println("Message Type: " + message.getType());
-		System.out.println("Message Header: " + message.getHeader());
-		System.out.println("Message Body: " + message.getBody());
-		System.out.println("Message Content: " + message.getContext());
-		System.out.println("Process Message End");
+		final StringBuilder structure = new StringBuilder();
+		final StringBuilder content = contentBuffer(structure);
+		try {
+			format(CopyOnWriteMessage.forReading(message), structure, content);
+		} finally {
+			print(structure, content);
+		}
+		return message;
+	}
+
+	/**
+	 * Print all messages in the batch, writing to the output once per batch.
+	 * A message which fails to format is marked as failed in the batch, its
+	 * partial output is discarded and the remaining messages are still printed.
+	 * 
+	 * @param batch The batch of messages being processed.
+	 */
+	public void processBatch(MessageBatch batch) throws ActionProcessingException {
+		
+		final StringBuilder structure = new StringBuilder();
+		final StringBuilder content = contentBuffer(structure);
+		try {
+			for (int i = 0; i < batch.size(); i++) {
+				if (batch.isActive(i)) {
+					final int structureLength = structure.length();
+					final int contentLength = content.length();
+					try {
+						format(CopyOnWriteMessage.forReading(batch.get(i)), structure, content);
+					} catch (ActionProcessingException e) {
+						discard(structure, structureLength, content, contentLength);
+						batch.fail(i, e);
+					} catch (RuntimeException e) {
+						discard(structure, structureLength, content, contentLength);
+						batch.fail(i, e);
+					}
+				}
+			}
+		} finally {
+			print(structure, content);
+		}
+	}
+
+	/**
+	 * Discard the partial output of a message which failed to format.
+	 * 
+	 * @param structure The structure buffer.
+	 * @param structureLength The length of the structure buffer before the message.
+	 * @param content The content buffer, possibly the structure buffer.
+	 * @param contentLength The length of the content buffer before the message.
+	 */
+	private static void discard(StringBuilder structure, int structureLength, StringBuilder content, int contentLength) {
+		structure.setLength(structureLength);
+		if (content != structure) {
+			content.setLength(contentLength);
+		}
+	}
+
+	/**
+	 * Format the message into the supplied buffers.
+	 * 
+	 * @param message The message.
+	 * @param structure The buffer receiving the message structure, printed to System.out.
+	 * @param content The buffer receiving the message contents, printed to the configured stream.
+	 * @throws ActionProcessingException for errors retrieving the payload.
+	 */
+	private void format(Message message, StringBuilder structure, StringBuilder content) throws ActionProcessingException {
+		
+		structure.append("Process Message: ").append(LINE_SEPARATOR);
+		structure.append("Message Type: ").append(message.getType()).append(LINE_SEPARATOR);
+		structure.append("Message Header: ").append(message.getHeader()).append(LINE_SEPARATOR);
+		structure.append("Message Body: ").append(message.getBody()).append(LINE_SEPARATOR);
+		structure.append("Message Content: ").append(message.getContext()).append(LINE_SEPARATOR);
+		structure.append("Process Message End").append(LINE_SEPARATOR);
 		
         Object messageObject = null;
         try {
@@ -68,34 +140,41 @@ public class SystemPrintln extends AbstractActionPipelineProcessor {
             throw new ActionProcessingException(e);
         }
 
-		PrintStream stream = (useOutputStream ? System.out : System.err);
-		
-		stream.println(printlnMessage + ": ");
+		content.append(printlnMessage).append(": ").append(LINE_SEPARATOR);
         
         String messageStr=null;
 		
 		if (printFullMessage && (message != null)) {
 			// the message should be responsible for converting itself to a string
             messageStr = message.toString();
-			stream.println("[ "+messageStr+" ]");
+			content.append("[ ").append(messageStr).append(" ]").append(LINE_SEPARATOR);
 
 		} else {
 			if (messageObject instanceof byte[]) {
                 messageStr = Util.format(new String((byte[]) messageObject));
-				stream.println("[" + messageStr + "].");
+				content.append("[").append(messageStr).append("].").append(LINE_SEPARATOR);
+			} else if (messageObject instanceof BufferPayload) {
+				// decode straight from the buffer, large payloads are not formatted
+				content.append("[");
+				append((BufferPayload) messageObject, content);
+				content.append("].").append(LINE_SEPARATOR);
 			} else {
 				if (messageObject != null) {
                     messageStr = Util.format(messageObject.toString());
-					stream.println("[" + messageStr + "].");
+					content.append("[").append(messageStr).append("].").append(LINE_SEPARATOR);
 				}
 				for (int i = 0; i < message.getAttachment().getUnnamedCount(); i++) {
 					Message attachedMessage = (Message) message.getAttachment().itemAt(i);
                     try {
-                        Object payload = payloadProxy.getPayload(attachedMessage);
+                        Object payload = payloadProxy.getPayload(CopyOnWriteMessage.forReading(attachedMessage));
                         if(payload instanceof byte[]) {
-							stream.println("attachment " + i + ": [" + new String((byte[]) payload) + "].");
+							content.append("attachment ").append(i).append(": [").append(new String((byte[]) payload)).append("].").append(LINE_SEPARATOR);
+                        } else if(payload instanceof BufferPayload) {
+							content.append("attachment ").append(i).append(": [");
+							append((BufferPayload) payload, content);
+							content.append("].").append(LINE_SEPARATOR);
                         } else {
-							stream.println("attachment " + i + ": [" + payload + "].");
+							content.append("attachment ").append(i).append(": [").append(payload).append("].").append(LINE_SEPARATOR);
                         }
                     } catch (MessageDeliverException e) {
                         throw new ActionProcessingException(e);
@@ -103,8 +182,50 @@ public class SystemPrintln extends AbstractActionPipelineProcessor {
                 }
 			}
 		}
-		return message;
 	}
 
-	
+	/**
+	 * Decode the buffer payload into the content buffer without copying it onto the heap.
+	 * 
+	 * @param payload The buffer payload.
+	 * @param content The buffer receiving the message contents.
+	 * @throws ActionProcessingException if the payload cannot be decoded.
+	 */
+	private void append(BufferPayload payload, StringBuilder content) throws ActionProcessingException {
+		
+		try {
+			payload.appendTo(content, Charset.defaultCharset());
+		} catch (CharacterCodingException e) {
+			throw new ActionProcessingException(e);
+		} catch (IllegalStateException e) {
+			throw new ActionProcessingException(e);
+		}
+	}
+
+	/**
+	 * Get the buffer receiving the message contents.  If the contents are printed to
+	 * System.out they share the structure buffer, keeping each message's structure
+	 * and contents together.
+	 * 
+	 * @param structure The buffer receiving the message structure.
+	 * @return The buffer receiving the message contents.
+	 */
+	private StringBuilder contentBuffer(StringBuilder structure) {
+		
+		return (useOutputStream ? structure : new StringBuilder());
+	}
+
+	/**
+	 * Print the formatted buffers, taking each stream lock once.
+	 * 
+	 * @param structure The message structure, printed to System.out.
+	 * @param content The message contents, printed to the configured stream.
+	 */
+	private void print(StringBuilder structure, StringBuilder content) {
+		
+		System.out.print(structure);
+		if (content != structure) {
+			System.err.print(content);
+		}
+	}
 }
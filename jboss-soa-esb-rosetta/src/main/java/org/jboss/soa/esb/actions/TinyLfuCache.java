@@ -0,0 +1,220 @@
+package org.jboss.soa.esb.actions;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size and time bounded cache using W-TinyLFU eviction.
+ * <p/>
+ * New entries are placed in a small LRU admission window.  An entry evicted from
+ * the window is only admitted to the main LRU region if it has been requested
+ * more often than the entry it would displace, the request frequencies being
+ * estimated by a count-min sketch of 4 bit counters which is halved periodically
+ * so that old popularity fades.  Entries expire once older than the time to live.
+ * <p/>
+ * The cache is guarded by a single lock.
+ */
+final class TinyLfuCache<K, V> {
+
+    /**
+     * The cached entries awaiting admission to the main region.
+     */
+    private final LinkedHashMap<K, Entry<V>> window ;
+    /**
+     * The admitted entries.
+     */
+    private final LinkedHashMap<K, Entry<V>> main ;
+    /**
+     * The capacity of the admission window.
+     */
+    private final int windowCapacity ;
+    /**
+     * The capacity of the main region.
+     */
+    private final int mainCapacity ;
+    /**
+     * The time to live of an entry in milliseconds, zero if entries do not expire.
+     */
+    private final long ttl ;
+    /**
+     * The request frequency estimates.
+     */
+    private final FrequencySketch sketch ;
+
+    private long hits ;
+    private long misses ;
+    private long evictions ;
+    private long expirations ;
+
+    /**
+     * Create the cache.
+     * @param capacity The maximum number of entries.
+     * @param ttl The time to live of an entry in milliseconds, zero if entries do not expire.
+     */
+    TinyLfuCache(final int capacity, final long ttl) {
+        windowCapacity = Math.max(1, capacity / 100) ;
+        mainCapacity = Math.max(1, capacity - windowCapacity) ;
+        this.ttl = ttl ;
+        window = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) ;
+        main = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) ;
+        sketch = new FrequencySketch(capacity) ;
+    }
+
+    /**
+     * Get the cached value.
+     * @param key The key.
+     * @return The value, or null if not cached or expired.
+     */
+    synchronized V get(final K key) {
+        sketch.increment(key.hashCode()) ;
+        Entry<V> entry = window.get(key) ;
+        Map<K, Entry<V>> region = window ;
+        if (entry == null) {
+            entry = main.get(key) ;
+            region = main ;
+        }
+        if (entry == null) {
+            misses++ ;
+            return null ;
+        }
+        if ((ttl > 0) && (System.currentTimeMillis() - entry.created > ttl)) {
+            region.remove(key) ;
+            expirations++ ;
+            misses++ ;
+            return null ;
+        }
+        hits++ ;
+        return entry.value ;
+    }
+
+    /**
+     * Cache the value.
+     * @param key The key.
+     * @param value The value.
+     */
+    synchronized void put(final K key, final V value) {
+        final Entry<V> entry = new Entry<V>(value, System.currentTimeMillis()) ;
+        if (main.containsKey(key)) {
+            main.put(key, entry) ;
+            return ;
+        }
+        window.put(key, entry) ;
+        if (window.size() <= windowCapacity) {
+            return ;
+        }
+        final Iterator<Map.Entry<K, Entry<V>>> windowIter = window.entrySet().iterator() ;
+        final Map.Entry<K, Entry<V>> candidate = windowIter.next() ;
+        windowIter.remove() ;
+        if (main.size() < mainCapacity) {
+            main.put(candidate.getKey(), candidate.getValue()) ;
+            return ;
+        }
+        final Iterator<Map.Entry<K, Entry<V>>> mainIter = main.entrySet().iterator() ;
+        final Map.Entry<K, Entry<V>> victim = mainIter.next() ;
+        evictions++ ;
+        if (sketch.frequency(candidate.getKey().hashCode()) > sketch.frequency(victim.getKey().hashCode())) {
+            mainIter.remove() ;
+            main.put(candidate.getKey(), candidate.getValue()) ;
+        }
+    }
+
+    /**
+     * Remove all entries.
+     */
+    synchronized void clear() {
+        window.clear() ;
+        main.clear() ;
+    }
+
+    synchronized int size() {
+        return window.size() + main.size() ;
+    }
+
+    synchronized long getHits() {
+        return hits ;
+    }
+
+    synchronized long getMisses() {
+        return misses ;
+    }
+
+    synchronized long getEvictions() {
+        return evictions ;
+    }
+
+    synchronized long getExpirations() {
+        return expirations ;
+    }
+
+    /**
+     * A cached value and its creation time.
+     */
+    private static final class Entry<V> {
+        private final V value ;
+        private final long created ;
+
+        Entry(final V value, final long created) {
+            this.value = value ;
+            this.created = created ;
+        }
+    }
+
+    /**
+     * Count-min sketch of 4 bit counters, sixteen counters per long.
+     */
+    private static final class FrequencySketch {
+        private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L} ;
+        private static final long RESET_MASK = 0x7777777777777777L ;
+
+        private final long[] table ;
+        private final int sampleSize ;
+        private int size ;
+
+        FrequencySketch(final int capacity) {
+            int length = 1 ;
+            while(length < Math.max(capacity / 4, 16)) {
+                length <<= 1 ;
+            }
+            table = new long[length] ;
+            sampleSize = Math.max(capacity, 16) * 10 ;
+        }
+
+        void increment(final int hash) {
+            boolean added = false ;
+            for(int depth = 0 ; depth < 4 ; depth++) {
+                final int index = index(hash, depth) ;
+                final int offset = offset(hash, depth) ;
+                if (((table[index] >>> offset) & 0xfL) != 0xfL) {
+                    table[index] += (1L << offset) ;
+                    added = true ;
+                }
+            }
+            if (added && (++size == sampleSize)) {
+                for(int count = 0 ; count < table.length ; count++) {
+                    table[count] = (table[count] >>> 1) & RESET_MASK ;
+                }
+                size /= 2 ;
+            }
+        }
+
+        int frequency(final int hash) {
+            int frequency = Integer.MAX_VALUE ;
+            for(int depth = 0 ; depth < 4 ; depth++) {
+                frequency = Math.min(frequency, (int)((table[index(hash, depth)] >>> offset(hash, depth)) & 0xfL)) ;
+            }
+            return frequency ;
+        }
+
+        private int index(final int hash, final int depth) {
+            long mixed = (hash + SEEDS[depth]) * SEEDS[depth] ;
+            mixed ^= (mixed >>> 32) ;
+            return (int)mixed & (table.length - 1) ;
+        }
+
+        private int offset(final int hash, final int depth) {
+            final int mixed = hash * 0x9e3779b9 ;
+            return ((mixed >>> (depth << 3)) & 0xf) << 2 ;
+        }
+    }
+}
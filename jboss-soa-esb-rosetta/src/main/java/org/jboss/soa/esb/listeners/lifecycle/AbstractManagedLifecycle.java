@@ -26,6 +26,26 @@ public abstract class AbstractManagedLifecycle implements ManagedLifecycle, Seri
      */
     public static final String PARAM_TERMINATION_PERIOD = "terminationPeriod" ;
     
+    /**
+     * The name of the attribute specifying the MBean registration mode.
+     */
+    public static final String PARAM_MBEAN_REGISTRATION = "mbeanRegistration" ;
+    
+    /**
+     * The name of the attribute specifying the service category.
+     */
+    public static final String PARAM_SERVICE_CATEGORY = "service-category" ;
+    
+    /**
+     * The name of the attribute specifying the service name.
+     */
+    public static final String PARAM_SERVICE_NAME = "service-name" ;
+    
+    /**
+     * The name of the attribute specifying the listener name.
+     */
+    public static final String PARAM_NAME = "name" ;
+    
     /**
      * The lock used for state operations.
      */
@@ -39,6 +59,10 @@ public abstract class AbstractManagedLifecycle implements ManagedLifecycle, Seri
      * The state of the managed instance.
      */
     private transient ManagedLifecycleState state = ManagedLifecycleState.CONSTRUCTED ;
+    /**
+     * The time at which the current state was entered, in nanoseconds.
+     */
+    private transient long stateEntered = System.nanoTime() ;
     /**
      * The maximum amount of time to wait for termination.
      */
@@ -51,12 +75,27 @@ public abstract class AbstractManagedLifecycle implements ManagedLifecycle, Seri
      * Instance configuration.  Supplied through constructor.
      */
     private final ConfigTree config;
+    
+    /**
+     * The service identity derived from the configuration.
+     */
+    private final String serviceIdentity;
 
     /**
      * Lifecycle controller for this lifecycle.
      */
     private LifecycleController lifecycleController;
     
+    /**
+     * The MBean registration mode for the lifecycle controller.
+     */
+    private LifecycleMBeanRegistrar.Mode mbeanRegistration = LifecycleMBeanRegistrar.Mode.IMMEDIATE ;
+    
+    /**
+     * Has the lifecycle controller been registered or queued for registration?
+     */
+    private transient boolean mbeanRequested ;
+    
     /**
      * Construct the managed lifecycle.
      * @param config The configuration associated with this instance.
@@ -78,7 +117,18 @@ public abstract class AbstractManagedLifecycle implements ManagedLifecycle, Seri
             logger.debug(PARAM_TERMINATION_PERIOD + " value " + terminationPeriod) ;
         }
 
+        final String mbeanRegistrationVal = config.getAttribute(PARAM_MBEAN_REGISTRATION) ;
+        if (mbeanRegistrationVal != null) {
+            try {
+                this.mbeanRegistration = LifecycleMBeanRegistrar.Mode.valueOf(mbeanRegistrationVal.trim().toUpperCase()) ;
+            } catch (final IllegalArgumentException iae) {
+                throw new ConfigurationException("Failed to parse " +
+                    PARAM_MBEAN_REGISTRATION + " value of " + mbeanRegistrationVal) ;
+            }
+        }
+
         this.config = config;
+        this.serviceIdentity = createServiceIdentity(config);
        
         lifecycleController = new LifecycleController(new LifecycleControllerAdapter());
     }
@@ -97,7 +147,13 @@ public abstract class AbstractManagedLifecycle implements ManagedLifecycle, Seri
 			try {
                 doInitialise() ;
                 changeState(ManagedLifecycleState.INITIALISED) ;
-                lifecycleController.registerMBean();
+                if (mbeanRegistration == LifecycleMBeanRegistrar.Mode.IMMEDIATE) {
+                    LifecycleMBeanRegistrar.register(lifecycleController) ;
+                    mbeanRequested = true ;
+                } else if (mbeanRegistration == LifecycleMBeanRegistrar.Mode.BATCH) {
+                    LifecycleMBeanRegistrar.enqueue(lifecycleController) ;
+                    mbeanRequested = true ;
+                }
 			} catch (final ManagedLifecycleException mle) {
 				changeState(ManagedLifecycleState.DESTROYED);
 				throw mle;
@@ -131,6 +187,10 @@ public abstract class AbstractManagedLifecycle implements ManagedLifecycle, Seri
                 doStart() ;
                 changeState(ManagedLifecycleState.STARTED) ;
                 lifecycleController.setStartTime(System.currentTimeMillis());
+                if (!mbeanRequested) {
+                    LifecycleMBeanRegistrar.enqueue(lifecycleController) ;
+                    mbeanRequested = true ;
+                }
 			} catch (final ManagedLifecycleException mle) {
 				changeState(ManagedLifecycleState.STOPPED);
 				throw mle;
@@ -183,6 +243,55 @@ public abstract class AbstractManagedLifecycle implements ManagedLifecycle, Seri
      */
     protected abstract void doStop() throws ManagedLifecycleException ;
 
+    /**
+     * Restart the managed instance without destroying it.
+     * <p/>
+     * The managed instance is stopped, if active, and started again through
+     * {@link #start()}.  Resources created by {@link #doInitialise()} are retained,
+     * state associated with a single run should be cleared by
+     * {@link #doResetRunState()}.
+     * 
+     * @throws ManagedLifecycleException for errors while restarting.
+     */
+	public final void restart() throws ManagedLifecycleException {
+		final ManagedLifecycleState origState = getState();
+		if ((origState == ManagedLifecycleState.STARTED) || (origState == ManagedLifecycleState.RUNNING)) {
+			stop();
+		}
+		if (!waitUntilQuiescent(getTerminationPeriod())) {
+			throw new ManagedLifecycleException("Instance still active, unable to restart");
+		}
+		try {
+			doResetRunState();
+		} catch (final ManagedLifecycleException mle) {
+			throw mle;
+		} catch (final Exception ex) {
+			logger.warn("Unexpected exception caught while resetting run state", ex);
+			throw new ManagedLifecycleException(ex);
+		}
+		start();
+	}
+
+    /**
+     * Reset the state associated with a single run of the managed instance.
+     * <p/>
+     * Invoked by {@link #restart()} once the previous run has completed and before
+     * the instance is started again.
+     * 
+     * @throws ManagedLifecycleException for errors while resetting.
+     */
+    protected void doResetRunState() throws ManagedLifecycleException {
+    }
+
+    /**
+     * Wait until any asynchronous activity from the previous run has completed.
+     * @param transitionPeriod The maximum delay expected, specified in milliseconds.
+     * @return true if the instance is quiescent within the expected period, false otherwise.
+     */
+    protected boolean waitUntilQuiescent(final long transitionPeriod) {
+        return true ;
+    }
+
     /**
      * Destroy the managed instance.
      * <p/>
@@ -194,7 +303,10 @@ public abstract class AbstractManagedLifecycle implements ManagedLifecycle, Seri
 		
 		if (!ManagedLifecycleState.DESTROYED.equals(getState())) {
 			changeState(ManagedLifecycleState.DESTROYING);
-			lifecycleController.unregisterMBean();
+			if (mbeanRequested) {
+				LifecycleMBeanRegistrar.unregister(lifecycleController);
+				mbeanRequested = false;
+			}
 			try {
 				doDestroy();
 			} catch (final ManagedLifecycleException mle) {
@@ -242,6 +354,11 @@ public abstract class AbstractManagedLifecycle implements ManagedLifecycle, Seri
 			}
 			origState = state;
 			state = newState;
+			final long now = System.nanoTime();
+			final long duration = now - stateEntered;
+			stateEntered = now;
+			// recorded under the lock so the recorder sequence matches the order of the transitions
+			LifecycleFlightRecorder.getRecorder().record(serviceIdentity, origState, newState, duration) ;
 			stateChanged.signalAll();
 		} finally {
 			stateLock.unlock() ;
@@ -374,6 +491,7 @@ public abstract class AbstractManagedLifecycle implements ManagedLifecycle, Seri
 	private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
         in.defaultReadObject() ;
         state = ManagedLifecycleState.CONSTRUCTED ;
+        stateEntered = System.nanoTime() ;
     }
 
     /**
@@ -384,6 +502,29 @@ public abstract class AbstractManagedLifecycle implements ManagedLifecycle, Seri
         return config;
     }
     
+    /**
+     * Get the identity of the service associated with this lifecycle.
+     * @return The service identity, in the form category:service:listener.
+     */
+	public String getServiceIdentity() {
+        return serviceIdentity;
+    }
+    
+    /**
+     * Create the service identity from the configuration.
+     * @param config The instance configuration.
+     * @return The service identity.
+     */
+    private static String createServiceIdentity(final ConfigTree config) {
+        final String category = config.getAttribute(PARAM_SERVICE_CATEGORY) ;
+        final String service = config.getAttribute(PARAM_SERVICE_NAME) ;
+        final String name = config.getAttribute(PARAM_NAME, config.getName()) ;
+        if ((category == null) && (service == null)) {
+            return name ;
+        }
+        return category + ":" + service + ":" + name ;
+    }
+    
     private final class LifecycleControllerAdapter implements ManagedLifecycleAdapter {
         /**
          * Start the managed instance.
@@ -23,6 +23,16 @@ public abstract class AbstractThreadedManagedLifecycle extends AbstractManagedLi
 
     private static final Logger logger = Logger.getLogger(AbstractThreadedManagedLifecycle.class) ;
     
+    /**
+     * The name of the attribute specifying whether the thread is interrupted on stop.
+     */
+    public static final String PARAM_INTERRUPT_ON_STOP = "interruptOnStop" ;
+    
+    /**
+     * The name of the attribute specifying the period without heartbeat after which the thread is considered stalled.
+     */
+    public static final String PARAM_STALL_PERIOD = "stallPeriod" ;
+    
     /**
      * The lock used for managing the running state.
      */
@@ -38,11 +48,36 @@ public abstract class AbstractThreadedManagedLifecycle extends AbstractManagedLi
      */
     private transient ManagedLifecycleThreadState state = ManagedLifecycleThreadState.STOPPED ;
     
+    /**
+     * The time at which the current running state was entered, in nanoseconds.
+     */
+    private transient long stateEntered = System.nanoTime() ;
+    
     /**
      * The list of listeners associated with this managed instance.
      */
     private Set<ManagedLifecycleThreadEventListener> listeners = new CopyOnWriteArraySet<ManagedLifecycleThreadEventListener>() ;
     
+    /**
+     * Should the thread be interrupted when the instance is stopped?
+     */
+    private final boolean interruptOnStop ;
+    
+    /**
+     * The cancellation token for the current run.
+     */
+    private transient volatile ManagedLifecycleCancellationToken cancellationToken ;
+    
+    /**
+     * The period without heartbeat after which the thread is considered stalled, 0 if not monitored.
+     */
+    private long stallPeriod ;
+    
+    /**
+     * The number of heartbeats reported by the thread.
+     */
+    private transient volatile long heartbeatCount ;
+    
 
     /**
      * Construct the threaded managed lifecycle.
@@ -51,6 +86,17 @@ public abstract class AbstractThreadedManagedLifecycle extends AbstractManagedLi
      */
     protected AbstractThreadedManagedLifecycle(final ConfigTree config)throws ConfigurationException{
         super(config) ;
+        interruptOnStop = config.getBooleanAttribute(PARAM_INTERRUPT_ON_STOP, false) ;
+        
+        final String stallPeriodVal = config.getAttribute(PARAM_STALL_PERIOD) ;
+        if (stallPeriodVal != null) {
+            try {
+                stallPeriod = (Long.parseLong(stallPeriodVal) * 1000) ;
+            } catch (final NumberFormatException nfe) {
+                throw new ConfigurationException("Failed to parse " +
+                    PARAM_STALL_PERIOD + " value of " + stallPeriodVal) ;
+            }
+        }
     }
     
     /**
@@ -65,6 +111,7 @@ public abstract class AbstractThreadedManagedLifecycle extends AbstractManagedLi
 			if (!waitUntilStopped()) {
                 throw new ManagedLifecycleException("Thread still active from previous start") ;
             }
+            cancellationToken = new ManagedLifecycleCancellationToken(interruptOnStop) ;
             setRunning(ManagedLifecycleThreadState.RUNNING) ;
 		} finally {
             runningLock.unlock() ;
@@ -77,24 +124,83 @@ public abstract class AbstractThreadedManagedLifecycle extends AbstractManagedLi
      * The thread execution method.
      */
 	public final void run() {
+        final ManagedLifecycleCancellationToken token = cancellationToken ;
+        token.bind(Thread.currentThread()) ;
         waitUntilNotState(ManagedLifecycleState.STARTING, getTerminationPeriod()) ;
+        final ManagedLifecycleWatchdog watchdog = (stallPeriod > 0 ? ManagedLifecycleWatchdog.getWatchdog() : null) ;
 		try {
             changeState(ManagedLifecycleState.RUNNING) ;
+            if (watchdog != null) {
+                watchdog.register(this) ;
+            }
             doRun() ;
 		} catch (final ManagedLifecycleException mle) {
             // State change was not allowed, we are already stopping.
 		} catch (final Throwable th) {
             logger.warn("Unexpected error from doRun()", th) ;
 		} finally {
+            if (watchdog != null) {
+                watchdog.deregister(this) ;
+            }
+            token.unbind() ;
             setRunning(ManagedLifecycleThreadState.STOPPED) ;
         }
     }
     
     /**
      * Execute on the thread.
+     * <p/>
+     * Implementations should return once {@link #getCancellationToken()} has been
+     * cancelled.
      */
     protected abstract void doRun() ;
     
+    /**
+     * Get the cancellation token for the current run.
+     * <p/>
+     * The token is cancelled as soon as the instance is asked to stop and is
+     * cheaper to check than {@link #isRunning()}.
+     * @return The cancellation token, or null if the instance has never been started.
+     */
+    protected ManagedLifecycleCancellationToken getCancellationToken() {
+        return cancellationToken ;
+    }
+    
+    /**
+     * Report progress from doRun.
+     * <p/>
+     * Lifecycles configured with a stall period should call this method each time
+     * a unit of work completes, the watchdog samples the thread once no heartbeat
+     * has been seen for longer than the stall period.
+     */
+    protected void heartbeat() {
+        heartbeatCount++ ;
+    }
+    
+    /**
+     * Get the number of heartbeats reported by the thread.
+     * @return The heartbeat count.
+     */
+    long getHeartbeatCount() {
+        return heartbeatCount ;
+    }
+    
+    /**
+     * Get the period without heartbeat after which the thread is considered stalled.
+     * @return The stall period, specified in milliseconds, or 0 if the thread is not monitored.
+     */
+    long getStallPeriod() {
+        return stallPeriod ;
+    }
+    
+    /**
+     * Get the hot frames sampled from the thread while it has been stalled.
+     * @return The hot frame summary, or null if the thread is not stalled or not monitored.
+     */
+    public String getHotFrames() {
+        return (stallPeriod > 0 ? ManagedLifecycleWatchdog.getWatchdog().getHotFrames(this) : null) ;
+    }
+    
     /**
      * Handle the stop of the managed instance.
      * 
@@ -106,6 +212,7 @@ public abstract class AbstractThreadedManagedLifecycle extends AbstractManagedLi
 		try {
 			if (isRunning()) {
 				setRunning(ManagedLifecycleThreadState.STOPPING);
+				cancellationToken.cancel();
 			}
 		} finally {
             runningLock.unlock() ;
@@ -134,6 +241,15 @@ public abstract class AbstractThreadedManagedLifecycle extends AbstractManagedLi
     protected void doThreadedDestroy() throws ManagedLifecycleException {
     }
     
+    /**
+     * Wait until the thread from the previous run has stopped.
+     * @param transitionPeriod The maximum delay expected, specified in milliseconds.
+     * @return true if the thread stops within the expected period, false otherwise.
+     */
+    protected boolean waitUntilQuiescent(final long transitionPeriod) {
+        return waitUntilStopped(transitionPeriod) ;
+    }
+    
     /**
      * Is the associated thread still running?
      * @return true if the thread is still running, false otherwise.
@@ -184,7 +300,11 @@ public abstract class AbstractThreadedManagedLifecycle extends AbstractManagedLi
 		try {
 			origState = state;
 			state = newState;
+			final long now = System.nanoTime();
+			final long duration = now - stateEntered;
+			stateEntered = now;
 			runningChanged.signalAll();
+            LifecycleFlightRecorder.getRecorder().record(getServiceIdentity(), origState, newState, duration) ;
 		} finally {
 			runningLock.unlock();
 		}
@@ -294,5 +414,6 @@ public abstract class AbstractThreadedManagedLifecycle extends AbstractManagedLi
 	private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
 		in.defaultReadObject();
 		state = ManagedLifecycleThreadState.STOPPED;
+		stateEntered = System.nanoTime();
 	}
 }
@@ -0,0 +1,168 @@
+package org.jboss.soa.esb.listeners.lifecycle;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Lock free, in memory recorder of lifecycle transitions.
+ * <p/>
+ * Every state change of a managed lifecycle, and every running state change of a
+ * threaded lifecycle, is written into a fixed size ring buffer.  Recording a
+ * transition claims a slot with a single atomic increment so the recorder is
+ * cheap enough to remain enabled permanently, the retained transitions can be
+ * dumped on demand through {@link #dump()} or the recorder MBean.
+ */
+public final class LifecycleFlightRecorder implements LifecycleFlightRecorderMBean {
+
+    private static final Logger logger = Logger.getLogger(LifecycleFlightRecorder.class) ;
+
+    /**
+     * The name of the system property specifying the number of retained transitions.
+     */
+    public static final String CAPACITY_PROPERTY = "org.jboss.soa.esb.lifecycle.recorder.capacity" ;
+
+    /**
+     * The name of the system property disabling the recorder.
+     */
+    public static final String ENABLED_PROPERTY = "org.jboss.soa.esb.lifecycle.recorder.enabled" ;
+
+    /**
+     * The object name of the recorder MBean.
+     */
+    public static final String OBJECT_NAME = "jboss.esb:service=LifecycleFlightRecorder" ;
+
+    /**
+     * The singleton recorder.
+     */
+    private static final LifecycleFlightRecorder recorder = new LifecycleFlightRecorder(
+        Integer.getInteger(CAPACITY_PROPERTY, 4096).intValue(),
+        Boolean.valueOf(System.getProperty(ENABLED_PROPERTY, "true")).booleanValue()) ;
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(recorder, new ObjectName(OBJECT_NAME)) ;
+        } catch (final Exception ex) {
+            logger.warn("Failed to register lifecycle flight recorder MBean", ex) ;
+        }
+    }
+
+    /**
+     * The ring buffer of recorded transitions.
+     */
+    private final AtomicReferenceArray<LifecycleTransitionEvent> events ;
+    /**
+     * The mask used to map sequence numbers onto ring buffer slots.
+     */
+    private final int mask ;
+    /**
+     * The next sequence number.
+     */
+    private final AtomicLong sequence = new AtomicLong() ;
+    /**
+     * Is the recorder capturing transitions?
+     */
+    private volatile boolean enabled ;
+
+    /**
+     * Construct the recorder.
+     * @param capacity The requested capacity, rounded up to a power of two.
+     * @param enabled true if transitions should be recorded, false otherwise.
+     */
+    private LifecycleFlightRecorder(final int capacity, final boolean enabled) {
+        int size = 1 ;
+        while (size < capacity) {
+            size <<= 1 ;
+        }
+        this.events = new AtomicReferenceArray<LifecycleTransitionEvent>(size) ;
+        this.mask = size - 1 ;
+        this.enabled = enabled ;
+    }
+
+    /**
+     * Get the flight recorder.
+     * @return The flight recorder.
+     */
+    public static LifecycleFlightRecorder getRecorder() {
+        return recorder ;
+    }
+
+    /**
+     * Record a transition.
+     * @param serviceIdentity The identity of the service undergoing the transition.
+     * @param origState The original state.
+     * @param newState The new state.
+     * @param duration The time spent in the original state, specified in nanoseconds.
+     */
+    void record(final String serviceIdentity, final Enum<?> origState, final Enum<?> newState, final long duration) {
+        if (enabled) {
+            final long seq = sequence.getAndIncrement() ;
+            events.set((int)(seq & mask), new LifecycleTransitionEvent(seq, serviceIdentity, origState,
+                newState, duration, Thread.currentThread().getName())) ;
+        }
+    }
+
+    /**
+     * Get the retained transitions, oldest first.
+     * <p/>
+     * Slots overwritten while the snapshot is taken are skipped.
+     * @return The retained transitions.
+     */
+    public List<LifecycleTransitionEvent> getEvents() {
+        final long end = sequence.get() ;
+        final long start = Math.max(0, end - events.length()) ;
+        final List<LifecycleTransitionEvent> result = new ArrayList<LifecycleTransitionEvent>((int)(end - start)) ;
+        for(long seq = start ; seq < end ; seq++) {
+            final LifecycleTransitionEvent event = events.get((int)(seq & mask)) ;
+            if ((event != null) && (event.getSequence() == seq)) {
+                result.add(event) ;
+            }
+        }
+        return result ;
+    }
+
+    /**
+     * Dump the retained transitions, oldest first.
+     * @param writer The writer receiving the transitions, one per line.
+     * @throws IOException for errors generated by the writer.
+     */
+    public void dump(final Writer writer) throws IOException {
+        for(LifecycleTransitionEvent event: getEvents()) {
+            writer.write(event.toString()) ;
+            writer.write('\n') ;
+        }
+        writer.flush() ;
+    }
+
+    public String dump() {
+        final StringBuilder builder = new StringBuilder() ;
+        for(LifecycleTransitionEvent event: getEvents()) {
+            builder.append(event).append('\n') ;
+        }
+        return builder.toString() ;
+    }
+
+    public boolean isEnabled() {
+        return enabled ;
+    }
+
+    public void setEnabled(final boolean enabled) {
+        this.enabled = enabled ;
+    }
+
+    public int getCapacity() {
+        return events.length() ;
+    }
+
+    public long getRecordedCount() {
+        return sequence.get() ;
+    }
+}
@@ -0,0 +1,37 @@
+package org.jboss.soa.esb.listeners.lifecycle;
+
+/**
+ * Management interface for the lifecycle flight recorder.
+ */
+public interface LifecycleFlightRecorderMBean {
+
+    /**
+     * Is the recorder capturing transitions?
+     * @return true if transitions are recorded, false otherwise.
+     */
+    public boolean isEnabled() ;
+
+    /**
+     * Enable or disable the capture of transitions.
+     * @param enabled true if transitions should be recorded, false otherwise.
+     */
+    public void setEnabled(final boolean enabled) ;
+
+    /**
+     * Get the number of transitions retained by the recorder.
+     * @return The capacity of the recorder.
+     */
+    public int getCapacity() ;
+
+    /**
+     * Get the number of transitions recorded since the recorder was created.
+     * @return The number of recorded transitions.
+     */
+    public long getRecordedCount() ;
+
+    /**
+     * Dump the retained transitions, oldest first.
+     * @return The retained transitions, one per line.
+     */
+    public String dump() ;
+}
@@ -0,0 +1,267 @@
+package org.jboss.soa.esb.listeners.lifecycle;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Registers lifecycle controller MBeans, optionally off the critical start path.
+ * <p/>
+ * Lifecycles configured for batched or deferred registration queue their
+ * controller with this class and a single daemon thread commits the queued
+ * registrations in batches.  A registration still queued when the lifecycle is
+ * destroyed is simply discarded.
+ */
+public final class LifecycleMBeanRegistrar {
+
+    private static final Logger logger = Logger.getLogger(LifecycleMBeanRegistrar.class) ;
+
+    /**
+     * The registration modes supported by a managed lifecycle.
+     */
+    public enum Mode {
+        /**
+         * Register synchronously as soon as the lifecycle is initialised.
+         */
+        IMMEDIATE,
+        /**
+         * Queue the registration when the lifecycle is initialised and commit it in a batch.
+         */
+        BATCH,
+        /**
+         * Queue the registration once the lifecycle has started and commit it in a batch.
+         */
+        DEFERRED
+    }
+
+    /**
+     * The time the registration thread lingers after being woken so that
+     * registrations queued together are committed in a single batch.
+     */
+    private static final long LINGER = TimeUnit.MILLISECONDS.toNanos(10) ;
+
+    /**
+     * The lock guarding the pending registrations.
+     */
+    private static final Lock pendingLock = new ReentrantLock() ;
+    /**
+     * The condition signalled when registrations are queued on an empty queue.
+     */
+    private static final Condition pendingAdded = pendingLock.newCondition() ;
+    /**
+     * The controllers awaiting registration, in queue order.
+     */
+    private static final Set<LifecycleController> pending = new LinkedHashSet<LifecycleController>() ;
+    /**
+     * Has the registration thread been started?
+     */
+    private static boolean workerStarted ;
+
+    /**
+     * The number of MBeans registered.
+     */
+    private static final AtomicLong registeredCount = new AtomicLong() ;
+    /**
+     * The accumulated registration time, in nanoseconds.
+     */
+    private static final AtomicLong registrationTime = new AtomicLong() ;
+
+    private LifecycleMBeanRegistrar() {
+    }
+
+    /**
+     * Register the controller MBean on the calling thread.
+     * @param controller The lifecycle controller.
+     */
+    static void register(final LifecycleController controller) {
+        synchronized(controller) {
+            doRegister(controller) ;
+        }
+    }
+
+    /**
+     * Queue the controller MBean for registration by the registration thread.
+     * @param controller The lifecycle controller.
+     */
+    static void enqueue(final LifecycleController controller) {
+        pendingLock.lock() ;
+        try {
+            if (!workerStarted) {
+                final Thread worker = new Thread(new RegistrationTask(), "LifecycleMBeanRegistrar") ;
+                worker.setDaemon(true) ;
+                worker.start() ;
+                workerStarted = true ;
+            }
+            final boolean wasEmpty = pending.isEmpty() ;
+            if (pending.add(controller) && wasEmpty) {
+                pendingAdded.signal() ;
+            }
+        } finally {
+            pendingLock.unlock() ;
+        }
+    }
+
+    /**
+     * Unregister the controller MBean, discarding the registration if it is still queued.
+     * @param controller The lifecycle controller.
+     */
+    static void unregister(final LifecycleController controller) {
+        synchronized(controller) {
+            if (!removePending(controller)) {
+                controller.unregisterMBean() ;
+            }
+        }
+    }
+
+    /**
+     * Commit all queued registrations on the calling thread.
+     * <p/>
+     * Deployers can call this once all lifecycles have been started so that the
+     * MBeans are visible before the deployment completes.
+     */
+    public static void commit() {
+        commitBatch(snapshotPending()) ;
+    }
+
+    /**
+     * Get the number of registrations currently queued.
+     * @return The number of queued registrations.
+     */
+    public static int getPendingCount() {
+        pendingLock.lock() ;
+        try {
+            return pending.size() ;
+        } finally {
+            pendingLock.unlock() ;
+        }
+    }
+
+    /**
+     * Get the number of MBeans registered through this class.
+     * @return The number of registered MBeans.
+     */
+    public static long getRegisteredCount() {
+        return registeredCount.get() ;
+    }
+
+    /**
+     * Get the time spent registering MBeans, whichever thread performed the registration.
+     * @return The accumulated registration time, specified in milliseconds.
+     */
+    public static long getRegistrationTime() {
+        return registrationTime.get() / 1000000 ;
+    }
+
+    /**
+     * Register the controller, recording the time taken.
+     * @param controller The lifecycle controller.
+     */
+    private static void doRegister(final LifecycleController controller) {
+        final long start = System.nanoTime() ;
+        controller.registerMBean() ;
+        registrationTime.addAndGet(System.nanoTime() - start) ;
+        registeredCount.incrementAndGet() ;
+    }
+
+    /**
+     * Remove the controller from the queued registrations.
+     * @param controller The lifecycle controller.
+     * @return true if the registration was queued, false otherwise.
+     */
+    private static boolean removePending(final LifecycleController controller) {
+        pendingLock.lock() ;
+        try {
+            return pending.remove(controller) ;
+        } finally {
+            pendingLock.unlock() ;
+        }
+    }
+
+    /**
+     * Take a copy of the queued registrations.
+     * @return The queued controllers.
+     */
+    private static List<LifecycleController> snapshotPending() {
+        pendingLock.lock() ;
+        try {
+            return new ArrayList<LifecycleController>(pending) ;
+        } finally {
+            pendingLock.unlock() ;
+        }
+    }
+
+    /**
+     * Register a batch of controllers.  Controllers destroyed since the batch was
+     * taken are skipped.
+     * @param batch The controllers to register.
+     */
+    private static void commitBatch(final List<LifecycleController> batch) {
+        if (batch.isEmpty()) {
+            return ;
+        }
+        final long start = System.nanoTime() ;
+        int count = 0 ;
+        for (LifecycleController controller: batch) {
+            synchronized(controller) {
+                if (removePending(controller)) {
+                    try {
+                        doRegister(controller) ;
+                        count++ ;
+                    } catch (final RuntimeException re) {
+                        logger.warn("Unexpected exception caught while registering lifecycle MBean", re) ;
+                    }
+                }
+            }
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Registered " + count + " lifecycle MBeans in " +
+                ((System.nanoTime() - start) / 1000000) + "ms") ;
+        }
+    }
+
+    /**
+     * The task committing queued registrations.
+     */
+    private static final class RegistrationTask implements Runnable {
+        public void run() {
+            while(true) {
+                final List<LifecycleController> batch ;
+                pendingLock.lock() ;
+                try {
+                    while (pending.isEmpty()) {
+                        pendingAdded.awaitUninterruptibly() ;
+                    }
+                    linger() ;
+                    batch = new ArrayList<LifecycleController>(pending) ;
+                } finally {
+                    pendingLock.unlock() ;
+                }
+                commitBatch(batch) ;
+            }
+        }
+
+        /**
+         * Wait for the linger period so that further registrations can be queued.
+         * Must be called holding the pending lock.
+         */
+        private void linger() {
+            long remaining = LINGER ;
+            while (remaining > 0) {
+                try {
+                    remaining = pendingAdded.awaitNanos(remaining) ;
+                } catch (final InterruptedException ie) {
+                    Thread.currentThread().interrupt() ;
+                    return ;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package org.jboss.soa.esb.listeners.lifecycle;
+
+/**
+ * A single lifecycle transition captured by the {@link LifecycleFlightRecorder}.
+ */
+public final class LifecycleTransitionEvent {
+
+    /**
+     * The sequence number of the event.
+     */
+    private final long sequence ;
+    /**
+     * The time of the transition.
+     */
+    private final long timestamp ;
+    /**
+     * The identity of the service undergoing the transition.
+     */
+    private final String serviceIdentity ;
+    /**
+     * The original state.
+     */
+    private final Enum<?> origState ;
+    /**
+     * The new state.
+     */
+    private final Enum<?> newState ;
+    /**
+     * The time spent in the original state.
+     */
+    private final long duration ;
+    /**
+     * The name of the thread performing the transition.
+     */
+    private final String threadName ;
+
+    LifecycleTransitionEvent(final long sequence, final String serviceIdentity, final Enum<?> origState,
+        final Enum<?> newState, final long duration, final String threadName) {
+        this.sequence = sequence ;
+        this.timestamp = System.currentTimeMillis() ;
+        this.serviceIdentity = serviceIdentity ;
+        this.origState = origState ;
+        this.newState = newState ;
+        this.duration = duration ;
+        this.threadName = threadName ;
+    }
+
+    /**
+     * Get the sequence number of the event.
+     * @return The sequence number.
+     */
+    public long getSequence() {
+        return sequence ;
+    }
+
+    /**
+     * Get the time of the transition.
+     * @return The time of the transition, in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+        return timestamp ;
+    }
+
+    /**
+     * Get the identity of the service undergoing the transition.
+     * @return The service identity.
+     */
+    public String getServiceIdentity() {
+        return serviceIdentity ;
+    }
+
+    /**
+     * Get the original state, either a {@link ManagedLifecycleState} or a {@link ManagedLifecycleThreadState}.
+     * @return The original state.
+     */
+    public Enum<?> getOrigState() {
+        return origState ;
+    }
+
+    /**
+     * Get the new state, either a {@link ManagedLifecycleState} or a {@link ManagedLifecycleThreadState}.
+     * @return The new state.
+     */
+    public Enum<?> getNewState() {
+        return newState ;
+    }
+
+    /**
+     * Get the time spent in the original state.
+     * @return The duration, specified in nanoseconds.
+     */
+    public long getDuration() {
+        return duration ;
+    }
+
+    /**
+     * Get the name of the thread performing the transition.
+     * @return The thread name.
+     */
+    public String getThreadName() {
+        return threadName ;
+    }
+
+    public String toString() {
+        return sequence + " " + timestamp + " " + serviceIdentity + " " + origState.getClass().getSimpleName() + " " +
+            origState + " -> " + newState + " after " + (duration / 1000) + "us [" + threadName + "]" ;
+    }
+}
@@ -0,0 +1,135 @@
+package org.jboss.soa.esb.listeners.lifecycle;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Cooperative cancellation token for the thread executing
+ * {@link AbstractThreadedManagedLifecycle#doRun()}.
+ * <p/>
+ * A new token is created for every start of the managed instance and is
+ * cancelled as soon as the instance is asked to stop.  Checking the token is a
+ * single volatile read, waiting on the token parks the worker thread until the
+ * timeout expires or the token is cancelled.  The worker thread can optionally
+ * be interrupted on cancellation so that blocking I/O is released.
+ */
+public final class ManagedLifecycleCancellationToken {
+
+    /**
+     * The cancelled flag.
+     */
+    private volatile boolean cancelled ;
+    /**
+     * The thread executing doRun, if bound.
+     */
+    private volatile Thread worker ;
+    /**
+     * Should the worker thread be interrupted on cancellation?
+     */
+    private final boolean interruptOnCancel ;
+
+    /**
+     * Construct the cancellation token.
+     * @param interruptOnCancel true if the worker thread should be interrupted on cancellation.
+     */
+    ManagedLifecycleCancellationToken(final boolean interruptOnCancel) {
+        this.interruptOnCancel = interruptOnCancel ;
+    }
+
+    /**
+     * Has the token been cancelled?
+     * @return true if the managed instance is stopping, false otherwise.
+     */
+    public boolean isCancelled() {
+        return cancelled ;
+    }
+
+    /**
+     * Will the worker thread be interrupted on cancellation?
+     * @return true if the worker thread is interrupted, false otherwise.
+     */
+    public boolean isInterruptOnCancel() {
+        return interruptOnCancel ;
+    }
+
+    /**
+     * Wait until the token is cancelled or the timeout expires.
+     * <p/>
+     * This method must be called from the thread executing doRun and is intended
+     * as a replacement for Thread.sleep in polling loops.  It returns early if the
+     * thread is interrupted, leaving the interrupt status set.
+     *
+     * @param timeout The maximum time to wait.
+     * @param unit The unit of the timeout.
+     * @return true if the token has been cancelled, false otherwise.
+     */
+    public boolean await(final long timeout, final TimeUnit unit) {
+        final Thread current = Thread.currentThread() ;
+        if (current != worker) {
+            throw new IllegalStateException("Cancellation token can only be awaited by the worker thread") ;
+        }
+        final long end = System.nanoTime() + unit.toNanos(timeout) ;
+        while (!cancelled && !current.isInterrupted()) {
+            final long delay = end - System.nanoTime() ;
+            if (delay <= 0) {
+                break ;
+            }
+            LockSupport.parkNanos(delay) ;
+        }
+        return cancelled ;
+    }
+
+    /**
+     * Wait until the token is cancelled or the timeout expires.
+     * @param timeout The maximum time to wait, specified in milliseconds.
+     * @return true if the token has been cancelled, false otherwise.
+     */
+    public boolean await(final long timeout) {
+        return await(timeout, TimeUnit.MILLISECONDS) ;
+    }
+
+    /**
+     * Bind the token to the thread executing doRun.
+     * <p/>
+     * If the token was cancelled before the thread was published then
+     * {@link #cancel()} could not interrupt it, so the interrupt is delivered here.
+     * @param thread The worker thread.
+     */
+    void bind(final Thread thread) {
+        worker = thread ;
+        if (cancelled && interruptOnCancel) {
+            thread.interrupt() ;
+        }
+    }
+
+    /**
+     * Release the binding to the worker thread.
+     */
+    void unbind() {
+        worker = null ;
+    }
+
+    /**
+     * Get the worker thread bound to this token.
+     * @return The worker thread or null if not bound.
+     */
+    Thread getWorker() {
+        return worker ;
+    }
+
+    /**
+     * Cancel the token, waking the worker thread.
+     */
+    void cancel() {
+        if (!cancelled) {
+            cancelled = true ;
+            final Thread thread = worker ;
+            if (thread != null) {
+                LockSupport.unpark(thread) ;
+                if (interruptOnCancel) {
+                    thread.interrupt() ;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package org.jboss.soa.esb.listeners.lifecycle;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A group of managed instances transitioned concurrently.
+ * <p/>
+ * Each group operation fans the transition out to all members at once and waits
+ * for them against a single deadline, so the time taken by the operation is
+ * bounded by the slowest member rather than the sum of all members.  The outcome
+ * of each member is reported individually, a member which fails or times out does
+ * not prevent the transition of the others.  A transition still running when the
+ * deadline expires, or when the calling thread is interrupted, is cancelled.
+ */
+public class ManagedLifecycleGroup {
+
+    private static final Logger logger = Logger.getLogger(ManagedLifecycleGroup.class) ;
+
+    /**
+     * The executor shared by all groups.
+     */
+    private static final ExecutorService executor = Executors.newCachedThreadPool(new GroupThreadFactory()) ;
+
+    /**
+     * The members of the group.
+     */
+    private final List<ManagedLifecycle> members = new CopyOnWriteArrayList<ManagedLifecycle>() ;
+
+    /**
+     * Construct an empty group.
+     */
+    public ManagedLifecycleGroup() {
+    }
+
+    /**
+     * Construct a group containing the specified members.
+     * @param members The members of the group.
+     */
+    public ManagedLifecycleGroup(final Collection<? extends ManagedLifecycle> members) {
+        this.members.addAll(members) ;
+    }
+
+    /**
+     * Add a member to the group.
+     * @param member The managed instance.
+     */
+    public void addMember(final ManagedLifecycle member) {
+        members.add(member) ;
+    }
+
+    /**
+     * Remove a member from the group.
+     * @param member The managed instance.
+     */
+    public void removeMember(final ManagedLifecycle member) {
+        members.remove(member) ;
+    }
+
+    /**
+     * Get the members of the group.
+     * @return The members of the group.
+     */
+    public List<ManagedLifecycle> getMembers() {
+        return Collections.unmodifiableList(members) ;
+    }
+
+    /**
+     * Start all members, initialising those which have only been constructed.
+     * @param timeout The maximum time to wait for all members, specified in milliseconds.
+     * @return The outcome for each member, in member order.
+     */
+    public List<Outcome> startAll(final long timeout) {
+        return execute(Operation.START, timeout) ;
+    }
+
+    /**
+     * Stop all members, waiting for threaded members to stop their thread.
+     * @param timeout The maximum time to wait for all members, specified in milliseconds.
+     * @return The outcome for each member, in member order.
+     */
+    public List<Outcome> stopAll(final long timeout) {
+        return execute(Operation.STOP, timeout) ;
+    }
+
+    /**
+     * Destroy all members, stopping those which are still active.
+     * @param timeout The maximum time to wait for all members, specified in milliseconds.
+     * @return The outcome for each member, in member order.
+     */
+    public List<Outcome> destroyAll(final long timeout) {
+        return execute(Operation.DESTROY, timeout) ;
+    }
+
+    /**
+     * Execute the operation on all members.
+     * @param operation The operation.
+     * @param timeout The maximum time to wait for all members, specified in milliseconds.
+     * @return The outcome for each member, in member order.
+     */
+    private List<Outcome> execute(final Operation operation, final long timeout) {
+        final long start = System.currentTimeMillis() ;
+        final long deadline = start + timeout ;
+        final List<ManagedLifecycle> targets = new ArrayList<ManagedLifecycle>(members) ;
+        final List<Future<Outcome>> futures = new ArrayList<Future<Outcome>>(targets.size()) ;
+        for(ManagedLifecycle member: targets) {
+            futures.add(executor.submit(new MemberTask(operation, member, deadline))) ;
+        }
+
+        final List<Outcome> outcomes = new ArrayList<Outcome>(targets.size()) ;
+        final int numMembers = targets.size() ;
+        boolean interrupted = false ;
+        for(int count = 0 ; count < numMembers ; count++) {
+            final ManagedLifecycle member = targets.get(count) ;
+            final Future<Outcome> future = futures.get(count) ;
+            Outcome outcome ;
+            if (interrupted && future.cancel(true)) {
+                outcome = new Outcome(member, Status.INTERRUPTED, null, System.currentTimeMillis() - start) ;
+            } else {
+                try {
+                    outcome = future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS) ;
+                } catch (final TimeoutException te) {
+                    future.cancel(true) ;
+                    outcome = new Outcome(member, Status.TIMED_OUT, null, System.currentTimeMillis() - start) ;
+                } catch (final ExecutionException ee) {
+                    outcome = new Outcome(member, Status.FAILED, ee.getCause(), System.currentTimeMillis() - start) ;
+                } catch (final InterruptedException ie) {
+                    interrupted = true ;
+                    future.cancel(true) ;
+                    outcome = new Outcome(member, Status.INTERRUPTED, ie, System.currentTimeMillis() - start) ;
+                }
+            }
+            if (outcome.getStatus() != Status.COMPLETED) {
+                logger.warn("Failed to " + operation.name().toLowerCase() + " " + member + ": " + outcome.getStatus(), outcome.getCause()) ;
+            }
+            outcomes.add(outcome) ;
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt() ;
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Group " + operation.name().toLowerCase() + " of " + numMembers + " members took " +
+                (System.currentTimeMillis() - start) + "ms") ;
+        }
+        return outcomes ;
+    }
+
+    /**
+     * Wait until the threaded member has stopped its thread.
+     * @param member The managed instance.
+     * @param deadline The time by which the thread must have stopped.
+     * @return true if the thread has stopped or the member is not threaded, false otherwise.
+     */
+    private static boolean waitUntilStopped(final ManagedLifecycle member, final long deadline) {
+        if (member instanceof AbstractThreadedManagedLifecycle) {
+            return ((AbstractThreadedManagedLifecycle)member).waitUntilStopped(Math.max(0, deadline - System.currentTimeMillis())) ;
+        }
+        return true ;
+    }
+
+    /**
+     * Is the member in a state from which it can be stopped?
+     * @param member The managed instance.
+     * @return true if the member is active, false otherwise.
+     */
+    private static boolean isActive(final ManagedLifecycle member) {
+        final ManagedLifecycleState state = member.getState() ;
+        return ((state == ManagedLifecycleState.STARTED) || (state == ManagedLifecycleState.RUNNING)) ;
+    }
+
+    /**
+     * The group operations.
+     */
+    private enum Operation {
+        START, STOP, DESTROY
+    }
+
+    /**
+     * The status of a member after a group operation.
+     */
+    public enum Status {
+        /**
+         * The transition completed within the deadline.
+         */
+        COMPLETED,
+        /**
+         * The transition raised an exception.
+         */
+        FAILED,
+        /**
+         * The transition did not complete within the deadline and was cancelled.
+         */
+        TIMED_OUT,
+        /**
+         * The calling thread was interrupted before the transition completed and
+         * the transition was cancelled.
+         */
+        INTERRUPTED
+    }
+
+    /**
+     * The outcome of a group operation for a single member.
+     */
+    public static final class Outcome {
+        /**
+         * The managed instance.
+         */
+        private final ManagedLifecycle lifecycle ;
+        /**
+         * The status of the transition.
+         */
+        private final Status status ;
+        /**
+         * The cause of the failure, if any.
+         */
+        private final Throwable cause ;
+        /**
+         * The time taken by the transition.
+         */
+        private final long duration ;
+
+        Outcome(final ManagedLifecycle lifecycle, final Status status, final Throwable cause, final long duration) {
+            this.lifecycle = lifecycle ;
+            this.status = status ;
+            this.cause = cause ;
+            this.duration = duration ;
+        }
+
+        /**
+         * Get the managed instance.
+         * @return The managed instance.
+         */
+        public ManagedLifecycle getLifecycle() {
+            return lifecycle ;
+        }
+
+        /**
+         * Get the status of the transition.
+         * @return The status.
+         */
+        public Status getStatus() {
+            return status ;
+        }
+
+        /**
+         * Get the cause of the failure.
+         * @return The cause or null if the transition did not raise an exception.
+         */
+        public Throwable getCause() {
+            return cause ;
+        }
+
+        /**
+         * Get the time taken by the transition.
+         * @return The duration, specified in milliseconds.
+         */
+        public long getDuration() {
+            return duration ;
+        }
+
+        /**
+         * Did the transition complete within the deadline?
+         * @return true if the transition completed, false otherwise.
+         */
+        public boolean isSuccessful() {
+            return (status == Status.COMPLETED) ;
+        }
+
+        public String toString() {
+            return lifecycle + ": " + status + " (" + duration + "ms)" ;
+        }
+    }
+
+    /**
+     * The task transitioning a single member.
+     */
+    private static final class MemberTask implements Callable<Outcome> {
+        private final Operation operation ;
+        private final ManagedLifecycle member ;
+        private final long deadline ;
+
+        MemberTask(final Operation operation, final ManagedLifecycle member, final long deadline) {
+            this.operation = operation ;
+            this.member = member ;
+            this.deadline = deadline ;
+        }
+
+        public Outcome call() throws ManagedLifecycleException {
+            final long start = System.currentTimeMillis() ;
+            boolean completed = true ;
+            switch (operation) {
+            case START:
+                if (member.getState() == ManagedLifecycleState.CONSTRUCTED) {
+                    member.initialise() ;
+                }
+                member.start() ;
+                break ;
+            case STOP:
+                if (isActive(member)) {
+                    member.stop() ;
+                }
+                completed = waitUntilStopped(member, deadline) ;
+                break ;
+            case DESTROY:
+                if (isActive(member)) {
+                    member.stop() ;
+                }
+                completed = waitUntilStopped(member, deadline) ;
+                if (completed) {
+                    member.destroy() ;
+                }
+                break ;
+            }
+            return new Outcome(member, (completed ? Status.COMPLETED : Status.TIMED_OUT), null, System.currentTimeMillis() - start) ;
+        }
+    }
+
+    /**
+     * The thread factory for group operations.
+     */
+    private static final class GroupThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger() ;
+
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "ManagedLifecycleGroup-" + count.incrementAndGet()) ;
+            thread.setDaemon(true) ;
+            return thread ;
+        }
+    }
+}
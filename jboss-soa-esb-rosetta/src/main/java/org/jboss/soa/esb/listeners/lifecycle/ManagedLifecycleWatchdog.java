@@ -0,0 +1,316 @@
+package org.jboss.soa.esb.listeners.lifecycle;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Watchdog detecting threaded lifecycles which make no progress inside doRun.
+ * <p/>
+ * Lifecycles configured with a stall period report progress through
+ * {@link AbstractThreadedManagedLifecycle#heartbeat()}.  The watchdog checks the
+ * heartbeat at a low frequency and, once a lifecycle has not reported progress
+ * for longer than its stall period, samples the stack of the lifecycle thread
+ * and accumulates the top frames into a hot frame summary.  The summaries are
+ * published through the watchdog MBean.
+ */
+public final class ManagedLifecycleWatchdog implements ManagedLifecycleWatchdogMBean {
+
+    private static final Logger logger = Logger.getLogger(ManagedLifecycleWatchdog.class) ;
+
+    /**
+     * The name of the system property specifying the sample interval in milliseconds.
+     */
+    public static final String SAMPLE_INTERVAL_PROPERTY = "org.jboss.soa.esb.lifecycle.watchdog.interval" ;
+
+    /**
+     * The object name of the watchdog MBean.
+     */
+    public static final String OBJECT_NAME = "jboss.esb:service=ManagedLifecycleWatchdog" ;
+
+    /**
+     * The number of top application frames summarised from each sample.
+     */
+    private static final int SAMPLE_DEPTH = 3 ;
+
+    /**
+     * The class name prefixes of platform frames skipped before sampling.
+     */
+    private static final String[] PLATFORM_PREFIXES = {"java.", "javax.", "sun.", "com.sun.", "jdk."} ;
+
+    /**
+     * The number of hot frames reported in a summary.
+     */
+    private static final int SUMMARY_SIZE = 10 ;
+
+    /**
+     * The singleton watchdog.
+     */
+    private static ManagedLifecycleWatchdog watchdog ;
+
+    /**
+     * The interval between samples.
+     */
+    private final long sampleInterval ;
+
+    /**
+     * The monitored lifecycles.
+     */
+    private final Map<AbstractThreadedManagedLifecycle, Monitor> monitors = new ConcurrentHashMap<AbstractThreadedManagedLifecycle, Monitor>() ;
+
+    /**
+     * Construct the watchdog.
+     * @param sampleInterval The interval between samples, specified in milliseconds.
+     */
+    private ManagedLifecycleWatchdog(final long sampleInterval) {
+        this.sampleInterval = sampleInterval ;
+    }
+
+    /**
+     * Get the watchdog, starting it if necessary.
+     * @return The watchdog.
+     */
+    static synchronized ManagedLifecycleWatchdog getWatchdog() {
+        if (watchdog == null) {
+            watchdog = new ManagedLifecycleWatchdog(Long.getLong(SAMPLE_INTERVAL_PROPERTY, 1000).longValue()) ;
+            final Thread thread = new Thread(watchdog.new SampleTask(), "ManagedLifecycleWatchdog") ;
+            thread.setDaemon(true) ;
+            thread.start() ;
+            try {
+                final MBeanServer server = ManagementFactory.getPlatformMBeanServer() ;
+                server.registerMBean(watchdog, new ObjectName(OBJECT_NAME)) ;
+            } catch (final Exception ex) {
+                logger.warn("Failed to register lifecycle watchdog MBean", ex) ;
+            }
+        }
+        return watchdog ;
+    }
+
+    /**
+     * Start monitoring the lifecycle.
+     * @param lifecycle The lifecycle executing on the current thread.
+     */
+    void register(final AbstractThreadedManagedLifecycle lifecycle) {
+        monitors.put(lifecycle, new Monitor(lifecycle)) ;
+    }
+
+    /**
+     * Stop monitoring the lifecycle.
+     * @param lifecycle The lifecycle.
+     */
+    void deregister(final AbstractThreadedManagedLifecycle lifecycle) {
+        monitors.remove(lifecycle) ;
+    }
+
+    /**
+     * Get the hot frame summary for the lifecycle.
+     * @param lifecycle The lifecycle.
+     * @return The hot frame summary, or null if the lifecycle is not stalled.
+     */
+    String getHotFrames(final AbstractThreadedManagedLifecycle lifecycle) {
+        final Monitor monitor = monitors.get(lifecycle) ;
+        return (monitor == null ? null : monitor.getHotFrames()) ;
+    }
+
+    public long getSampleInterval() {
+        return sampleInterval ;
+    }
+
+    public int getMonitoredCount() {
+        return monitors.size() ;
+    }
+
+    public String[] getStalledLifecycles() {
+        final List<String> stalled = new ArrayList<String>() ;
+        for(Monitor monitor: monitors.values()) {
+            if (monitor.isStalled()) {
+                stalled.add(monitor.getServiceIdentity()) ;
+            }
+        }
+        return stalled.toArray(new String[stalled.size()]) ;
+    }
+
+    public String getHotFrames(final String serviceIdentity) {
+        for(Monitor monitor: monitors.values()) {
+            if (monitor.getServiceIdentity().equals(serviceIdentity)) {
+                return monitor.getHotFrames() ;
+            }
+        }
+        return null ;
+    }
+
+    public String getStallReport() {
+        final StringBuilder builder = new StringBuilder() ;
+        for(Monitor monitor: monitors.values()) {
+            final String hotFrames = monitor.getHotFrames() ;
+            if (hotFrames != null) {
+                builder.append(monitor.getServiceIdentity()).append('\n').append(hotFrames) ;
+            }
+        }
+        return builder.toString() ;
+    }
+
+    /**
+     * Check each monitored lifecycle for progress.
+     */
+    private void sample() {
+        final long now = System.currentTimeMillis() ;
+        for(Monitor monitor: monitors.values()) {
+            try {
+                monitor.sample(now) ;
+            } catch (final RuntimeException re) {
+                logger.warn("Unexpected exception caught while sampling lifecycle thread", re) ;
+            }
+        }
+    }
+
+    /**
+     * The task sampling the monitored lifecycles.
+     */
+    private final class SampleTask implements Runnable {
+        public void run() {
+            while(true) {
+                try {
+                    Thread.sleep(sampleInterval) ;
+                } catch (final InterruptedException ie) {
+                    return ;
+                }
+                sample() ;
+            }
+        }
+    }
+
+    /**
+     * The progress record of a single lifecycle.
+     */
+    private static final class Monitor {
+        /**
+         * The monitored lifecycle.
+         */
+        private final AbstractThreadedManagedLifecycle lifecycle ;
+        /**
+         * The thread executing doRun.
+         */
+        private final Thread thread ;
+        /**
+         * The heartbeat count seen by the last sample.
+         */
+        private long lastHeartbeat ;
+        /**
+         * The time the last progress was seen.
+         */
+        private long lastProgress ;
+        /**
+         * Is the lifecycle stalled?
+         */
+        private boolean stalled ;
+        /**
+         * The number of stack samples taken while stalled.
+         */
+        private int samples ;
+        /**
+         * The number of samples containing each frame.
+         */
+        private final Map<String, Integer> frameCounts = new HashMap<String, Integer>() ;
+
+        Monitor(final AbstractThreadedManagedLifecycle lifecycle) {
+            this.lifecycle = lifecycle ;
+            this.thread = Thread.currentThread() ;
+            this.lastHeartbeat = lifecycle.getHeartbeatCount() ;
+            this.lastProgress = System.currentTimeMillis() ;
+        }
+
+        String getServiceIdentity() {
+            return lifecycle.getServiceIdentity() ;
+        }
+
+        synchronized boolean isStalled() {
+            return stalled ;
+        }
+
+        synchronized void sample(final long now) {
+            final long heartbeat = lifecycle.getHeartbeatCount() ;
+            if (heartbeat != lastHeartbeat) {
+                lastHeartbeat = heartbeat ;
+                lastProgress = now ;
+                if (stalled) {
+                    logger.info("Lifecycle " + getServiceIdentity() + " is making progress again after " + samples + " stalled samples") ;
+                    stalled = false ;
+                    samples = 0 ;
+                    frameCounts.clear() ;
+                }
+            } else if (now - lastProgress > lifecycle.getStallPeriod()) {
+                final StackTraceElement[] stack = thread.getStackTrace() ;
+                final int first = getFirstApplicationFrame(stack) ;
+                final int depth = Math.min(first + SAMPLE_DEPTH, stack.length) ;
+                for(int count = first ; count < depth ; count++) {
+                    final String frame = stack[count].toString() ;
+                    final Integer frameCount = frameCounts.get(frame) ;
+                    frameCounts.put(frame, Integer.valueOf(frameCount == null ? 1 : frameCount.intValue() + 1)) ;
+                }
+                samples++ ;
+                if (!stalled) {
+                    stalled = true ;
+                    logger.warn("Lifecycle " + getServiceIdentity() + " has made no progress for " +
+                        (now - lastProgress) + "ms, thread " + thread.getName() + " at " +
+                        (stack.length > 0 ? stack[first].toString() : "<no stack>")) ;
+                }
+            }
+        }
+
+        /**
+         * Get the index of the first frame outside the platform classes.  A thread
+         * blocked in I/O or a lock would otherwise only report the platform frames.
+         * @param stack The sampled stack.
+         * @return The index of the first application frame, or 0 if there is none.
+         */
+        private int getFirstApplicationFrame(final StackTraceElement[] stack) {
+            for(int count = 0 ; count < stack.length ; count++) {
+                if (!isPlatformFrame(stack[count])) {
+                    return count ;
+                }
+            }
+            return 0 ;
+        }
+
+        private boolean isPlatformFrame(final StackTraceElement frame) {
+            final String className = frame.getClassName() ;
+            for(String prefix: PLATFORM_PREFIXES) {
+                if (className.startsWith(prefix)) {
+                    return true ;
+                }
+            }
+            return false ;
+        }
+
+        synchronized String getHotFrames() {
+            if (!stalled) {
+                return null ;
+            }
+            final List<Map.Entry<String, Integer>> entries = new ArrayList<Map.Entry<String, Integer>>(frameCounts.entrySet()) ;
+            Collections.sort(entries, new Comparator<Map.Entry<String, Integer>>() {
+                public int compare(final Map.Entry<String, Integer> lhs, final Map.Entry<String, Integer> rhs) {
+                    return rhs.getValue().compareTo(lhs.getValue()) ;
+                }
+            }) ;
+            final StringBuilder builder = new StringBuilder() ;
+            final int size = Math.min(SUMMARY_SIZE, entries.size()) ;
+            for(int count = 0 ; count < size ; count++) {
+                final Map.Entry<String, Integer> entry = entries.get(count) ;
+                builder.append("  ").append(entry.getValue()).append('/').append(samples)
+                    .append(' ').append(entry.getKey()).append('\n') ;
+            }
+            return builder.toString() ;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package org.jboss.soa.esb.listeners.lifecycle;
+
+/**
+ * Management interface for the threaded lifecycle watchdog.
+ */
+public interface ManagedLifecycleWatchdogMBean {
+
+    /**
+     * Get the interval between stack samples.
+     * @return The sample interval, specified in milliseconds.
+     */
+    public long getSampleInterval() ;
+
+    /**
+     * Get the number of lifecycle threads currently monitored.
+     * @return The number of monitored lifecycles.
+     */
+    public int getMonitoredCount() ;
+
+    /**
+     * Get the identities of the lifecycles which are not making progress.
+     * @return The stalled lifecycle identities.
+     */
+    public String[] getStalledLifecycles() ;
+
+    /**
+     * Get the hot frame summary for the specified lifecycle.
+     * @param serviceIdentity The lifecycle service identity.
+     * @return The hot frame summary, or null if the lifecycle is not stalled.
+     */
+    public String getHotFrames(final String serviceIdentity) ;
+
+    /**
+     * Get the hot frame summaries for all stalled lifecycles.
+     * @return The hot frame summaries.
+     */
+    public String getStallReport() ;
+}
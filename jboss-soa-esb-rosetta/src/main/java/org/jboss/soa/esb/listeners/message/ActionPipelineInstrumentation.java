@@ -0,0 +1,198 @@
+package org.jboss.soa.esb.listeners.message;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Per-action call, error and latency statistics of an action pipeline.
+ * <p/>
+ * Recording is lock free and does not allocate: counts are held in atomic arrays
+ * indexed by action position and latencies in a {@link LatencyHistogram} per
+ * action.  When disabled the pipeline skips the clock reads altogether, the
+ * instrumentation can be switched on and off at runtime through
+ * {@link #setEnabled(boolean)} or the MBean registered by {@link #registerMBean(String)}.
+ */
+public final class ActionPipelineInstrumentation implements ActionPipelineInstrumentationMBean {
+
+    private static final Logger logger = Logger.getLogger(ActionPipelineInstrumentation.class) ;
+
+    /**
+     * The name of the system property enabling instrumentation by default.
+     */
+    public static final String ENABLED_PROPERTY = "org.jboss.soa.esb.pipeline.instrumentation" ;
+
+    /**
+     * The object name prefix of the instrumentation MBeans.
+     */
+    public static final String OBJECT_NAME_PREFIX = "jboss.esb:service=ActionPipelineInstrumentation,pipeline=" ;
+
+    /**
+     * The percentiles included in the dump, and their labels.
+     */
+    private static final double[] DUMP_PERCENTILES = {50, 99, 99.9} ;
+    private static final String[] DUMP_LABELS = {"p50", "p99", "p999"} ;
+
+    /**
+     * The action names, in pipeline order.
+     */
+    private final String[] actionNames ;
+    /**
+     * The number of calls of each action.
+     */
+    private final AtomicLongArray calls ;
+    /**
+     * The number of failures raised by each action.
+     */
+    private final AtomicLongArray errors ;
+    /**
+     * The latency of each action, in nanoseconds.
+     */
+    private final LatencyHistogram[] latencies ;
+    /**
+     * Is the instrumentation recording?
+     */
+    private volatile boolean enabled = Boolean.getBoolean(ENABLED_PROPERTY) ;
+    /**
+     * The registered object name, or null if not registered.
+     */
+    private ObjectName objectName ;
+
+    /**
+     * Create the instrumentation.
+     * @param actionNames The action names, in pipeline order.
+     */
+    public ActionPipelineInstrumentation(final String[] actionNames) {
+        this.actionNames = actionNames.clone() ;
+        calls = new AtomicLongArray(actionNames.length) ;
+        errors = new AtomicLongArray(actionNames.length) ;
+        latencies = new LatencyHistogram[actionNames.length] ;
+        for(int count = 0 ; count < latencies.length ; count++) {
+            latencies[count] = new LatencyHistogram() ;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled ;
+    }
+
+    public void setEnabled(final boolean enabled) {
+        this.enabled = enabled ;
+    }
+
+    /**
+     * Record calls of an action.
+     * @param index The position of the action.
+     * @param nanos The latency of each call, in nanoseconds.
+     * @param count The number of calls.
+     */
+    public void recordCalls(final int index, final long nanos, final int count) {
+        calls.addAndGet(index, count) ;
+        latencies[index].record(nanos, count) ;
+    }
+
+    /**
+     * Record a failure raised by an action.
+     * @param index The position of the action.
+     */
+    public void recordError(final int index) {
+        errors.incrementAndGet(index) ;
+    }
+
+    /**
+     * Get the latency histogram of an action.
+     * @param index The position of the action.
+     * @return The latency histogram, in nanoseconds.
+     */
+    public LatencyHistogram getLatency(final int index) {
+        return latencies[index] ;
+    }
+
+    public String[] getActionNames() {
+        return actionNames.clone() ;
+    }
+
+    public long[] getCallCounts() {
+        final long[] result = new long[actionNames.length] ;
+        for(int count = 0 ; count < result.length ; count++) {
+            result[count] = calls.get(count) ;
+        }
+        return result ;
+    }
+
+    public long[] getErrorCounts() {
+        final long[] result = new long[actionNames.length] ;
+        for(int count = 0 ; count < result.length ; count++) {
+            result[count] = errors.get(count) ;
+        }
+        return result ;
+    }
+
+    public long[] getLatencyPercentiles(final double percentile) {
+        final long[] result = new long[actionNames.length] ;
+        for(int count = 0 ; count < result.length ; count++) {
+            result[count] = latencies[count].getPercentile(percentile) / 1000 ;
+        }
+        return result ;
+    }
+
+    public void reset() {
+        for(int count = 0 ; count < actionNames.length ; count++) {
+            calls.set(count, 0) ;
+            errors.set(count, 0) ;
+            latencies[count].reset() ;
+        }
+    }
+
+    public String dump() {
+        final StringBuilder builder = new StringBuilder() ;
+        for(int count = 0 ; count < actionNames.length ; count++) {
+            final LatencyHistogram latency = latencies[count] ;
+            builder.append(count).append(' ').append(actionNames[count])
+                .append(": calls=").append(calls.get(count))
+                .append(", errors=").append(errors.get(count))
+                .append(", mean=").append(latency.getMean() / 1000).append("us") ;
+            for(int percentile = 0 ; percentile < DUMP_PERCENTILES.length ; percentile++) {
+                builder.append(", ").append(DUMP_LABELS[percentile]).append('=')
+                    .append(latency.getPercentile(DUMP_PERCENTILES[percentile]) / 1000).append("us") ;
+            }
+            builder.append(", max=").append(latency.getMax() / 1000).append("us\n") ;
+        }
+        return builder.toString() ;
+    }
+
+    /**
+     * Register the instrumentation MBean.
+     * @param pipelineName The name identifying the pipeline.
+     */
+    public synchronized void registerMBean(final String pipelineName) {
+        if (objectName != null) {
+            return ;
+        }
+        try {
+            final ObjectName name = new ObjectName(OBJECT_NAME_PREFIX + ObjectName.quote(pipelineName)) ;
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name) ;
+            objectName = name ;
+        } catch (final Exception ex) {
+            logger.warn("Failed to register action pipeline instrumentation MBean for " + pipelineName, ex) ;
+        }
+    }
+
+    /**
+     * Unregister the instrumentation MBean, if registered.
+     */
+    public synchronized void unregisterMBean() {
+        if (objectName == null) {
+            return ;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName) ;
+        } catch (final Exception ex) {
+            logger.warn("Failed to unregister action pipeline instrumentation MBean " + objectName, ex) ;
+        }
+        objectName = null ;
+    }
+}
@@ -0,0 +1,55 @@
+package org.jboss.soa.esb.listeners.message;
+
+/**
+ * Management interface for the instrumentation of an action pipeline.
+ */
+public interface ActionPipelineInstrumentationMBean {
+
+    /**
+     * Is the instrumentation recording?
+     * @return true if action calls are recorded, false otherwise.
+     */
+    public boolean isEnabled() ;
+
+    /**
+     * Enable or disable the recording of action calls.
+     * @param enabled true if action calls should be recorded, false otherwise.
+     */
+    public void setEnabled(final boolean enabled) ;
+
+    /**
+     * Get the names of the actions, in pipeline order.
+     * @return The action names.
+     */
+    public String[] getActionNames() ;
+
+    /**
+     * Get the number of calls of each action, in pipeline order.
+     * @return The call counts.
+     */
+    public long[] getCallCounts() ;
+
+    /**
+     * Get the number of failures raised by each action, in pipeline order.
+     * @return The error counts.
+     */
+    public long[] getErrorCounts() ;
+
+    /**
+     * Get the latency of each action at the specified percentile, in pipeline order.
+     * @param percentile The percentile, between 0 and 100.
+     * @return The latencies, specified in microseconds.
+     */
+    public long[] getLatencyPercentiles(final double percentile) ;
+
+    /**
+     * Clear the recorded statistics.
+     */
+    public void reset() ;
+
+    /**
+     * Dump the statistics of each action.
+     * @return The statistics, one action per line.
+     */
+    public String dump() ;
+}
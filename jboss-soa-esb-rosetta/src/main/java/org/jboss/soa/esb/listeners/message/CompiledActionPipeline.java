@@ -0,0 +1,719 @@
+package org.jboss.soa.esb.listeners.message;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+import org.jboss.soa.esb.ConfigurationException;
+import org.jboss.soa.esb.actions.ActionCompletionCallback;
+import org.jboss.soa.esb.actions.ActionLifecycleException;
+import org.jboss.soa.esb.actions.ActionPipelineProcessor;
+import org.jboss.soa.esb.actions.ActionProcessingException;
+import org.jboss.soa.esb.actions.AsyncActionPipelineProcessor;
+import org.jboss.soa.esb.actions.BatchActionPipelineProcessor;
+import org.jboss.soa.esb.actions.MessageBatch;
+import org.jboss.soa.esb.helpers.ConfigTree;
+import org.jboss.soa.esb.listeners.lifecycle.AbstractManagedLifecycle;
+import org.jboss.soa.esb.message.Message;
+import org.jboss.soa.esb.message.MessagePool;
+
+/**
+ * Action pipeline compiled from the action configuration of a service.
+ * <p/>
+ * The action processors are instantiated once, when the pipeline is created,
+ * and bound into an array which is walked for every message.  Actions
+ * implementing {@link ActionPipelineProcessor} are invoked directly through the
+ * interface, actions configured with a custom process method are bound to a
+ * method resolved at compile time, so no method lookup takes place per message.
+ * <p/>
+ * If an action returns null the pipeline terminates successfully.  The
+ * processors which have seen the message are notified of the outcome in
+ * reverse order, through processSuccess or processException.
+ * <p/>
+ * Messages can also be delivered in micro-batches through
+ * {@link #processBatch(List)}.  Actions implementing
+ * {@link BatchActionPipelineProcessor} receive each micro-batch in a single call,
+ * other actions process the messages of the micro-batch in turn.
+ * <p/>
+ * Messages processed through {@link #processAsync(Message, ActionCompletionCallback)}
+ * do not hold a thread while an {@link AsyncActionPipelineProcessor} is waiting,
+ * the pipeline resumes on the thread completing the asynchronous action.
+ * <p/>
+ * If a {@link MessagePool} is set, messages acquired from the pool are released
+ * back to it once the processors have been notified of their outcome.  This
+ * applies to the message which entered the pipeline, if an action replaced it,
+ * and to the message of a pipeline which was terminated or failed.  The message
+ * returned by the last action is handed to the caller, which releases it to the
+ * pool once it is done with it.
+ * <p/>
+ * Per-action call counts, errors and latencies are recorded by the
+ * {@link ActionPipelineInstrumentation} of the pipeline while it is enabled.  The
+ * instrumentation of a pipeline compiled from a service configuration is
+ * registered as an MBean while the pipeline is initialised.
+ */
+public class CompiledActionPipeline {
+
+    private static final Logger logger = Logger.getLogger(CompiledActionPipeline.class) ;
+
+    /**
+     * The name of the element grouping the actions.
+     */
+    public static final String ACTIONS_ELEMENT = "actions" ;
+
+    /**
+     * The name of the action element.
+     */
+    public static final String ACTION_ELEMENT = "action" ;
+
+    /**
+     * The name of the attribute specifying the action class.
+     */
+    public static final String ACTION_CLASS_ATTRIBUTE = "class" ;
+
+    /**
+     * The name of the attribute specifying a custom process method.
+     */
+    public static final String PROCESS_METHOD_ATTRIBUTE = "process" ;
+
+    /**
+     * The name of the attribute specifying the micro-batch size.
+     */
+    public static final String BATCH_SIZE_ATTRIBUTE = "batchSize" ;
+
+    /**
+     * The default micro-batch size.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 64 ;
+
+    /**
+     * The name of the attribute enabling the instrumentation.
+     */
+    public static final String INSTRUMENTATION_ATTRIBUTE = "instrumentation" ;
+
+    /**
+     * The bound action processors, in pipeline order.
+     */
+    private final ActionPipelineProcessor[] processors ;
+
+    /**
+     * The maximum number of messages delivered to an action in a single batch.
+     */
+    private int batchSize = DEFAULT_BATCH_SIZE ;
+
+    /**
+     * The pool receiving pooled messages once processed, or null if messages are not pooled.
+     */
+    private volatile MessagePool messagePool ;
+
+    /**
+     * The per-action instrumentation.
+     */
+    private final ActionPipelineInstrumentation instrumentation ;
+
+    /**
+     * The name under which the instrumentation is registered, or null if not registered.
+     */
+    private String instrumentationName ;
+
+    /**
+     * Compile the pipeline from the service configuration.
+     * @param config The service configuration, containing the action elements directly or within an actions element.
+     * @throws ConfigurationException for errors creating the actions.
+     */
+    public CompiledActionPipeline(final ConfigTree config) throws ConfigurationException {
+        this(createProcessors(config)) ;
+        final ConfigTree actionsConfig = config.getFirstChild(ACTIONS_ELEMENT) ;
+        final long batchSizeVal = (actionsConfig != null ? actionsConfig : config).getLongAttribute(BATCH_SIZE_ATTRIBUTE, DEFAULT_BATCH_SIZE) ;
+        if ((batchSizeVal < 1) || (batchSizeVal > Integer.MAX_VALUE)) {
+            throw new ConfigurationException("Invalid " + BATCH_SIZE_ATTRIBUTE + " value of " + batchSizeVal) ;
+        }
+        batchSize = (int)batchSizeVal ;
+        instrumentation.setEnabled(config.getBooleanAttribute(INSTRUMENTATION_ATTRIBUTE, instrumentation.isEnabled())) ;
+        final String category = config.getAttribute(AbstractManagedLifecycle.PARAM_SERVICE_CATEGORY) ;
+        final String service = config.getAttribute(AbstractManagedLifecycle.PARAM_SERVICE_NAME) ;
+        instrumentationName = ((category == null) && (service == null) ? null : category + ":" + service) ;
+    }
+
+    /**
+     * Create the pipeline from existing action processors.
+     * @param processors The action processors, in pipeline order.
+     */
+    public CompiledActionPipeline(final List<? extends ActionPipelineProcessor> processors) {
+        this.processors = processors.toArray(new ActionPipelineProcessor[processors.size()]) ;
+        final String[] actionNames = new String[this.processors.length] ;
+        for(int count = 0 ; count < actionNames.length ; count++) {
+            final ActionPipelineProcessor processor = this.processors[count] ;
+            actionNames[count] = (processor instanceof MethodActionPipelineProcessor ? processor.toString() : processor.getClass().getName()) ;
+        }
+        instrumentation = new ActionPipelineInstrumentation(actionNames) ;
+    }
+
+    /**
+     * Initialise the actions.  Actions already initialised are destroyed if a subsequent action fails.
+     * @throws ActionLifecycleException for errors during initialisation.
+     */
+    public void initialise() throws ActionLifecycleException {
+        for(int count = 0 ; count < processors.length ; count++) {
+            try {
+                processors[count].initialise() ;
+            } catch (final ActionLifecycleException ale) {
+                destroy(count - 1) ;
+                throw ale ;
+            }
+        }
+        if (instrumentationName != null) {
+            instrumentation.registerMBean(instrumentationName) ;
+        }
+    }
+
+    /**
+     * Destroy the actions in reverse order.
+     */
+    public void destroy() {
+        instrumentation.unregisterMBean() ;
+        destroy(processors.length - 1) ;
+    }
+
+    /**
+     * Process the message through the pipeline.
+     * @param message The message.
+     * @return The message returned by the last action, or null if an action terminated the pipeline.
+     *     A pooled result is owned by the caller, which must release it to the message pool.
+     * @throws ActionProcessingException if an action raised an exception, after the processors have been notified.
+     */
+    public Message process(final Message message) throws ActionProcessingException {
+        Message current = message ;
+        final int numProcessors = processors.length ;
+        for(int count = 0 ; count < numProcessors ; count++) {
+            final Message next ;
+            try {
+                next = invoke(count, current) ;
+            } catch (final Throwable th) {
+                notifyException(count, message, current, th) ;
+                if (th instanceof ActionProcessingException) {
+                    throw (ActionProcessingException)th ;
+                } else if (th instanceof Error) {
+                    throw (Error)th ;
+                }
+                throw new ActionProcessingException("Unexpected exception from action " + processors[count], th) ;
+            }
+            if (next == null) {
+                notifySuccess(count, message, current) ;
+                return null ;
+            }
+            current = next ;
+        }
+        notifySuccess(numProcessors - 1, message, current, true) ;
+        return current ;
+    }
+
+    /**
+     * Process the message through the pipeline without blocking on asynchronous actions.
+     * <p/>
+     * Synchronous actions are executed on the calling thread, or on the thread
+     * which completed the preceding asynchronous action.  The callback is notified
+     * once the processors which have seen the message have been notified of the outcome.
+     * @param message The message.
+     * @param callback The callback notified with the message returned by the last action,
+     *     null if an action terminated the pipeline, or the throwable raised by an action.
+     *     A pooled result is owned by the callback, which must release it to the message pool.
+     */
+    public void processAsync(final Message message, final ActionCompletionCallback callback) {
+        new AsyncInvocation(message, callback).advance() ;
+    }
+
+    /**
+     * Process the messages through the pipeline in micro-batches.
+     * <p/>
+     * Each message is processed as it would be by {@link #process(Message)}, the
+     * processors which have seen a message are notified of its outcome once the
+     * micro-batch containing it has passed through the pipeline.
+     * @param messages The messages.
+     * @return The batch holding the outcome of each message, in the order supplied.  Pooled
+     *     results are owned by the caller, which must release them to the message pool.
+     */
+    public MessageBatch processBatch(final List<Message> messages) {
+        final MessageBatch batch = new MessageBatch(messages) ;
+        final int size = batch.size() ;
+        for(int from = 0 ; from < size ; from += batchSize) {
+            processMicroBatch(batch.subBatch(from, Math.min(size, from + batchSize))) ;
+        }
+        return batch ;
+    }
+
+    /**
+     * Get the maximum number of messages delivered to an action in a single batch.
+     * @return The micro-batch size.
+     */
+    public int getBatchSize() {
+        return batchSize ;
+    }
+
+    /**
+     * Set the maximum number of messages delivered to an action in a single batch.
+     * @param batchSize The micro-batch size.
+     */
+    public void setBatchSize(final int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Invalid batch size " + batchSize) ;
+        }
+        this.batchSize = batchSize ;
+    }
+
+    /**
+     * Get the pool receiving pooled messages once processed.
+     * @return The message pool, or null if messages are not pooled.
+     */
+    public MessagePool getMessagePool() {
+        return messagePool ;
+    }
+
+    /**
+     * Set the pool receiving pooled messages once processed.  Once the processors
+     * have been notified of the outcome, a message acquired from the pool is
+     * cleared and reused, so it must not be retained by the actions.  The result of
+     * the pipeline is not released, the caller releases it once it has been used.
+     * @param messagePool The message pool, or null to disable pooling.
+     */
+    public void setMessagePool(final MessagePool messagePool) {
+        this.messagePool = messagePool ;
+    }
+
+    /**
+     * Release a result of the pipeline to the message pool once the caller is done with it.
+     * @param result The message returned by the pipeline, or null.
+     * @return true if the message was released to the message pool, false if it is not pooled.
+     */
+    public boolean release(final Message result) {
+        final MessagePool pool = messagePool ;
+        if ((pool == null) || !pool.owns(result)) {
+            return false ;
+        }
+        release(pool, result) ;
+        return true ;
+    }
+
+    /**
+     * Get the per-action instrumentation of the pipeline.
+     * @return The instrumentation.
+     */
+    public ActionPipelineInstrumentation getInstrumentation() {
+        return instrumentation ;
+    }
+
+    /**
+     * Get the number of actions in the pipeline.
+     * @return The number of actions.
+     */
+    public int getActionCount() {
+        return processors.length ;
+    }
+
+    /**
+     * Get the bound action processor at the specified position.
+     * @param index The position of the action.
+     * @return The action processor.
+     */
+    public ActionPipelineProcessor getProcessor(final int index) {
+        return processors[index] ;
+    }
+
+    /**
+     * Process a micro-batch through the pipeline and notify the outcome of each message.
+     * @param batch The micro-batch.
+     */
+    private void processMicroBatch(final MessageBatch batch) {
+        final int size = batch.size() ;
+        final Message[] entries = new Message[size] ;
+        final Message[] inputs = new Message[size] ;
+        final int[] lastIndex = new int[size] ;
+        Arrays.fill(lastIndex, -1) ;
+        for(int count = 0 ; count < size ; count++) {
+            entries[count] = batch.get(count) ;
+        }
+
+        final int numProcessors = processors.length ;
+        for(int index = 0 ; index < numProcessors ; index++) {
+            int active = 0 ;
+            for(int count = 0 ; count < size ; count++) {
+                if (batch.isActive(count)) {
+                    inputs[count] = batch.get(count) ;
+                    lastIndex[count] = index ;
+                    active++ ;
+                }
+            }
+            if (active == 0) {
+                break ;
+            }
+            final ActionPipelineProcessor processor = processors[index] ;
+            final boolean timed = instrumentation.isEnabled() ;
+            final long start = (timed ? System.nanoTime() : 0) ;
+            if (processor instanceof BatchActionPipelineProcessor) {
+                try {
+                    ((BatchActionPipelineProcessor)processor).processBatch(batch) ;
+                } catch (final Throwable th) {
+                    for(int count = 0 ; count < size ; count++) {
+                        if ((lastIndex[count] == index) && batch.isActive(count)) {
+                            batch.fail(count, th) ;
+                        }
+                    }
+                }
+            } else {
+                batch.processEach(processor) ;
+            }
+            if (timed) {
+                instrumentation.recordCalls(index, (System.nanoTime() - start) / active, active) ;
+            }
+        }
+
+        for(int count = 0 ; count < size ; count++) {
+            final int index = lastIndex[count] ;
+            if (index >= 0) {
+                final Throwable failure = batch.getFailure(count) ;
+                if (failure != null) {
+                    notifyException(index, entries[count], inputs[count], failure) ;
+                } else {
+                    final Message result = batch.get(count) ;
+                    if (result != null) {
+                        notifySuccess(index, entries[count], result, true) ;
+                    } else {
+                        notifySuccess(index, entries[count], inputs[count]) ;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Notify the processors up to and including the specified position of a successful outcome.
+     * @param index The position of the last processor executed.
+     * @param input The message which entered the pipeline.
+     * @param message The message.
+     */
+    protected void notifySuccess(final int index, final Message input, final Message message) {
+        notifySuccess(index, input, message, false) ;
+    }
+
+    /**
+     * Notify the processors up to and including the specified position of a successful outcome.
+     * @param index The position of the last processor executed.
+     * @param input The message which entered the pipeline.
+     * @param message The message.
+     * @param returned true if the message is returned to the caller, which then owns it.
+     */
+    private void notifySuccess(final int index, final Message input, final Message message, final boolean returned) {
+        for(int count = index ; count >= 0 ; count--) {
+            try {
+                processors[count].processSuccess(message) ;
+            } catch (final Throwable th) {
+                logger.warn("Unexpected exception caught while notifying success to action " + processors[count], th) ;
+            }
+        }
+        if (!returned) {
+            recycle(input, message) ;
+        } else if (input != message) {
+            final MessagePool pool = messagePool ;
+            if (pool != null) {
+                release(pool, input) ;
+            }
+        }
+    }
+
+    /**
+     * Notify the processors up to and including the specified position of a failure.
+     * @param index The position of the failing processor.
+     * @param input The message which entered the pipeline.
+     * @param message The message.
+     * @param cause The throwable raised by the failing processor.
+     */
+    protected void notifyException(final int index, final Message input, final Message message, final Throwable cause) {
+        if (instrumentation.isEnabled()) {
+            instrumentation.recordError(index) ;
+        }
+        for(int count = index ; count >= 0 ; count--) {
+            try {
+                processors[count].processException(message, cause) ;
+            } catch (final Throwable th) {
+                logger.warn("Unexpected exception caught while notifying exception to action " + processors[count], th) ;
+            }
+        }
+        recycle(input, message) ;
+    }
+
+    /**
+     * Release the processed message, and the message which entered the pipeline if an
+     * action replaced it, to the message pool if they were acquired from it.
+     * @param input The message which entered the pipeline.
+     * @param message The processed message.
+     */
+    private void recycle(final Message input, final Message message) {
+        final MessagePool pool = messagePool ;
+        if (pool != null) {
+            release(pool, message) ;
+            if (input != message) {
+                release(pool, input) ;
+            }
+        }
+    }
+
+    /**
+     * Release the message to the message pool if it was acquired from it.
+     * @param pool The message pool.
+     * @param message The message.
+     */
+    private void release(final MessagePool pool, final Message message) {
+        try {
+            pool.release(message) ;
+        } catch (final IllegalStateException ise) {
+            logger.warn("Message released more than once", ise) ;
+        }
+    }
+
+    /**
+     * Invoke the action at the specified position, recording the call if instrumented.
+     * @param index The position of the action.
+     * @param message The message.
+     * @return The message returned by the action.
+     * @throws ActionProcessingException if raised by the action.
+     */
+    Message invoke(final int index, final Message message) throws ActionProcessingException {
+        if (!instrumentation.isEnabled()) {
+            return processors[index].process(message) ;
+        }
+        final long start = System.nanoTime() ;
+        try {
+            return processors[index].process(message) ;
+        } finally {
+            instrumentation.recordCalls(index, System.nanoTime() - start, 1) ;
+        }
+    }
+
+    /**
+     * Destroy the actions up to and including the specified position, in reverse order.
+     * @param index The position of the last action to destroy.
+     */
+    private void destroy(final int index) {
+        for(int count = index ; count >= 0 ; count--) {
+            try {
+                processors[count].destroy() ;
+            } catch (final Throwable th) {
+                logger.warn("Unexpected exception caught while destroying action " + processors[count], th) ;
+            }
+        }
+    }
+
+    /**
+     * Create the action processors described by the configuration.
+     * @param config The service configuration.
+     * @return The action processors, in pipeline order.
+     * @throws ConfigurationException for errors creating the actions.
+     */
+    static List<ActionPipelineProcessor> createProcessors(final ConfigTree config) throws ConfigurationException {
+        final ConfigTree[] actionConfigs = getActionConfigs(config) ;
+        final List<ActionPipelineProcessor> processors = new ArrayList<ActionPipelineProcessor>(actionConfigs.length) ;
+        for(ConfigTree actionConfig: actionConfigs) {
+            processors.add(createProcessor(actionConfig)) ;
+        }
+        return processors ;
+    }
+
+    /**
+     * Get the action configurations of the service, in pipeline order.
+     * @param config The service configuration.
+     * @return The action configurations.
+     */
+    static ConfigTree[] getActionConfigs(final ConfigTree config) {
+        final ConfigTree actionsConfig = config.getFirstChild(ACTIONS_ELEMENT) ;
+        return (actionsConfig != null ? actionsConfig : config).getChildren(ACTION_ELEMENT) ;
+    }
+
+    /**
+     * Create the action processor described by the action configuration.
+     * @param actionConfig The action configuration.
+     * @return The bound action processor.
+     * @throws ConfigurationException for errors creating the action.
+     */
+    static ActionPipelineProcessor createProcessor(final ConfigTree actionConfig) throws ConfigurationException {
+        final String className = actionConfig.getRequiredAttribute(ACTION_CLASS_ATTRIBUTE) ;
+        final Object action = createAction(className, actionConfig) ;
+        final String processMethod = actionConfig.getAttribute(PROCESS_METHOD_ATTRIBUTE) ;
+        if ((processMethod == null) || ActionPipelineProcessor.PROCESS_METHOD.equals(processMethod.trim())) {
+            if (action instanceof ActionPipelineProcessor) {
+                return (ActionPipelineProcessor)action ;
+            }
+            return new MethodActionPipelineProcessor(action, ActionPipelineProcessor.PROCESS_METHOD) ;
+        }
+        return new MethodActionPipelineProcessor(action, processMethod.trim()) ;
+    }
+
+    /**
+     * Instantiate the action, using the ConfigTree constructor if present.
+     * @param className The name of the action class.
+     * @param actionConfig The action configuration.
+     * @return The action instance.
+     * @throws ConfigurationException for errors creating the action.
+     */
+    private static Object createAction(final String className, final ConfigTree actionConfig) throws ConfigurationException {
+        final Class<?> actionClass ;
+        try {
+            actionClass = Class.forName(className, true, getClassLoader()) ;
+        } catch (final ClassNotFoundException cnfe) {
+            throw new ConfigurationException("Action class " + className + " not found", cnfe) ;
+        }
+        try {
+            try {
+                final Constructor<?> constructor = actionClass.getConstructor(new Class[] {ConfigTree.class}) ;
+                return constructor.newInstance(new Object[] {actionConfig}) ;
+            } catch (final NoSuchMethodException nsme) {
+                return actionClass.newInstance() ;
+            }
+        } catch (final InvocationTargetException ite) {
+            throw new ConfigurationException("Failed to construct action " + className, ite.getCause()) ;
+        } catch (final InstantiationException ie) {
+            throw new ConfigurationException("Failed to construct action " + className, ie) ;
+        } catch (final IllegalAccessException iae) {
+            throw new ConfigurationException("Failed to construct action " + className, iae) ;
+        }
+    }
+
+    /**
+     * The asynchronous progress of a single message through the pipeline.
+     */
+    private final class AsyncInvocation implements ActionCompletionCallback {
+        /**
+         * The callback notified of the pipeline outcome.
+         */
+        private final ActionCompletionCallback callback ;
+        /**
+         * The message which entered the pipeline.
+         */
+        private final Message input ;
+        /**
+         * The position of the action currently processing the message.
+         */
+        private int index ;
+        /**
+         * The message passed to the current action.
+         */
+        private Message current ;
+        /**
+         * Is the pipeline waiting for an asynchronous action?  The action may complete
+         * on any thread, possibly more than once, so the completion claims the wait
+         * atomically.  Setting and claiming the flag also publishes the invocation
+         * state between the threads.
+         */
+        private final AtomicBoolean waiting = new AtomicBoolean() ;
+        /**
+         * The start time of the asynchronous action, if instrumented.
+         */
+        private long asyncStart ;
+
+        AsyncInvocation(final Message message, final ActionCompletionCallback callback) {
+            this.input = message ;
+            this.current = message ;
+            this.callback = callback ;
+        }
+
+        /**
+         * Execute actions until an asynchronous action is started or the pipeline completes.
+         */
+        void advance() {
+            if (processors.length == 0) {
+                callback.completed(current) ;
+                return ;
+            }
+            while(true) {
+                final ActionPipelineProcessor processor = processors[index] ;
+                if (processor instanceof AsyncActionPipelineProcessor) {
+                    asyncStart = (instrumentation.isEnabled() ? System.nanoTime() : 0) ;
+                    waiting.set(true) ;
+                    try {
+                        ((AsyncActionPipelineProcessor)processor).processAsync(current, this) ;
+                    } catch (final Throwable th) {
+                        failed(th) ;
+                    }
+                    return ;
+                }
+                final Message next ;
+                try {
+                    next = invoke(index, current) ;
+                } catch (final Throwable th) {
+                    fail(th) ;
+                    return ;
+                }
+                if (!step(next)) {
+                    return ;
+                }
+            }
+        }
+
+        public void completed(final Message message) {
+            if (resume() && step(message)) {
+                advance() ;
+            }
+        }
+
+        public void failed(final Throwable th) {
+            if (resume()) {
+                fail(th) ;
+            }
+        }
+
+        /**
+         * Accept the completion of the asynchronous action.
+         * @return true if the pipeline was waiting, false if the action completed more than once.
+         */
+        private boolean resume() {
+            if (!waiting.compareAndSet(true, false)) {
+                logger.warn("Ignoring repeated completion from action " + processors[index]) ;
+                return false ;
+            }
+            if ((asyncStart != 0) && instrumentation.isEnabled()) {
+                instrumentation.recordCalls(index, System.nanoTime() - asyncStart, 1) ;
+            }
+            return true ;
+        }
+
+        /**
+         * Move on to the next action.
+         * @param next The message returned by the current action.
+         * @return true if there are more actions to execute, false if the pipeline has completed.
+         */
+        private boolean step(final Message next) {
+            if (next == null) {
+                notifySuccess(index, input, current) ;
+                callback.completed(null) ;
+                return false ;
+            }
+            current = next ;
+            if (++index == processors.length) {
+                notifySuccess(index - 1, input, current, true) ;
+                callback.completed(current) ;
+                return false ;
+            }
+            return true ;
+        }
+
+        /**
+         * Complete the pipeline with a failure of the current action.
+         * @param th The throwable raised by the current action.
+         */
+        private void fail(final Throwable th) {
+            notifyException(index, input, current, th) ;
+            callback.failed(th) ;
+        }
+    }
+
+    /**
+     * Get the class loader used to load the actions.
+     * @return The class loader.
+     */
+    private static ClassLoader getClassLoader() {
+        final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader() ;
+        return (contextClassLoader != null ? contextClassLoader : CompiledActionPipeline.class.getClassLoader()) ;
+    }
+}
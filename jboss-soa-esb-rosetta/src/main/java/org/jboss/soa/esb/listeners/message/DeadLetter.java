@@ -0,0 +1,123 @@
+package org.jboss.soa.esb.listeners.message;
+
+import java.io.IOException;
+
+import org.jboss.soa.esb.message.Message;
+
+/**
+ * A message recorded in the {@link DeadLetterStore}, together with the fault
+ * and exception which caused its processing to fail.
+ */
+public final class DeadLetter {
+
+    private final long sequence ;
+    private final long timestamp ;
+    private final String category ;
+    private final String name ;
+    private final String exceptionClass ;
+    private final String exceptionMessage ;
+    private final String stackTrace ;
+    private final String faultCode ;
+    private final String faultReason ;
+    private final byte[] content ;
+
+    DeadLetter(final long sequence, final long timestamp, final String category, final String name,
+        final String exceptionClass, final String exceptionMessage, final String stackTrace,
+        final String faultCode, final String faultReason, final byte[] content) {
+        this.sequence = sequence ;
+        this.timestamp = timestamp ;
+        this.category = category ;
+        this.name = name ;
+        this.exceptionClass = exceptionClass ;
+        this.exceptionMessage = exceptionMessage ;
+        this.stackTrace = stackTrace ;
+        this.faultCode = faultCode ;
+        this.faultReason = faultReason ;
+        this.content = content ;
+    }
+
+    /**
+     * Get the position of the dead letter within the store.
+     * @return The sequence number, starting at zero.
+     */
+    public long getSequence() {
+        return sequence ;
+    }
+
+    /**
+     * Get the time the dead letter was recorded.
+     * @return The time in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+        return timestamp ;
+    }
+
+    /**
+     * Get the category of the service which failed to process the message.
+     * @return The service category.
+     */
+    public String getCategory() {
+        return category ;
+    }
+
+    /**
+     * Get the name of the service which failed to process the message.
+     * @return The service name.
+     */
+    public String getName() {
+        return name ;
+    }
+
+    /**
+     * Get the class name of the exception raised by the pipeline.
+     * @return The exception class name, or null if no exception was recorded.
+     */
+    public String getExceptionClass() {
+        return exceptionClass ;
+    }
+
+    /**
+     * Get the message of the exception raised by the pipeline.
+     * @return The exception message, or null if the exception had none.
+     */
+    public String getExceptionMessage() {
+        return exceptionMessage ;
+    }
+
+    /**
+     * Get the stack trace of the exception raised by the pipeline.
+     * @return The stack trace, or null if no exception was recorded.
+     */
+    public String getStackTrace() {
+        return stackTrace ;
+    }
+
+    /**
+     * Get the fault code of the message.
+     * @return The fault code, or null if the message carried no fault code.
+     */
+    public String getFaultCode() {
+        return faultCode ;
+    }
+
+    /**
+     * Get the fault reason of the message.
+     * @return The fault reason, or null if the message carried no fault reason.
+     */
+    public String getFaultReason() {
+        return faultReason ;
+    }
+
+    /**
+     * Decode the message.  Each call returns a new copy of the message.
+     * @return The message.
+     * @throws IOException for errors decoding the message.
+     */
+    public Message getMessage() throws IOException {
+        return MessageEncoding.decode(content) ;
+    }
+
+    public String toString() {
+        return "DeadLetter[" + sequence + ", " + category + ':' + name + ", " + timestamp + ", " + exceptionClass + ": " + exceptionMessage + ']' ;
+    }
+}
@@ -0,0 +1,186 @@
+package org.jboss.soa.esb.listeners.message;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.jboss.soa.esb.actions.MessageBatch;
+import org.jboss.soa.esb.message.Message;
+
+/**
+ * Re-injects dead letters selected from a {@link DeadLetterStore} into an action pipeline.
+ * <p/>
+ * The selected dead letters are read sequentially through a {@link DeadLetterStore.Cursor}
+ * and delivered to the pipeline through {@link CompiledActionPipeline#processBatch(List)},
+ * so the per-message overhead of the replay is the decoding of the message and
+ * the cost of the actions themselves.  The replay rate is limited by pacing the
+ * batches against the configured number of messages per second, the batch size
+ * being reduced at low rates so each batch covers at most a tenth of a second.
+ * <p/>
+ * Messages failing again are reported to the pipeline actions through
+ * processException as usual, so a pipeline starting with a dead letter action
+ * records them again.  The replayed dead letters are not removed from the store.
+ */
+public class DeadLetterReplayer {
+
+    private static final Logger logger = Logger.getLogger(DeadLetterReplayer.class) ;
+
+    private static final long NANOS_PER_SECOND = 1000000000L ;
+
+    private final DeadLetterStore store ;
+    private final CompiledActionPipeline pipeline ;
+
+    private volatile int rate ;
+    private volatile boolean stopped ;
+
+    private final AtomicLong replayedCount = new AtomicLong() ;
+    private final AtomicLong failedCount = new AtomicLong() ;
+    private final AtomicLong skippedCount = new AtomicLong() ;
+
+    /**
+     * Create a replayer.
+     * @param store The dead letter store, which must be open.
+     * @param pipeline The initialised pipeline receiving the messages.
+     */
+    public DeadLetterReplayer(final DeadLetterStore store, final CompiledActionPipeline pipeline) {
+        this.store = store ;
+        this.pipeline = pipeline ;
+    }
+
+    /**
+     * Set the maximum replay rate.
+     * @param rate The maximum number of messages per second, zero for no limit.
+     */
+    public void setRate(final int rate) {
+        if (rate < 0) {
+            throw new IllegalArgumentException("Invalid replay rate " + rate) ;
+        }
+        this.rate = rate ;
+    }
+
+    /**
+     * Get the maximum replay rate.
+     * @return The maximum number of messages per second, zero for no limit.
+     */
+    public int getRate() {
+        return rate ;
+    }
+
+    /**
+     * Replay the dead letters of a service recorded within a time range.
+     * @param category The service category, or null for all services.
+     * @param name The service name, or null for all services.
+     * @param from The start of the time range, inclusive.
+     * @param to The end of the time range, inclusive.
+     * @return The number of messages delivered to the pipeline.
+     * @throws IOException for errors reading the store.
+     */
+    public long replay(final String category, final String name, final long from, final long to) throws IOException {
+        stopped = false ;
+        final DeadLetterStore.Cursor cursor = store.select(category, name, from, to) ;
+        final long start = System.nanoTime() ;
+        final List<Message> batch = new ArrayList<Message>() ;
+        long delivered = 0 ;
+        while(!stopped) {
+            final int batchSize = getReplayBatchSize() ;
+            DeadLetter deadLetter = null ;
+            while((batch.size() < batchSize) && ((deadLetter = cursor.next()) != null)) {
+                try {
+                    batch.add(deadLetter.getMessage()) ;
+                } catch (final IOException ioe) {
+                    skippedCount.incrementAndGet() ;
+                    logger.warn("Skipping dead letter " + deadLetter.getSequence() + " which could not be decoded", ioe) ;
+                }
+            }
+            if (batch.isEmpty()) {
+                break ;
+            }
+            if (!pace(start, delivered)) {
+                break ;
+            }
+            final MessageBatch result = pipeline.processBatch(batch) ;
+            final int size = result.size() ;
+            int failures = 0 ;
+            for(int count = 0 ; count < size ; count++) {
+                if (result.getFailure(count) != null) {
+                    failures++ ;
+                } else {
+                    pipeline.release(result.get(count)) ;
+                }
+            }
+            delivered += size ;
+            replayedCount.addAndGet(size) ;
+            failedCount.addAndGet(failures) ;
+            batch.clear() ;
+            if (deadLetter == null) {
+                break ;
+            }
+        }
+        return delivered ;
+    }
+
+    /**
+     * Stop the replay in progress after its current batch.
+     */
+    public void stop() {
+        stopped = true ;
+    }
+
+    /**
+     * Get the number of messages delivered to the pipeline.
+     * @return The number of replayed messages.
+     */
+    public long getReplayedCount() {
+        return replayedCount.get() ;
+    }
+
+    /**
+     * Get the number of replayed messages which failed again.
+     * @return The number of failed messages.
+     */
+    public long getFailedCount() {
+        return failedCount.get() ;
+    }
+
+    /**
+     * Get the number of dead letters skipped because they could not be decoded.
+     * @return The number of skipped dead letters.
+     */
+    public long getSkippedCount() {
+        return skippedCount.get() ;
+    }
+
+    private int getReplayBatchSize() {
+        final int currentRate = rate ;
+        final int batchSize = pipeline.getBatchSize() ;
+        return (currentRate == 0 ? batchSize : Math.max(1, Math.min(batchSize, currentRate / 10))) ;
+    }
+
+    /**
+     * Wait until the messages may be delivered without exceeding the rate.
+     * @param start The start of the replay, in nanoseconds.
+     * @param total The number of messages already delivered.
+     * @return true if the batch may be delivered, false if the replay was interrupted.
+     */
+    private boolean pace(final long start, final long total) {
+        final int currentRate = rate ;
+        if (currentRate == 0) {
+            return true ;
+        }
+        final long due = start + total * NANOS_PER_SECOND / currentRate ;
+        long delay = due - System.nanoTime() ;
+        while(delay > 0) {
+            try {
+                Thread.sleep(delay / 1000000, (int)(delay % 1000000)) ;
+            } catch (final InterruptedException ie) {
+                Thread.currentThread().interrupt() ;
+                stopped = true ;
+                return false ;
+            }
+            delay = due - System.nanoTime() ;
+        }
+        return true ;
+    }
+}
@@ -0,0 +1,618 @@
+package org.jboss.soa.esb.listeners.message;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+import org.jboss.soa.esb.message.CopyOnWriteMessage;
+import org.jboss.soa.esb.message.Fault;
+import org.jboss.soa.esb.message.Message;
+
+/**
+ * Append only store of messages which failed processing.
+ * <p/>
+ * The store consists of three files within its directory: the log holding the
+ * dead letter records, the index holding a fixed size entry per record and the
+ * service table holding the category and name of each service referenced by the
+ * records.  Each record is encoded outside the store lock and appended with a
+ * single gathering write, followed by its index entry.
+ * <p/>
+ * Index entries hold the timestamp, service and log position of their record.
+ * Timestamps never decrease, so the first entry of a time range is located by a
+ * binary search of the index and selecting the dead letters of a service or time
+ * range never reads the records which do not match.  The matching records are
+ * read in log order through a read-ahead window, so a {@link Cursor} reads the log
+ * sequentially.
+ * <p/>
+ * Each record consists of the length and CRC32 of its content, the timestamp and
+ * the service, followed by the content.  Records and index entries torn by a crash
+ * are truncated when the store is opened and records missing their index entry
+ * are indexed again.
+ */
+public class DeadLetterStore {
+
+    private static final Logger logger = Logger.getLogger(DeadLetterStore.class) ;
+
+    private static final String LOG_NAME = "deadletter.log" ;
+    private static final String INDEX_NAME = "deadletter.idx" ;
+    private static final String SERVICES_NAME = "deadletter.svc" ;
+    private static final int RECORD_HEADER_SIZE = 4 + 4 + 8 + 4 ;
+    private static final int INDEX_ENTRY_SIZE = 8 + 8 + 4 + 4 ;
+    private static final int INDEX_CHUNK_ENTRIES = 4096 ;
+    private static final int READ_AHEAD_SIZE = 1024 * 1024 ;
+
+    private final File directory ;
+    private final boolean sync ;
+
+    private RandomAccessFile logFile ;
+    private RandomAccessFile indexFile ;
+    private RandomAccessFile servicesFile ;
+    private FileChannel logChannel ;
+    private FileChannel indexChannel ;
+
+    /**
+     * The service identifiers, keyed by category and name.
+     */
+    private final Map<String, Integer> serviceIds = new HashMap<String, Integer>() ;
+    /**
+     * The category and name of each service, indexed by identifier.
+     */
+    private final List<String[]> services = new ArrayList<String[]>() ;
+
+    private final ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE) ;
+    private final ByteBuffer indexEntry = ByteBuffer.allocate(INDEX_ENTRY_SIZE) ;
+
+    private long logPosition ;
+    private long entryCount ;
+    private long lastTimestamp ;
+
+    /**
+     * Create a dead letter store.
+     * @param directory The directory holding the store files.
+     * @param sync true if each record is forced to disk as it is appended, false otherwise.
+     */
+    public DeadLetterStore(final File directory, final boolean sync) {
+        this.directory = directory ;
+        this.sync = sync ;
+    }
+
+    /**
+     * Open the store, recovering from an interrupted append.
+     * @throws IOException for errors opening the store files.
+     */
+    public synchronized void open() throws IOException {
+        if (logChannel != null) {
+            throw new IllegalStateException("Dead letter store already open") ;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create dead letter directory " + directory) ;
+        }
+        servicesFile = new RandomAccessFile(new File(directory, SERVICES_NAME), "rw") ;
+        indexFile = new RandomAccessFile(new File(directory, INDEX_NAME), "rw") ;
+        logFile = new RandomAccessFile(new File(directory, LOG_NAME), "rw") ;
+        indexChannel = indexFile.getChannel() ;
+        logChannel = logFile.getChannel() ;
+        try {
+            recoverServices() ;
+            recoverIndex() ;
+            recoverLog() ;
+        } catch (final IOException ioe) {
+            close() ;
+            throw ioe ;
+        }
+    }
+
+    /**
+     * Close the store.
+     */
+    public synchronized void close() {
+        close(logFile) ;
+        close(indexFile) ;
+        close(servicesFile) ;
+        logFile = null ;
+        indexFile = null ;
+        servicesFile = null ;
+        logChannel = null ;
+        indexChannel = null ;
+        serviceIds.clear() ;
+        services.clear() ;
+    }
+
+    /**
+     * Append a dead letter to the store.
+     * @param category The category of the service which failed to process the message.
+     * @param name The name of the service which failed to process the message.
+     * @param message The message.
+     * @param cause The exception raised by the pipeline, or null if not known.
+     * @return The sequence number of the dead letter.
+     * @throws IOException for errors encoding the message or writing the record.
+     */
+    public long append(final String category, final String name, final Message message, final Throwable cause)
+        throws IOException {
+        return append(category, name, MessageEncoding.encode(message),
+            CopyOnWriteMessage.forReading(message).getFault(), cause) ;
+    }
+
+    /**
+     * Append a dead letter holding an already encoded message to the store.
+     * @param category The category of the service which failed to process the message.
+     * @param name The name of the service which failed to process the message.
+     * @param encodedMessage The encoded message.
+     * @param fault The fault of the message when processing failed, or null if none.
+     * @param cause The exception raised by the pipeline, or null if not known.
+     * @return The sequence number of the dead letter.
+     * @throws IOException for errors writing the record.
+     */
+    public long append(final String category, final String name, final byte[] encodedMessage, final Fault fault,
+        final Throwable cause) throws IOException {
+        final byte[] content = encodeContent(encodedMessage, fault, cause) ;
+        final ByteBuffer contentBuffer = ByteBuffer.wrap(content) ;
+
+        synchronized(this) {
+            if (logChannel == null) {
+                throw new IOException("Dead letter store is not open") ;
+            }
+            final int serviceId = getServiceId(category, name) ;
+            final long timestamp = Math.max(System.currentTimeMillis(), lastTimestamp) ;
+
+            recordHeader.clear() ;
+            recordHeader.putInt(content.length) ;
+            recordHeader.putInt(checksum(timestamp, serviceId, content, 0, content.length)) ;
+            recordHeader.putLong(timestamp) ;
+            recordHeader.putInt(serviceId) ;
+            recordHeader.flip() ;
+
+            final long recordPosition = logPosition ;
+            logChannel.position(recordPosition) ;
+            final ByteBuffer[] buffers = new ByteBuffer[] {recordHeader, contentBuffer} ;
+            while(contentBuffer.hasRemaining()) {
+                logChannel.write(buffers) ;
+            }
+            if (sync) {
+                logChannel.force(false) ;
+            }
+            logPosition = recordPosition + RECORD_HEADER_SIZE + content.length ;
+
+            writeIndexEntry(entryCount, timestamp, recordPosition, serviceId, content.length) ;
+            lastTimestamp = timestamp ;
+            return entryCount++ ;
+        }
+    }
+
+    /**
+     * Select the dead letters of a service recorded within a time range.
+     * @param category The service category, or null for all services.
+     * @param name The service name, or null for all services.
+     * @param from The start of the time range, inclusive.
+     * @param to The end of the time range, inclusive.
+     * @return The cursor over the matching dead letters, in the order they were recorded.
+     * @throws IOException for errors reading the index.
+     */
+    public Cursor select(final String category, final String name, final long from, final long to) throws IOException {
+        final long end ;
+        final int serviceId ;
+        final List<String[]> serviceSnapshot ;
+        synchronized(this) {
+            if (logChannel == null) {
+                throw new IOException("Dead letter store is not open") ;
+            }
+            end = entryCount ;
+            if ((category == null) && (name == null)) {
+                serviceId = -1 ;
+            } else {
+                final Integer id = serviceIds.get(serviceKey(category, name)) ;
+                if (id == null) {
+                    return new Cursor(this, 0, 0, -1, to, Collections.<String[]>emptyList()) ;
+                }
+                serviceId = id.intValue() ;
+            }
+            serviceSnapshot = new ArrayList<String[]>(services) ;
+        }
+        return new Cursor(this, findFirst(from, end), end, serviceId, to, serviceSnapshot) ;
+    }
+
+    /**
+     * Get the number of dead letters in the store.
+     * @return The number of dead letters.
+     */
+    public synchronized long getCount() {
+        return entryCount ;
+    }
+
+    /**
+     * Get the directory holding the store files.
+     * @return The directory.
+     */
+    public File getDirectory() {
+        return directory ;
+    }
+
+    /**
+     * Get the identifier of the service, adding it to the service table if necessary.
+     * @param category The service category.
+     * @param name The service name.
+     * @return The service identifier.
+     * @throws IOException for errors writing the service table.
+     */
+    private int getServiceId(final String category, final String name) throws IOException {
+        final String key = serviceKey(category, name) ;
+        final Integer id = serviceIds.get(key) ;
+        if (id != null) {
+            return id.intValue() ;
+        }
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream() ;
+        final DataOutputStream dos = new DataOutputStream(baos) ;
+        dos.writeUTF(category == null ? "" : category) ;
+        dos.writeUTF(name == null ? "" : name) ;
+        dos.close() ;
+        servicesFile.seek(servicesFile.length()) ;
+        servicesFile.write(baos.toByteArray()) ;
+        // the service must be durable before any record referencing it
+        servicesFile.getFD().sync() ;
+
+        final int serviceId = services.size() ;
+        services.add(new String[] {category, name}) ;
+        serviceIds.put(key, Integer.valueOf(serviceId)) ;
+        return serviceId ;
+    }
+
+    private void writeIndexEntry(final long index, final long timestamp, final long position, final int serviceId,
+        final int length) throws IOException {
+        indexEntry.clear() ;
+        indexEntry.putLong(timestamp) ;
+        indexEntry.putLong(position) ;
+        indexEntry.putInt(serviceId) ;
+        indexEntry.putInt(length) ;
+        indexEntry.flip() ;
+        long indexPosition = index * INDEX_ENTRY_SIZE ;
+        while(indexEntry.hasRemaining()) {
+            indexPosition += indexChannel.write(indexEntry, indexPosition) ;
+        }
+    }
+
+    /**
+     * Locate the first index entry recorded at or after the specified time.
+     * @param from The time.
+     * @param end The number of index entries.
+     * @return The index of the entry, or end if there is none.
+     * @throws IOException for errors reading the index.
+     */
+    private long findFirst(final long from, final long end) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(8) ;
+        long low = 0 ;
+        long high = end ;
+        while(low < high) {
+            final long middle = (low + high) >>> 1 ;
+            buffer.clear() ;
+            readFully(indexChannel, buffer, middle * INDEX_ENTRY_SIZE) ;
+            if (buffer.getLong(0) < from) {
+                low = middle + 1 ;
+            } else {
+                high = middle ;
+            }
+        }
+        return low ;
+    }
+
+    private void recoverServices() throws IOException {
+        final long length = servicesFile.length() ;
+        long position = 0 ;
+        servicesFile.seek(0) ;
+        try {
+            while(position < length) {
+                final String category = servicesFile.readUTF() ;
+                final String name = servicesFile.readUTF() ;
+                final String[] service = new String[] {category, name} ;
+                serviceIds.put(serviceKey(category, name), Integer.valueOf(services.size())) ;
+                services.add(service) ;
+                position = servicesFile.getFilePointer() ;
+            }
+        } catch (final EOFException eofe) {
+            logger.warn("Truncating torn dead letter service entry at position " + position) ;
+            servicesFile.setLength(position) ;
+        }
+    }
+
+    private void recoverIndex() throws IOException {
+        final long logSize = logChannel.size() ;
+        long count = indexChannel.size() / INDEX_ENTRY_SIZE ;
+        final ByteBuffer buffer = ByteBuffer.allocate(INDEX_ENTRY_SIZE) ;
+        while(count > 0) {
+            buffer.clear() ;
+            readFully(indexChannel, buffer, (count - 1) * INDEX_ENTRY_SIZE) ;
+            final long position = buffer.getLong(8) ;
+            final int length = buffer.getInt(20) ;
+            if (position + RECORD_HEADER_SIZE + length <= logSize) {
+                logPosition = position + RECORD_HEADER_SIZE + length ;
+                lastTimestamp = buffer.getLong(0) ;
+                break ;
+            }
+            count-- ;
+        }
+        if (indexChannel.size() != count * INDEX_ENTRY_SIZE) {
+            logger.warn("Truncating dead letter index to " + count + " entries") ;
+            indexChannel.truncate(count * INDEX_ENTRY_SIZE) ;
+        }
+        entryCount = count ;
+        if (count == 0) {
+            logPosition = 0 ;
+        }
+    }
+
+    private void recoverLog() throws IOException {
+        final long logSize = logChannel.size() ;
+        final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE) ;
+        while(logPosition + RECORD_HEADER_SIZE <= logSize) {
+            header.clear() ;
+            readFully(logChannel, header, logPosition) ;
+            final int length = header.getInt(0) ;
+            final int crc = header.getInt(4) ;
+            final long timestamp = header.getLong(8) ;
+            final int serviceId = header.getInt(16) ;
+            if ((length < 0) || (logPosition + RECORD_HEADER_SIZE + length > logSize) ||
+                (serviceId < 0) || (serviceId >= services.size())) {
+                break ;
+            }
+            final ByteBuffer content = ByteBuffer.allocate(length) ;
+            readFully(logChannel, content, logPosition + RECORD_HEADER_SIZE) ;
+            if (checksum(timestamp, serviceId, content.array(), 0, length) != crc) {
+                break ;
+            }
+            writeIndexEntry(entryCount++, timestamp, logPosition, serviceId, length) ;
+            logPosition += RECORD_HEADER_SIZE + length ;
+            lastTimestamp = Math.max(lastTimestamp, timestamp) ;
+        }
+        if (logSize != logPosition) {
+            logger.warn("Truncating torn dead letter record at position " + logPosition) ;
+            logChannel.truncate(logPosition) ;
+        }
+    }
+
+    /**
+     * Encode the content of a dead letter record.
+     * @param encodedMessage The encoded message.
+     * @param fault The fault of the message, or null if none.
+     * @param cause The exception raised by the pipeline, or null if not known.
+     * @return The encoded content.
+     * @throws IOException for errors encoding the content.
+     */
+    private static byte[] encodeContent(final byte[] encodedMessage, final Fault fault, final Throwable cause) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream(encodedMessage.length + 1024) ;
+        final DataOutputStream dos = new DataOutputStream(baos) ;
+        if (cause != null) {
+            final StringWriter stackTrace = new StringWriter() ;
+            final PrintWriter writer = new PrintWriter(stackTrace) ;
+            cause.printStackTrace(writer) ;
+            writer.close() ;
+            writeString(dos, cause.getClass().getName()) ;
+            writeString(dos, cause.getMessage()) ;
+            writeString(dos, stackTrace.toString()) ;
+        } else {
+            writeString(dos, null) ;
+            writeString(dos, null) ;
+            writeString(dos, null) ;
+        }
+        final URI faultCode = (fault == null ? null : fault.getCode()) ;
+        writeString(dos, faultCode == null ? null : faultCode.toString()) ;
+        writeString(dos, fault == null ? null : fault.getReason()) ;
+        dos.writeInt(encodedMessage.length) ;
+        dos.write(encodedMessage) ;
+        dos.close() ;
+        return baos.toByteArray() ;
+    }
+
+    /**
+     * Decode the content of a dead letter record.
+     */
+    private static DeadLetter decodeContent(final long sequence, final long timestamp, final String[] service,
+        final byte[] content, final int offset, final int length) throws IOException {
+        final DataInputStream dis = new DataInputStream(new ByteArrayInputStream(content, offset, length)) ;
+        final String exceptionClass = readString(dis) ;
+        final String exceptionMessage = readString(dis) ;
+        final String stackTrace = readString(dis) ;
+        final String faultCode = readString(dis) ;
+        final String faultReason = readString(dis) ;
+        final byte[] encodedMessage = new byte[dis.readInt()] ;
+        dis.readFully(encodedMessage) ;
+        return new DeadLetter(sequence, timestamp, service[0], service[1], exceptionClass, exceptionMessage,
+            stackTrace, faultCode, faultReason, encodedMessage) ;
+    }
+
+    /**
+     * Write a string which may be null or exceed the writeUTF limit.
+     */
+    private static void writeString(final DataOutputStream dos, final String value) throws IOException {
+        if (value == null) {
+            dos.writeInt(-1) ;
+        } else {
+            final byte[] bytes = value.getBytes("UTF-8") ;
+            dos.writeInt(bytes.length) ;
+            dos.write(bytes) ;
+        }
+    }
+
+    private static String readString(final DataInputStream dis) throws IOException {
+        final int length = dis.readInt() ;
+        if (length < 0) {
+            return null ;
+        }
+        final byte[] bytes = new byte[length] ;
+        dis.readFully(bytes) ;
+        return new String(bytes, "UTF-8") ;
+    }
+
+    private static int checksum(final long timestamp, final int serviceId, final byte[] content, final int offset,
+        final int length) {
+        final CRC32 crc = new CRC32() ;
+        for(int shift = 56 ; shift >= 0 ; shift -= 8) {
+            crc.update((int)(timestamp >>> shift)) ;
+        }
+        for(int shift = 24 ; shift >= 0 ; shift -= 8) {
+            crc.update(serviceId >>> shift) ;
+        }
+        crc.update(content, offset, length) ;
+        return (int)crc.getValue() ;
+    }
+
+    private static String serviceKey(final String category, final String name) {
+        return (category == null ? "" : category) + '\u0000' + (name == null ? "" : name) ;
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer, final long position) throws IOException {
+        long current = position ;
+        while(buffer.hasRemaining()) {
+            final int count = channel.read(buffer, current) ;
+            if (count < 0) {
+                throw new EOFException("Unexpected end of dead letter file at position " + current) ;
+            }
+            current += count ;
+        }
+    }
+
+    private static void close(final RandomAccessFile file) {
+        if (file != null) {
+            try {
+                file.close() ;
+            } catch (final IOException ioe) {
+                logger.warn("Failed to close dead letter file", ioe) ;
+            }
+        }
+    }
+
+    /**
+     * Cursor over the dead letters selected from the store.
+     * <p/>
+     * The cursor reads the index in chunks and the log through a read-ahead window,
+     * and is not thread safe.  Dead letters appended after the cursor was created are
+     * not returned.
+     */
+    public static final class Cursor {
+        private final DeadLetterStore store ;
+        private final long end ;
+        private final int serviceId ;
+        private final long to ;
+        private final List<String[]> services ;
+        private final ByteBuffer indexChunk = ByteBuffer.allocate(INDEX_CHUNK_ENTRIES * INDEX_ENTRY_SIZE) ;
+        private ByteBuffer window ;
+        private long windowPosition ;
+        private long next ;
+        private long chunkStart ;
+        private boolean finished ;
+
+        Cursor(final DeadLetterStore store, final long start, final long end, final int serviceId, final long to,
+            final List<String[]> services) {
+            this.store = store ;
+            this.next = start ;
+            this.end = end ;
+            this.serviceId = serviceId ;
+            this.to = to ;
+            this.services = services ;
+            this.chunkStart = start ;
+            indexChunk.limit(0) ;
+        }
+
+        /**
+         * Return the next matching dead letter.
+         * @return The dead letter, or null if there are no more matching dead letters.
+         * @throws IOException for errors reading the store.
+         */
+        public DeadLetter next() throws IOException {
+            while(!finished && (next < end)) {
+                final int entryOffset = (int)(next - chunkStart) * INDEX_ENTRY_SIZE ;
+                if (entryOffset >= indexChunk.limit()) {
+                    loadChunk() ;
+                    continue ;
+                }
+                final long sequence = next++ ;
+                final long timestamp = indexChunk.getLong(entryOffset) ;
+                if (timestamp > to) {
+                    finished = true ;
+                    break ;
+                }
+                final int entryServiceId = indexChunk.getInt(entryOffset + 16) ;
+                if ((serviceId < 0) || (entryServiceId == serviceId)) {
+                    final long position = indexChunk.getLong(entryOffset + 8) ;
+                    final int length = indexChunk.getInt(entryOffset + 20) ;
+                    return readRecord(sequence, timestamp, entryServiceId, position, length) ;
+                }
+            }
+            finished = true ;
+            return null ;
+        }
+
+        private void loadChunk() throws IOException {
+            chunkStart = next ;
+            final long count = Math.min(INDEX_CHUNK_ENTRIES, end - next) ;
+            indexChunk.clear() ;
+            indexChunk.limit((int)count * INDEX_ENTRY_SIZE) ;
+            readFully(store.getIndexChannel(), indexChunk, next * INDEX_ENTRY_SIZE) ;
+            indexChunk.flip() ;
+        }
+
+        private DeadLetter readRecord(final long sequence, final long timestamp, final int entryServiceId,
+            final long position, final int length) throws IOException {
+            final FileChannel logChannel = store.getLogChannel() ;
+            final int recordSize = RECORD_HEADER_SIZE + length ;
+            final ByteBuffer buffer ;
+            final int offset ;
+            if (recordSize > READ_AHEAD_SIZE) {
+                buffer = ByteBuffer.allocate(recordSize) ;
+                readFully(logChannel, buffer, position) ;
+                offset = 0 ;
+            } else {
+                if ((window == null) || (position < windowPosition) || (position + recordSize > windowPosition + window.limit())) {
+                    if (window == null) {
+                        window = ByteBuffer.allocate(READ_AHEAD_SIZE) ;
+                    }
+                    window.clear() ;
+                    final long available = logChannel.size() - position ;
+                    if (available < recordSize) {
+                        throw new EOFException("Dead letter record " + sequence + " is truncated") ;
+                    }
+                    window.limit((int)Math.min(READ_AHEAD_SIZE, available)) ;
+                    readFully(logChannel, window, position) ;
+                    windowPosition = position ;
+                }
+                buffer = window ;
+                offset = (int)(position - windowPosition) ;
+            }
+            final byte[] bytes = buffer.array() ;
+            final int contentOffset = buffer.arrayOffset() + offset + RECORD_HEADER_SIZE ;
+            if (checksum(timestamp, entryServiceId, bytes, contentOffset, length) != buffer.getInt(offset + 4)) {
+                throw new IOException("Dead letter record " + sequence + " failed its checksum") ;
+            }
+            return decodeContent(sequence, timestamp, services.get(entryServiceId), bytes, contentOffset, length) ;
+        }
+    }
+
+    private synchronized FileChannel getLogChannel() throws IOException {
+        if (logChannel == null) {
+            throw new IOException("Dead letter store is not open") ;
+        }
+        return logChannel ;
+    }
+
+    private synchronized FileChannel getIndexChannel() throws IOException {
+        if (indexChannel == null) {
+            throw new IOException("Dead letter store is not open") ;
+        }
+        return indexChannel ;
+    }
+}
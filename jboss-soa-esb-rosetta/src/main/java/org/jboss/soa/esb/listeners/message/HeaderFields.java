@@ -0,0 +1,39 @@
+package org.jboss.soa.esb.listeners.message;
+
+import org.jboss.soa.esb.addressing.Call;
+
+/**
+ * Access to the fields of the message header by name, for the executors reading
+ * a routing key from the header.
+ */
+final class HeaderFields {
+
+    private HeaderFields() {
+    }
+
+    /**
+     * Read a field of the message header.
+     * @param call The header call, or null to validate the field name.
+     * @param field The field name.
+     * @return The field value, or null if not set.
+     * @throws IllegalArgumentException if the field name is not supported.
+     */
+    static Object getValue(final Call call, final String field) {
+        if ("to".equals(field)) {
+            return (call == null ? null : call.getTo()) ;
+        } else if ("from".equals(field)) {
+            return (call == null ? null : call.getFrom()) ;
+        } else if ("replyTo".equals(field)) {
+            return (call == null ? null : call.getReplyTo()) ;
+        } else if ("faultTo".equals(field)) {
+            return (call == null ? null : call.getFaultTo()) ;
+        } else if ("relatesTo".equals(field)) {
+            return (call == null ? null : call.getRelatesTo()) ;
+        } else if ("action".equals(field)) {
+            return (call == null ? null : call.getAction()) ;
+        } else if ("messageId".equals(field)) {
+            return (call == null ? null : call.getMessageID()) ;
+        }
+        throw new IllegalArgumentException("Unsupported header field " + field) ;
+    }
+}
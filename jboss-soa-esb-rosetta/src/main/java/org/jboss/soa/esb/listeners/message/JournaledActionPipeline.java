@@ -0,0 +1,218 @@
+package org.jboss.soa.esb.listeners.message;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.jboss.soa.esb.ConfigurationException;
+import org.jboss.soa.esb.actions.ActionCompletionCallback;
+import org.jboss.soa.esb.actions.ActionLifecycleException;
+import org.jboss.soa.esb.actions.ActionProcessingException;
+import org.jboss.soa.esb.helpers.ConfigTree;
+import org.jboss.soa.esb.message.Message;
+
+/**
+ * Action pipeline protected by a write-ahead {@link MessageJournal}.
+ * <p/>
+ * Each message is appended to the journal, and made durable, before it enters the
+ * pipeline and is acknowledged once the processors have been notified of a
+ * successful outcome.  Failed messages are left unacknowledged, so they are
+ * replayed through the pipeline by {@link #initialise()} together with the
+ * messages still unacknowledged when the JVM stopped, unless the
+ * journalAckOnFailure attribute is true, leaving them to be handled by the
+ * pipeline's own error handling.  An unacknowledged message keeps its journal
+ * segment, and the segments following it, until the pipeline is next initialised.
+ * <p/>
+ * Concurrent callers share the journal fsyncs through group commit, so the
+ * durable throughput grows with the number of threads delivering messages.
+ */
+public class JournaledActionPipeline {
+
+    private static final Logger logger = Logger.getLogger(JournaledActionPipeline.class) ;
+
+    /**
+     * The name of the attribute specifying the journal directory.
+     */
+    public static final String JOURNAL_DIRECTORY_ATTRIBUTE = "journalDirectory" ;
+
+    /**
+     * The name of the attribute specifying the journal segment size.
+     */
+    public static final String JOURNAL_SEGMENT_SIZE_ATTRIBUTE = "journalSegmentSize" ;
+
+    /**
+     * The name of the attribute specifying whether failed messages are acknowledged, defaults to false.
+     */
+    public static final String JOURNAL_ACK_ON_FAILURE_ATTRIBUTE = "journalAckOnFailure" ;
+
+    /**
+     * The journaled pipeline.
+     */
+    private final CompiledActionPipeline pipeline ;
+    /**
+     * The journal.
+     */
+    private final MessageJournal journal ;
+    /**
+     * Are failed messages acknowledged?
+     */
+    private final boolean ackOnFailure ;
+
+    /**
+     * Compile the journaled pipeline from the service configuration.
+     * @param config The service configuration.
+     * @throws ConfigurationException for errors creating the actions or an invalid journal configuration.
+     */
+    public JournaledActionPipeline(final ConfigTree config) throws ConfigurationException {
+        final String directory = config.getRequiredAttribute(JOURNAL_DIRECTORY_ATTRIBUTE) ;
+        final long segmentSize = config.getLongAttribute(JOURNAL_SEGMENT_SIZE_ATTRIBUTE, MessageJournal.DEFAULT_SEGMENT_SIZE) ;
+        if ((segmentSize < 1024) || (segmentSize > Integer.MAX_VALUE)) {
+            throw new ConfigurationException("Invalid " + JOURNAL_SEGMENT_SIZE_ATTRIBUTE + " value of " + segmentSize) ;
+        }
+        this.pipeline = new CompiledActionPipeline(config) ;
+        this.journal = new MessageJournal(new File(directory), (int)segmentSize) ;
+        this.ackOnFailure = config.getBooleanAttribute(JOURNAL_ACK_ON_FAILURE_ATTRIBUTE, false) ;
+    }
+
+    /**
+     * Create a journaled pipeline.
+     * @param pipeline The pipeline.
+     * @param journal The journal, not yet opened.
+     * @param ackOnFailure true if failed messages are acknowledged, false otherwise.
+     */
+    public JournaledActionPipeline(final CompiledActionPipeline pipeline, final MessageJournal journal, final boolean ackOnFailure) {
+        this.pipeline = pipeline ;
+        this.journal = journal ;
+        this.ackOnFailure = ackOnFailure ;
+    }
+
+    /**
+     * Initialise the actions, open the journal and replay the unacknowledged messages.
+     * @throws ActionLifecycleException for errors during initialisation or opening the journal.
+     */
+    public void initialise() throws ActionLifecycleException {
+        pipeline.initialise() ;
+        final Map<Long, byte[]> recovered ;
+        try {
+            recovered = journal.open() ;
+        } catch (final IOException ioe) {
+            pipeline.destroy() ;
+            throw new ActionLifecycleException("Failed to open message journal", ioe) ;
+        }
+        for(Map.Entry<Long, byte[]> entry: recovered.entrySet()) {
+            final long sequence = entry.getKey().longValue() ;
+            final Message message ;
+            try {
+                message = MessageEncoding.decode(entry.getValue()) ;
+            } catch (final IOException ioe) {
+                logger.error("Discarding journaled message " + sequence + " which could not be decoded", ioe) ;
+                acknowledge(sequence) ;
+                continue ;
+            }
+            try {
+                pipeline.release(pipeline.process(message)) ;
+                acknowledge(sequence) ;
+            } catch (final ActionProcessingException ape) {
+                logger.warn("Replay of journaled message " + sequence + " failed", ape) ;
+                if (ackOnFailure) {
+                    acknowledge(sequence) ;
+                }
+            }
+        }
+    }
+
+    /**
+     * Destroy the actions and close the journal.
+     */
+    public void destroy() {
+        pipeline.destroy() ;
+        journal.close() ;
+    }
+
+    /**
+     * Journal the message and process it through the pipeline.
+     * @param message The message.
+     * @return The message returned by the last action, or null if an action terminated the pipeline.
+     * @throws ActionProcessingException if the message could not be journaled or an action raised an exception.
+     */
+    public Message process(final Message message) throws ActionProcessingException {
+        final long sequence = append(message) ;
+        final Message result ;
+        try {
+            result = pipeline.process(message) ;
+        } catch (final ActionProcessingException ape) {
+            if (ackOnFailure) {
+                acknowledge(sequence) ;
+            }
+            throw ape ;
+        }
+        acknowledge(sequence) ;
+        return result ;
+    }
+
+    /**
+     * Journal the message and process it through the pipeline without blocking on asynchronous actions.
+     * @param message The message.
+     * @param callback The callback notified of the outcome, once the message has been acknowledged.
+     * @throws ActionProcessingException if the message could not be journaled.
+     */
+    public void processAsync(final Message message, final ActionCompletionCallback callback) throws ActionProcessingException {
+        final long sequence = append(message) ;
+        pipeline.processAsync(message, new ActionCompletionCallback() {
+            public void completed(final Message result) {
+                acknowledge(sequence) ;
+                callback.completed(result) ;
+            }
+
+            public void failed(final Throwable th) {
+                if (ackOnFailure) {
+                    acknowledge(sequence) ;
+                }
+                callback.failed(th) ;
+            }
+        }) ;
+    }
+
+    /**
+     * Get the journaled pipeline.
+     * @return The pipeline.
+     */
+    public CompiledActionPipeline getPipeline() {
+        return pipeline ;
+    }
+
+    /**
+     * Get the journal.
+     * @return The journal.
+     */
+    public MessageJournal getJournal() {
+        return journal ;
+    }
+
+    /**
+     * Append the message to the journal.
+     * @param message The message.
+     * @return The sequence number of the journal record.
+     * @throws ActionProcessingException if the message could not be encoded or journaled.
+     */
+    private long append(final Message message) throws ActionProcessingException {
+        try {
+            return journal.append(MessageEncoding.encode(message)) ;
+        } catch (final IOException ioe) {
+            throw new ActionProcessingException("Failed to journal message", ioe) ;
+        }
+    }
+
+    /**
+     * Acknowledge the journal record, a failure only causes the message to be replayed.
+     * @param sequence The sequence number of the journal record.
+     */
+    private void acknowledge(final long sequence) {
+        try {
+            journal.acknowledge(sequence) ;
+        } catch (final IOException ioe) {
+            logger.warn("Failed to acknowledge journaled message " + sequence, ioe) ;
+        }
+    }
+}
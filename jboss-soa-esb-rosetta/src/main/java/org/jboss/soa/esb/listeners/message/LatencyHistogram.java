@@ -0,0 +1,159 @@
+package org.jboss.soa.esb.listeners.message;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free latency histogram with log-linear buckets.
+ * <p/>
+ * Values below 32 have a bucket of their own, larger values are split into 16
+ * linear buckets per power of two, bounding the relative error of a reported
+ * value to about 6% across the whole range of a long.  Recording a value is a
+ * single atomic increment on a preallocated array, percentiles are computed
+ * from a snapshot of the counts when requested.
+ */
+public final class LatencyHistogram {
+
+    /**
+     * The number of linear sub-buckets per power of two, as a shift.
+     */
+    private static final int SUB_BUCKET_SHIFT = 4 ;
+    /**
+     * The number of linear sub-buckets per power of two.
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_SHIFT ;
+    /**
+     * The number of buckets covering all positive long values.
+     */
+    private static final int BUCKET_COUNT = bucketIndex(Long.MAX_VALUE) + 1 ;
+
+    /**
+     * The count of each bucket.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT) ;
+    /**
+     * The sum of the recorded values.
+     */
+    private final AtomicLong sum = new AtomicLong() ;
+    /**
+     * The largest recorded value.
+     */
+    private final AtomicLong max = new AtomicLong() ;
+
+    /**
+     * Record a value.
+     * @param value The value, negative values are recorded as zero.
+     */
+    public void record(final long value) {
+        record(value, 1) ;
+    }
+
+    /**
+     * Record a value several times.
+     * @param value The value, negative values are recorded as zero.
+     * @param count The number of occurrences.
+     */
+    public void record(final long value, final int count) {
+        final long recorded = Math.max(value, 0) ;
+        counts.addAndGet(bucketIndex(recorded), count) ;
+        sum.addAndGet(recorded * count) ;
+        long current = max.get() ;
+        while((recorded > current) && !max.compareAndSet(current, recorded)) {
+            current = max.get() ;
+        }
+    }
+
+    /**
+     * Get the number of recorded values.
+     * @return The number of values.
+     */
+    public long getCount() {
+        long total = 0 ;
+        for(int index = 0 ; index < BUCKET_COUNT ; index++) {
+            total += counts.get(index) ;
+        }
+        return total ;
+    }
+
+    /**
+     * Get the mean of the recorded values.
+     * @return The mean, or zero if no values have been recorded.
+     */
+    public long getMean() {
+        final long count = getCount() ;
+        return (count == 0 ? 0 : sum.get() / count) ;
+    }
+
+    /**
+     * Get the largest recorded value.
+     * @return The largest value.
+     */
+    public long getMax() {
+        return max.get() ;
+    }
+
+    /**
+     * Get the value at the specified percentile.
+     * @param percentile The percentile, between 0 and 100.
+     * @return The highest value equivalent to the bucket containing the percentile,
+     *     or zero if no values have been recorded.
+     */
+    public long getPercentile(final double percentile) {
+        final long[] snapshot = new long[BUCKET_COUNT] ;
+        long total = 0 ;
+        for(int index = 0 ; index < BUCKET_COUNT ; index++) {
+            snapshot[index] = counts.get(index) ;
+            total += snapshot[index] ;
+        }
+        if (total == 0) {
+            return 0 ;
+        }
+        final long target = Math.max(1, (long)Math.ceil(total * Math.min(Math.max(percentile, 0), 100) / 100)) ;
+        long seen = 0 ;
+        for(int index = 0 ; index < BUCKET_COUNT ; index++) {
+            seen += snapshot[index] ;
+            if (seen >= target) {
+                return Math.min(highestEquivalentValue(index), max.get()) ;
+            }
+        }
+        return max.get() ;
+    }
+
+    /**
+     * Clear the recorded values.
+     */
+    public void reset() {
+        for(int index = 0 ; index < BUCKET_COUNT ; index++) {
+            counts.set(index, 0) ;
+        }
+        sum.set(0) ;
+        max.set(0) ;
+    }
+
+    /**
+     * Get the bucket holding the value.
+     * @param value The non negative value.
+     * @return The bucket index.
+     */
+    private static int bucketIndex(final long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int)value ;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_SHIFT ;
+        return (exponent << SUB_BUCKET_SHIFT) + (int)(value >>> exponent) ;
+    }
+
+    /**
+     * Get the highest value held by the bucket.
+     * @param index The bucket index.
+     * @return The highest value.
+     */
+    private static long highestEquivalentValue(final int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index ;
+        }
+        final int exponent = (index >>> SUB_BUCKET_SHIFT) - 1 ;
+        final long mantissa = (index & (SUB_BUCKETS - 1)) + SUB_BUCKETS ;
+        return ((mantissa + 1) << exponent) - 1 ;
+    }
+}
@@ -0,0 +1,58 @@
+package org.jboss.soa.esb.listeners.message;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+
+import org.jboss.soa.esb.message.BinaryMessageCodec;
+import org.jboss.soa.esb.message.ContextObjectInputStream;
+import org.jboss.soa.esb.message.Message;
+
+/**
+ * Encoding of the messages held by the {@link MessageJournal} and the {@link DeadLetterStore}.
+ * <p/>
+ * Messages are encoded with the {@link BinaryMessageCodec}.  Records written by
+ * earlier versions hold the message in Java serialization form, recognised by the
+ * absence of the codec magic, and are still decoded.
+ */
+final class MessageEncoding {
+
+    private MessageEncoding() {
+    }
+
+    /**
+     * Encode the message.
+     * @param message The message.
+     * @return The encoded message.
+     * @throws IOException for errors encoding the message.
+     */
+    static byte[] encode(final Message message) throws IOException {
+        return BinaryMessageCodec.encode(message) ;
+    }
+
+    /**
+     * Decode a message, accepting messages written with Java serialization by earlier versions.
+     * @param content The encoded message.
+     * @return The message.
+     * @throws IOException for errors decoding the message.
+     */
+    static Message decode(final byte[] content) throws IOException {
+        if (BinaryMessageCodec.isEncoded(content)) {
+            return BinaryMessageCodec.decode(content) ;
+        }
+        final ObjectInputStream ois = new ContextObjectInputStream(new ByteArrayInputStream(content)) ;
+        try {
+            return (Message)ois.readObject() ;
+        } catch (final ClassNotFoundException cnfe) {
+            final IOException ioe = new IOException("Message class not found") ;
+            ioe.initCause(cnfe) ;
+            throw ioe ;
+        } catch (final ClassCastException cce) {
+            final IOException ioe = new IOException("Record does not hold a message") ;
+            ioe.initCause(cce) ;
+            throw ioe ;
+        } finally {
+            ois.close() ;
+        }
+    }
+}
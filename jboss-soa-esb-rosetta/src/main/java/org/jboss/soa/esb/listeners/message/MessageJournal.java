@@ -0,0 +1,462 @@
+package org.jboss.soa.esb.listeners.message;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Write-ahead journal of message records held in memory mapped segment files.
+ * <p/>
+ * Each record is appended to the current segment under a short lock and made
+ * durable through {@link #append(byte[])}, which uses group commit: the first
+ * thread needing durability forces the segment on behalf of every record written
+ * so far while the other threads wait for it, so concurrent appends share a
+ * single fsync.  Acknowledgements are appended without forcing, an
+ * acknowledgement lost in a crash only causes the record to be recovered again.
+ * <p/>
+ * Records which have not been acknowledged are returned by {@link #open()} in
+ * append order.  Segments are deleted in order, once every record appended to
+ * them and to the preceding segments has been acknowledged, so an
+ * acknowledgement is never deleted before the record it acknowledges.
+ * <p/>
+ * Each record consists of the length and CRC32 of its content, the sequence
+ * number and the record type, followed by the content.  A zero length marks the
+ * end of a segment, a record failing its CRC check marks a torn write and ends
+ * recovery of the segment.
+ */
+public class MessageJournal {
+
+    private static final Logger logger = Logger.getLogger(MessageJournal.class) ;
+
+    /**
+     * The default segment size, 64MB.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024 ;
+
+    private static final String SEGMENT_PREFIX = "journal-" ;
+    private static final String SEGMENT_SUFFIX = ".seg" ;
+    private static final int SEGMENT_MAGIC = 0x45534a31 ;
+    private static final int SEGMENT_HEADER_SIZE = 4 ;
+    private static final int RECORD_HEADER_SIZE = 4 + 4 + 8 + 1 ;
+    private static final byte TYPE_APPEND = 1 ;
+    private static final byte TYPE_ACK = 2 ;
+
+    private final File directory ;
+    private final int segmentSize ;
+
+    /**
+     * The lock guarding the current segment and the durability state.
+     */
+    private final ReentrantLock lock = new ReentrantLock() ;
+    /**
+     * Signalled when a group commit completes.
+     */
+    private final Condition committed = lock.newCondition() ;
+    /**
+     * The segment receiving new records.
+     */
+    private Segment current ;
+    /**
+     * The next sequence number.
+     */
+    private long nextSequence = 1 ;
+    /**
+     * The highest sequence number written to the current segment.
+     */
+    private long writtenSequence ;
+    /**
+     * The highest sequence number known to be durable.
+     */
+    private long durableSequence ;
+    /**
+     * Is a thread forcing the current segment?
+     */
+    private boolean committing ;
+    /**
+     * The segment holding each unacknowledged record.
+     */
+    private final Map<Long, Segment> pending = new ConcurrentHashMap<Long, Segment>() ;
+    /**
+     * The live segments, oldest first, guarded by the lock.
+     */
+    private final LinkedList<Segment> segments = new LinkedList<Segment>() ;
+
+    /**
+     * Create a journal.
+     * @param directory The directory holding the segment files.
+     * @param segmentSize The size of each segment file.
+     */
+    public MessageJournal(final File directory, final int segmentSize) {
+        if (segmentSize < 1024) {
+            throw new IllegalArgumentException("Invalid segment size " + segmentSize) ;
+        }
+        this.directory = directory ;
+        this.segmentSize = segmentSize ;
+    }
+
+    /**
+     * Open the journal, recovering the unacknowledged records.
+     * @return The content of the unacknowledged records keyed by sequence number, in append order.
+     * @throws IOException for errors reading the segments or creating a new segment.
+     */
+    public Map<Long, byte[]> open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create journal directory " + directory) ;
+        }
+        final File[] files = directory.listFiles(new FileFilter() {
+            public boolean accept(final File file) {
+                final String name = file.getName() ;
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX) ;
+            }
+        }) ;
+        if (files == null) {
+            throw new IOException("Could not list journal directory " + directory) ;
+        }
+        Arrays.sort(files) ;
+
+        final Map<Long, byte[]> recovered = new LinkedHashMap<Long, byte[]>() ;
+        final Map<Long, Segment> recoveredSegments = new LinkedHashMap<Long, Segment>() ;
+        long lastIndex = 0 ;
+        final List<Segment> existing = new ArrayList<Segment>(files.length) ;
+        for(File file: files) {
+            final Segment segment = new Segment(file, segmentIndex(file), -1) ;
+            existing.add(segment) ;
+            lastIndex = Math.max(lastIndex, segment.index) ;
+            recover(segment, recovered, recoveredSegments) ;
+        }
+        for(Map.Entry<Long, Segment> entry: recoveredSegments.entrySet()) {
+            entry.getValue().pendingCount++ ;
+            pending.put(entry.getKey(), entry.getValue()) ;
+        }
+        lock.lock() ;
+        try {
+            for(Segment segment: existing) {
+                segment.close() ;
+                segments.add(segment) ;
+            }
+            current = new Segment(new File(directory, segmentName(lastIndex + 1)), lastIndex + 1, segmentSize) ;
+            segments.add(current) ;
+            durableSequence = writtenSequence = nextSequence - 1 ;
+            purge() ;
+        } finally {
+            lock.unlock() ;
+        }
+        if (!recovered.isEmpty()) {
+            logger.info("Recovered " + recovered.size() + " unacknowledged records from journal " + directory) ;
+        }
+        return recovered ;
+    }
+
+    /**
+     * Append a record and wait until it is durable.
+     * @param content The record content.
+     * @return The sequence number of the record.
+     * @throws IOException for errors writing or forcing the segment.
+     */
+    public long append(final byte[] content) throws IOException {
+        lock.lock() ;
+        try {
+            final long sequence = write(TYPE_APPEND, nextSequence++, content) ;
+            pending.put(Long.valueOf(sequence), current) ;
+            current.pendingCount++ ;
+            awaitDurable(sequence) ;
+            return sequence ;
+        } finally {
+            lock.unlock() ;
+        }
+    }
+
+    /**
+     * Acknowledge a record, allowing its segment to be deleted once all of its records are acknowledged.
+     * @param sequence The sequence number of the record.
+     * @throws IOException for errors writing the acknowledgement.
+     */
+    public void acknowledge(final long sequence) throws IOException {
+        final Segment segment = pending.remove(Long.valueOf(sequence)) ;
+        if (segment == null) {
+            return ;
+        }
+        lock.lock() ;
+        try {
+            write(TYPE_ACK, sequence, null) ;
+            if (--segment.pendingCount == 0) {
+                purge() ;
+            }
+        } finally {
+            lock.unlock() ;
+        }
+    }
+
+    /**
+     * Get the number of unacknowledged records.
+     * @return The number of pending records.
+     */
+    public int getPendingCount() {
+        return pending.size() ;
+    }
+
+    /**
+     * Force and close the current segment.
+     */
+    public void close() {
+        lock.lock() ;
+        try {
+            if (current != null) {
+                try {
+                    current.force() ;
+                } finally {
+                    current.close() ;
+                    current = null ;
+                }
+            }
+        } finally {
+            lock.unlock() ;
+        }
+    }
+
+    /**
+     * Write a record to the current segment, rolling over to a new segment if full.  Called with the lock held.
+     * @return The sequence number.
+     */
+    private long write(final byte type, final long sequence, final byte[] content) throws IOException {
+        if (current == null) {
+            throw new IOException("Journal " + directory + " is not open") ;
+        }
+        final int length = (content == null ? 0 : content.length) ;
+        final int required = RECORD_HEADER_SIZE + length + 4 ;
+        if (required + SEGMENT_HEADER_SIZE > segmentSize) {
+            throw new IOException("Record of " + length + " bytes exceeds the journal segment size") ;
+        }
+        if (current.buffer.remaining() < required) {
+            rollover() ;
+        }
+        final int checksum = checksum(sequence, type, content) ;
+        final MappedByteBuffer buffer = current.buffer ;
+        final int start = buffer.position() ;
+        buffer.position(start + 4) ;
+        buffer.putInt(checksum) ;
+        buffer.putLong(sequence) ;
+        buffer.put(type) ;
+        if (content != null) {
+            buffer.put(content) ;
+        }
+        // the length is written last so a partially written record reads as the end of the segment
+        buffer.putInt(start, length + 1) ;
+        if (type == TYPE_APPEND) {
+            writtenSequence = sequence ;
+        }
+        return sequence ;
+    }
+
+    /**
+     * Start a new segment and force the full one.  The new segment is created
+     * first so a failure leaves the journal writing to the full segment, and
+     * the append fails, rather than to a closed one.  Called with the lock held.
+     */
+    private void rollover() throws IOException {
+        final Segment full = current ;
+        final Segment next = new Segment(new File(directory, segmentName(full.index + 1)), full.index + 1, segmentSize) ;
+        full.force() ;
+        durableSequence = writtenSequence ;
+        current = next ;
+        segments.add(next) ;
+        full.close() ;
+        purge() ;
+    }
+
+    /**
+     * Delete the oldest segments whose records have all been acknowledged.  Called with the lock held.
+     */
+    private void purge() {
+        while(!segments.isEmpty()) {
+            final Segment oldest = segments.getFirst() ;
+            if ((oldest == current) || (oldest.pendingCount > 0)) {
+                break ;
+            }
+            segments.removeFirst() ;
+            oldest.delete() ;
+        }
+    }
+
+    /**
+     * Wait until the record is durable, forcing the segment on behalf of the group
+     * if no other thread is doing so.  Called with the lock held.
+     * @param sequence The sequence number of the record.
+     */
+    private void awaitDurable(final long sequence) throws IOException {
+        while(durableSequence < sequence) {
+            if (committing) {
+                committed.awaitUninterruptibly() ;
+                continue ;
+            }
+            committing = true ;
+            final long target = writtenSequence ;
+            final Segment segment = current ;
+            lock.unlock() ;
+            try {
+                segment.force() ;
+            } finally {
+                lock.lock() ;
+                committing = false ;
+                committed.signalAll() ;
+            }
+            if (target > durableSequence) {
+                durableSequence = target ;
+            }
+        }
+    }
+
+    /**
+     * Read the records of a segment.
+     */
+    private void recover(final Segment segment, final Map<Long, byte[]> recovered, final Map<Long, Segment> recoveredSegments) {
+        final MappedByteBuffer buffer = segment.buffer ;
+        if (buffer == null) {
+            return ;
+        }
+        while(buffer.remaining() >= RECORD_HEADER_SIZE) {
+            final int start = buffer.position() ;
+            final int length = buffer.getInt() - 1 ;
+            if ((length < 0) || (length > buffer.remaining() - (RECORD_HEADER_SIZE - 4))) {
+                break ;
+            }
+            final int storedCrc = buffer.getInt() ;
+            final long sequence = buffer.getLong() ;
+            final byte type = buffer.get() ;
+            final byte[] content = new byte[length] ;
+            buffer.get(content) ;
+            if (checksum(sequence, type, content) != storedCrc) {
+                logger.warn("Torn record at offset " + start + " of journal segment " + segment.file) ;
+                break ;
+            }
+            final Long key = Long.valueOf(sequence) ;
+            if (type == TYPE_APPEND) {
+                recovered.put(key, content) ;
+                recoveredSegments.put(key, segment) ;
+                nextSequence = Math.max(nextSequence, sequence + 1) ;
+            } else if (type == TYPE_ACK) {
+                recovered.remove(key) ;
+                recoveredSegments.remove(key) ;
+            }
+        }
+    }
+
+    /**
+     * Compute the CRC32 of the record.
+     */
+    private static int checksum(final long sequence, final byte type, final byte[] content) {
+        final CRC32 crc = new CRC32() ;
+        for(int shift = 56 ; shift >= 0 ; shift -= 8) {
+            crc.update((int)(sequence >>> shift)) ;
+        }
+        crc.update(type) ;
+        if (content != null) {
+            crc.update(content) ;
+        }
+        return (int)crc.getValue() ;
+    }
+
+    private static String segmentName(final long index) {
+        final String hex = Long.toHexString(index) ;
+        final StringBuilder builder = new StringBuilder(SEGMENT_PREFIX) ;
+        for(int count = hex.length() ; count < 16 ; count++) {
+            builder.append('0') ;
+        }
+        return builder.append(hex).append(SEGMENT_SUFFIX).toString() ;
+    }
+
+    private static long segmentIndex(final File file) {
+        final String name = file.getName() ;
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()), 16) ;
+        } catch (final NumberFormatException nfe) {
+            return 0 ;
+        }
+    }
+
+    /**
+     * A mapped segment file.
+     */
+    private static final class Segment {
+        private final File file ;
+        private final long index ;
+        private RandomAccessFile raf ;
+        private MappedByteBuffer buffer ;
+        /**
+         * The number of unacknowledged records appended to the segment, guarded by the journal lock.
+         */
+        private int pendingCount ;
+
+        /**
+         * Map the segment.
+         * @param file The segment file.
+         * @param index The segment index.
+         * @param size The size of a new segment, or -1 to open an existing segment for recovery.
+         */
+        Segment(final File file, final long index, final int size) throws IOException {
+            this.file = file ;
+            this.index = index ;
+            raf = new RandomAccessFile(file, "rw") ;
+            try {
+                final FileChannel channel = raf.getChannel() ;
+                if (size < 0) {
+                    if ((channel.size() < SEGMENT_HEADER_SIZE) || (channel.size() > Integer.MAX_VALUE)) {
+                        logger.warn("Ignoring invalid journal segment " + file) ;
+                        return ;
+                    }
+                    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()) ;
+                    if (buffer.getInt() != SEGMENT_MAGIC) {
+                        logger.warn("Ignoring journal segment with invalid header " + file) ;
+                        buffer = null ;
+                    }
+                } else {
+                    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size) ;
+                    buffer.putInt(SEGMENT_MAGIC) ;
+                }
+            } catch (final IOException ioe) {
+                close() ;
+                throw ioe ;
+            }
+        }
+
+        void force() {
+            if (buffer != null) {
+                buffer.force() ;
+            }
+        }
+
+        void close() {
+            if (raf != null) {
+                try {
+                    raf.close() ;
+                } catch (final IOException ioe) {
+                    logger.warn("Failed to close journal segment " + file, ioe) ;
+                }
+                raf = null ;
+            }
+        }
+
+        void delete() {
+            close() ;
+            buffer = null ;
+            if (!file.delete()) {
+                logger.warn("Failed to delete journal segment " + file) ;
+            }
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package org.jboss.soa.esb.listeners.message;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+import org.jboss.soa.esb.ConfigurationException;
+import org.jboss.soa.esb.actions.ActionProcessingException;
+import org.jboss.soa.esb.helpers.ConfigTree;
+import org.jboss.soa.esb.message.CopyOnWriteMessage;
+import org.jboss.soa.esb.message.Message;
+
+/**
+ * Executes an action pipeline on a fixed number of lanes, preserving the order
+ * of messages sharing the same partition key.
+ * <p/>
+ * The partition key is read from the message properties, the message context
+ * or a field of the message header, and hashed onto a lane.  Each lane is served by a single thread so
+ * messages with the same key are processed in arrival order while messages with
+ * different keys are processed in parallel.  Messages without a key are spread
+ * over the lanes in turn.  Each lane is bounded, a full lane blocks the caller of
+ * {@link #execute(Message)}.
+ */
+public class PartitionedPipelineExecutor {
+
+    private static final Logger logger = Logger.getLogger(PartitionedPipelineExecutor.class) ;
+
+    /**
+     * The name of the attribute specifying the partition key.
+     */
+    public static final String PARTITION_KEY_ATTRIBUTE = "partitionKey" ;
+
+    /**
+     * The name of the attribute specifying where the partition key is read from, properties, context or header.
+     */
+    public static final String PARTITION_KEY_LOCATION_ATTRIBUTE = "partitionKeyLocation" ;
+
+    /**
+     * The name of the attribute specifying the number of lanes.
+     */
+    public static final String PARTITION_LANES_ATTRIBUTE = "partitionLanes" ;
+
+    /**
+     * The name of the attribute specifying the capacity of each lane.
+     */
+    public static final String LANE_QUEUE_SIZE_ATTRIBUTE = "laneQueueSize" ;
+
+    /**
+     * The partition key location for message properties.
+     */
+    public static final String LOCATION_PROPERTIES = "properties" ;
+
+    /**
+     * The partition key location for the message context.
+     */
+    public static final String LOCATION_CONTEXT = "context" ;
+
+    /**
+     * The partition key location for the message header.
+     */
+    public static final String LOCATION_HEADER = "header" ;
+
+    private static final int LOCATION_TYPE_PROPERTIES = 0 ;
+    private static final int LOCATION_TYPE_CONTEXT = 1 ;
+    private static final int LOCATION_TYPE_HEADER = 2 ;
+
+    /**
+     * The pipeline executed by the lanes.
+     */
+    private final CompiledActionPipeline pipeline ;
+    /**
+     * The name of the partition key.
+     */
+    private final String partitionKey ;
+    /**
+     * Where the partition key is read from.
+     */
+    private final int locationType ;
+    /**
+     * The lanes.
+     */
+    private final Lane[] lanes ;
+    /**
+     * The lane used for the next message without a key.
+     */
+    private final AtomicInteger nextUnkeyedLane = new AtomicInteger() ;
+    /**
+     * Is the executor accepting messages?
+     */
+    private volatile boolean running ;
+    /**
+     * Lock held shared while queueing a message and exclusively while stopping, so
+     * no message can be queued after the lanes have been told to drain.
+     */
+    private final ReadWriteLock runningLock = new ReentrantReadWriteLock() ;
+    /**
+     * Have the lane threads been started?
+     */
+    private boolean started ;
+
+    /**
+     * Create the executor.
+     * @param pipeline The pipeline executed by the lanes.
+     * @param config The configuration specifying the partition key and lanes.
+     * @throws ConfigurationException for configuration errors.
+     */
+    public PartitionedPipelineExecutor(final CompiledActionPipeline pipeline, final ConfigTree config) throws ConfigurationException {
+        this.pipeline = pipeline ;
+        this.partitionKey = config.getRequiredAttribute(PARTITION_KEY_ATTRIBUTE) ;
+
+        final String location = config.getAttribute(PARTITION_KEY_LOCATION_ATTRIBUTE, LOCATION_PROPERTIES) ;
+        if (LOCATION_PROPERTIES.equalsIgnoreCase(location)) {
+            locationType = LOCATION_TYPE_PROPERTIES ;
+        } else if (LOCATION_CONTEXT.equalsIgnoreCase(location)) {
+            locationType = LOCATION_TYPE_CONTEXT ;
+        } else if (LOCATION_HEADER.equalsIgnoreCase(location)) {
+            locationType = LOCATION_TYPE_HEADER ;
+            try {
+                HeaderFields.getValue(null, partitionKey) ;
+            } catch (final IllegalArgumentException iae) {
+                throw new ConfigurationException("Invalid " + PARTITION_KEY_ATTRIBUTE + " value of " + partitionKey + " for the header location") ;
+            }
+        } else {
+            throw new ConfigurationException("Invalid " + PARTITION_KEY_LOCATION_ATTRIBUTE + " value of " + location) ;
+        }
+
+        final long numLanes = config.getLongAttribute(PARTITION_LANES_ATTRIBUTE, Runtime.getRuntime().availableProcessors()) ;
+        if ((numLanes < 1) || (numLanes > 1024)) {
+            throw new ConfigurationException("Invalid " + PARTITION_LANES_ATTRIBUTE + " value of " + numLanes) ;
+        }
+        final long queueSize = config.getLongAttribute(LANE_QUEUE_SIZE_ATTRIBUTE, 1000) ;
+        if ((queueSize < 1) || (queueSize > Integer.MAX_VALUE)) {
+            throw new ConfigurationException("Invalid " + LANE_QUEUE_SIZE_ATTRIBUTE + " value of " + queueSize) ;
+        }
+
+        lanes = new Lane[(int)numLanes] ;
+        for(int count = 0 ; count < lanes.length ; count++) {
+            lanes[count] = new Lane(count, (int)queueSize) ;
+        }
+    }
+
+    /**
+     * Start the lane threads.  The executor cannot be restarted once stopped.
+     */
+    public synchronized void start() {
+        if (!started) {
+            started = true ;
+            running = true ;
+            for(Lane lane: lanes) {
+                lane.start() ;
+            }
+        }
+    }
+
+    /**
+     * Stop accepting messages.  The lanes process the messages already queued and then exit.
+     * Callers still waiting for space on a lane are allowed to queue their messages first.
+     */
+    public synchronized void stop() {
+        runningLock.writeLock().lock() ;
+        try {
+            running = false ;
+        } finally {
+            runningLock.writeLock().unlock() ;
+        }
+    }
+
+    /**
+     * Wait until the lane threads have exited.
+     * @param timeout The maximum time to wait, specified in milliseconds.
+     * @return true if all lanes have exited, false otherwise.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitTermination(final long timeout) throws InterruptedException {
+        final long end = System.currentTimeMillis() + timeout ;
+        for(Lane lane: lanes) {
+            final long delay = end - System.currentTimeMillis() ;
+            if (delay > 0) {
+                lane.thread.join(delay) ;
+            }
+            if (lane.thread.isAlive()) {
+                return false ;
+            }
+        }
+        return true ;
+    }
+
+    /**
+     * Queue the message on the lane selected by its partition key.
+     * @param message The message.
+     * @throws InterruptedException if interrupted while waiting for space on the lane.
+     * @throws IllegalStateException if the executor is not running.
+     */
+    public void execute(final Message message) throws InterruptedException {
+        runningLock.readLock().lockInterruptibly() ;
+        try {
+            if (!running) {
+                throw new IllegalStateException("Partitioned executor is not running") ;
+            }
+            lanes[selectLane(CopyOnWriteMessage.forReading(message))].queue.put(message) ;
+        } finally {
+            runningLock.readLock().unlock() ;
+        }
+    }
+
+    /**
+     * Get the number of lanes.
+     * @return The number of lanes.
+     */
+    public int getLaneCount() {
+        return lanes.length ;
+    }
+
+    /**
+     * Get the number of messages processed by the lane.
+     * @param lane The lane number.
+     * @return The number of processed messages.
+     */
+    public long getLaneProcessedCount(final int lane) {
+        return lanes[lane].processed.get() ;
+    }
+
+    /**
+     * Get the number of messages waiting on the lane.
+     * @param lane The lane number.
+     * @return The queue depth of the lane.
+     */
+    public int getLaneQueueDepth(final int lane) {
+        return lanes[lane].queue.size() ;
+    }
+
+    /**
+     * Get the highest number of messages seen waiting on the lane.
+     * @param lane The lane number.
+     * @return The maximum queue depth of the lane.
+     */
+    public int getLaneMaxQueueDepth(final int lane) {
+        return lanes[lane].maxQueueDepth ;
+    }
+
+    /**
+     * Get the skew of the distribution of messages over the lanes.
+     * @return The ratio of the busiest lane to the mean, 1.0 when messages are evenly distributed.
+     */
+    public double getLaneSkew() {
+        long total = 0 ;
+        long max = 0 ;
+        for(Lane lane: lanes) {
+            final long processed = lane.processed.get() ;
+            total += processed ;
+            max = Math.max(max, processed) ;
+        }
+        return (total == 0 ? 1.0 : (max * (double)lanes.length) / total) ;
+    }
+
+    /**
+     * Select the lane for the message.
+     * @param message The message.
+     * @return The lane number.
+     */
+    private int selectLane(final Message message) {
+        final Object key ;
+        switch(locationType) {
+        case LOCATION_TYPE_CONTEXT:
+            key = message.getContext().getContext(partitionKey) ;
+            break ;
+        case LOCATION_TYPE_HEADER:
+            // header values are addresses and URIs, partition on their string form
+            final Object value = HeaderFields.getValue(message.getHeader().getCall(), partitionKey) ;
+            key = (value == null ? null : value.toString()) ;
+            break ;
+        default:
+            key = message.getProperties().getProperty(partitionKey) ;
+        }
+        if (key == null) {
+            return (nextUnkeyedLane.getAndIncrement() & Integer.MAX_VALUE) % lanes.length ;
+        }
+        final int hash = key.hashCode() ;
+        return ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % lanes.length ;
+    }
+
+    /**
+     * A single lane, processing its messages in order on one thread.
+     */
+    private final class Lane implements Runnable {
+        /**
+         * The messages waiting on the lane.
+         */
+        private final BlockingQueue<Message> queue ;
+        /**
+         * The lane thread.
+         */
+        private final Thread thread ;
+        /**
+         * The number of messages processed by the lane.
+         */
+        private final AtomicLong processed = new AtomicLong() ;
+        /**
+         * The highest queue depth seen by the lane thread.
+         */
+        private volatile int maxQueueDepth ;
+
+        Lane(final int number, final int queueSize) {
+            queue = new ArrayBlockingQueue<Message>(queueSize) ;
+            thread = new Thread(this, "PartitionedPipelineExecutor-lane-" + number) ;
+            thread.setDaemon(true) ;
+        }
+
+        void start() {
+            thread.start() ;
+        }
+
+        public void run() {
+            while(running || !queue.isEmpty()) {
+                final Message message ;
+                try {
+                    final int depth = queue.size() ;
+                    if (depth > maxQueueDepth) {
+                        maxQueueDepth = depth ;
+                    }
+                    message = queue.poll(100, TimeUnit.MILLISECONDS) ;
+                } catch (final InterruptedException ie) {
+                    break ;
+                }
+                if (message != null) {
+                    try {
+                        pipeline.release(pipeline.process(message)) ;
+                    } catch (final ActionProcessingException ape) {
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("Action pipeline failed on " + thread.getName(), ape) ;
+                        }
+                    } catch (final Throwable th) {
+                        logger.warn("Unexpected exception caught on " + thread.getName(), th) ;
+                    }
+                    processed.incrementAndGet() ;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,518 @@
+package org.jboss.soa.esb.listeners.message;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+import org.jboss.soa.esb.ConfigurationException;
+import org.jboss.soa.esb.actions.ActionProcessingException;
+import org.jboss.soa.esb.helpers.ConfigTree;
+import org.jboss.soa.esb.message.CopyOnWriteMessage;
+import org.jboss.soa.esb.message.Message;
+
+/**
+ * Schedules the messages entering a service pipeline by priority class, using
+ * weighted fair queuing.
+ * <p/>
+ * Each message is classified by the value of its priority key, read from the
+ * message properties, the message context or a field of the message header
+ * (to, from, replyTo, faultTo, relatesTo, action or messageId), and queued on the
+ * matching priority class.  Messages whose value matches no class are queued on
+ * the default class.  The classes are declared by priority-class child elements
+ * of the service configuration, for example:
+ * <pre>
+ * &lt;priority-class name="interactive" weight="8" values="gold,silver"/&gt;
+ * &lt;priority-class name="bulk" weight="1" queueSize="10000"/&gt;
+ * </pre>
+ * Each queued message receives a virtual finish time advancing by the inverse of
+ * the weight of its class, and the worker threads always process the queued
+ * message with the earliest finish time.  Backlogged classes therefore share the
+ * pipeline in proportion to their weights and no class can be starved, while an
+ * idle class does not accumulate credit.  Each class is bounded, a full class
+ * blocks the caller of {@link #execute(Message)}.
+ * <p/>
+ * The time each message spends queued is recorded per class.
+ */
+public class PriorityPipelineScheduler {
+
+    private static final Logger logger = Logger.getLogger(PriorityPipelineScheduler.class) ;
+
+    /**
+     * The name of the attribute specifying the priority key.
+     */
+    public static final String PRIORITY_KEY_ATTRIBUTE = "priorityKey" ;
+
+    /**
+     * The name of the attribute specifying where the priority key is read from, properties, context or header.
+     */
+    public static final String PRIORITY_KEY_LOCATION_ATTRIBUTE = "priorityKeyLocation" ;
+
+    /**
+     * The name of the attribute specifying the number of worker threads.
+     */
+    public static final String PRIORITY_THREADS_ATTRIBUTE = "priorityThreads" ;
+
+    /**
+     * The name of the attribute naming the default priority class.
+     */
+    public static final String PRIORITY_DEFAULT_CLASS_ATTRIBUTE = "priorityDefaultClass" ;
+
+    /**
+     * The name of the element declaring a priority class.
+     */
+    public static final String PRIORITY_CLASS_ELEMENT = "priority-class" ;
+
+    /**
+     * The name of the priority class attribute specifying its name.
+     */
+    public static final String CLASS_NAME_ATTRIBUTE = "name" ;
+
+    /**
+     * The name of the priority class attribute specifying its weight.
+     */
+    public static final String CLASS_WEIGHT_ATTRIBUTE = "weight" ;
+
+    /**
+     * The name of the priority class attribute specifying the comma separated key values it matches.
+     */
+    public static final String CLASS_VALUES_ATTRIBUTE = "values" ;
+
+    /**
+     * The name of the priority class attribute specifying its queue capacity.
+     */
+    public static final String CLASS_QUEUE_SIZE_ATTRIBUTE = "queueSize" ;
+
+    /**
+     * The priority key location for message properties.
+     */
+    public static final String LOCATION_PROPERTIES = "properties" ;
+
+    /**
+     * The priority key location for the message context.
+     */
+    public static final String LOCATION_CONTEXT = "context" ;
+
+    /**
+     * The priority key location for the message header.
+     */
+    public static final String LOCATION_HEADER = "header" ;
+
+    /**
+     * The default queue capacity of a priority class.
+     */
+    public static final int DEFAULT_QUEUE_SIZE = 1000 ;
+
+    /**
+     * The virtual time consumed by a message of a class with a weight of one.
+     */
+    private static final long VIRTUAL_TIME_SCALE = 1L << 32 ;
+
+    private static final int LOCATION_TYPE_PROPERTIES = 0 ;
+    private static final int LOCATION_TYPE_CONTEXT = 1 ;
+    private static final int LOCATION_TYPE_HEADER = 2 ;
+
+    /**
+     * The pipeline executed by the worker threads.
+     */
+    private final CompiledActionPipeline pipeline ;
+    /**
+     * The name of the priority key.
+     */
+    private final String priorityKey ;
+    /**
+     * Where the priority key is read from.
+     */
+    private final int locationType ;
+    /**
+     * The priority classes, in declaration order.
+     */
+    private final PriorityClass[] classes ;
+    /**
+     * The priority classes keyed by the key values they match.
+     */
+    private final Map<String, PriorityClass> classesByValue = new HashMap<String, PriorityClass>() ;
+    /**
+     * The class of messages matching no other class.
+     */
+    private final PriorityClass defaultClass ;
+    /**
+     * The worker threads.
+     */
+    private final Thread[] workers ;
+
+    /**
+     * The lock guarding the queues and virtual time.
+     */
+    private final ReentrantLock lock = new ReentrantLock() ;
+    /**
+     * Signalled when a message is queued.
+     */
+    private final Condition notEmpty = lock.newCondition() ;
+    /**
+     * The virtual time, the start time of the message most recently dispatched.
+     */
+    private long virtualTime ;
+    /**
+     * The number of queued messages over all classes.
+     */
+    private int queued ;
+
+    /**
+     * Is the scheduler accepting messages?
+     */
+    private volatile boolean running ;
+    /**
+     * Have the worker threads been started?
+     */
+    private boolean started ;
+
+    /**
+     * Create the scheduler.
+     * @param pipeline The pipeline executed by the worker threads.
+     * @param config The service configuration specifying the priority key and classes.
+     * @throws ConfigurationException for configuration errors.
+     */
+    public PriorityPipelineScheduler(final CompiledActionPipeline pipeline, final ConfigTree config) throws ConfigurationException {
+        this.pipeline = pipeline ;
+        this.priorityKey = config.getRequiredAttribute(PRIORITY_KEY_ATTRIBUTE) ;
+
+        final String location = config.getAttribute(PRIORITY_KEY_LOCATION_ATTRIBUTE, LOCATION_PROPERTIES) ;
+        if (LOCATION_PROPERTIES.equalsIgnoreCase(location)) {
+            locationType = LOCATION_TYPE_PROPERTIES ;
+        } else if (LOCATION_CONTEXT.equalsIgnoreCase(location)) {
+            locationType = LOCATION_TYPE_CONTEXT ;
+        } else if (LOCATION_HEADER.equalsIgnoreCase(location)) {
+            locationType = LOCATION_TYPE_HEADER ;
+            try {
+                HeaderFields.getValue(null, priorityKey) ;
+            } catch (final IllegalArgumentException iae) {
+                throw new ConfigurationException("Invalid " + PRIORITY_KEY_ATTRIBUTE + " value of " + priorityKey + " for the header location") ;
+            }
+        } else {
+            throw new ConfigurationException("Invalid " + PRIORITY_KEY_LOCATION_ATTRIBUTE + " value of " + location) ;
+        }
+
+        final ConfigTree[] classConfigs = config.getChildren(PRIORITY_CLASS_ELEMENT) ;
+        if (classConfigs.length == 0) {
+            throw new ConfigurationException("No " + PRIORITY_CLASS_ELEMENT + " elements declared") ;
+        }
+        classes = new PriorityClass[classConfigs.length] ;
+        final Map<String, PriorityClass> classesByName = new HashMap<String, PriorityClass>() ;
+        for(int count = 0 ; count < classConfigs.length ; count++) {
+            final ConfigTree classConfig = classConfigs[count] ;
+            final String name = classConfig.getRequiredAttribute(CLASS_NAME_ATTRIBUTE) ;
+            final long weight = classConfig.getLongAttribute(CLASS_WEIGHT_ATTRIBUTE, 1) ;
+            if ((weight < 1) || (weight > 1000000)) {
+                throw new ConfigurationException("Invalid " + CLASS_WEIGHT_ATTRIBUTE + " value of " + weight + " for priority class " + name) ;
+            }
+            final long queueSize = classConfig.getLongAttribute(CLASS_QUEUE_SIZE_ATTRIBUTE, DEFAULT_QUEUE_SIZE) ;
+            if ((queueSize < 1) || (queueSize > Integer.MAX_VALUE)) {
+                throw new ConfigurationException("Invalid " + CLASS_QUEUE_SIZE_ATTRIBUTE + " value of " + queueSize + " for priority class " + name) ;
+            }
+            final PriorityClass priorityClass = new PriorityClass(name, (int)weight, (int)queueSize) ;
+            if (classesByName.put(name, priorityClass) != null) {
+                throw new ConfigurationException("Duplicate priority class " + name) ;
+            }
+            classes[count] = priorityClass ;
+
+            final String values = classConfig.getAttribute(CLASS_VALUES_ATTRIBUTE) ;
+            if (values != null) {
+                for(String value: values.split(",")) {
+                    final String trimmed = value.trim() ;
+                    if ((trimmed.length() > 0) && (classesByValue.put(trimmed, priorityClass) != null)) {
+                        throw new ConfigurationException("Priority key value " + trimmed + " is mapped to more than one priority class") ;
+                    }
+                }
+            }
+        }
+
+        final String defaultClassName = config.getAttribute(PRIORITY_DEFAULT_CLASS_ATTRIBUTE) ;
+        if (defaultClassName == null) {
+            defaultClass = classes[classes.length - 1] ;
+        } else {
+            defaultClass = classesByName.get(defaultClassName) ;
+            if (defaultClass == null) {
+                throw new ConfigurationException("Invalid " + PRIORITY_DEFAULT_CLASS_ATTRIBUTE + " value of " + defaultClassName) ;
+            }
+        }
+
+        final long numThreads = config.getLongAttribute(PRIORITY_THREADS_ATTRIBUTE, Runtime.getRuntime().availableProcessors()) ;
+        if ((numThreads < 1) || (numThreads > 1024)) {
+            throw new ConfigurationException("Invalid " + PRIORITY_THREADS_ATTRIBUTE + " value of " + numThreads) ;
+        }
+        workers = new Thread[(int)numThreads] ;
+        for(int count = 0 ; count < workers.length ; count++) {
+            workers[count] = new Thread(new Worker(), "PriorityPipelineScheduler-worker-" + count) ;
+            workers[count].setDaemon(true) ;
+        }
+    }
+
+    /**
+     * Start the worker threads.  The scheduler cannot be restarted once stopped.
+     */
+    public synchronized void start() {
+        if (!started) {
+            started = true ;
+            running = true ;
+            for(Thread worker: workers) {
+                worker.start() ;
+            }
+        }
+    }
+
+    /**
+     * Stop accepting messages.  The workers process the messages already queued and then exit.
+     * Callers still waiting for space on a priority class are allowed to queue their messages first.
+     */
+    public synchronized void stop() {
+        lock.lock() ;
+        try {
+            running = false ;
+            notEmpty.signalAll() ;
+        } finally {
+            lock.unlock() ;
+        }
+    }
+
+    /**
+     * Wait until the worker threads have exited.
+     * @param timeout The maximum time to wait, specified in milliseconds.
+     * @return true if all workers have exited, false otherwise.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitTermination(final long timeout) throws InterruptedException {
+        final long end = System.currentTimeMillis() + timeout ;
+        for(Thread worker: workers) {
+            final long delay = end - System.currentTimeMillis() ;
+            if (delay > 0) {
+                worker.join(delay) ;
+            }
+            if (worker.isAlive()) {
+                return false ;
+            }
+        }
+        return true ;
+    }
+
+    /**
+     * Queue the message on its priority class.
+     * @param message The message.
+     * @throws InterruptedException if interrupted while waiting for space on the priority class.
+     * @throws IllegalStateException if the scheduler is not running.
+     */
+    public void execute(final Message message) throws InterruptedException {
+        if (!running) {
+            throw new IllegalStateException("Priority scheduler is not running") ;
+        }
+        final PriorityClass priorityClass = classify(CopyOnWriteMessage.forReading(message)) ;
+        lock.lockInterruptibly() ;
+        try {
+            // checked again under the lock, the workers may have drained the queues and exited
+            if (!running) {
+                throw new IllegalStateException("Priority scheduler is not running") ;
+            }
+            while(priorityClass.queue.size() >= priorityClass.queueSize) {
+                priorityClass.notFull.await() ;
+            }
+            final long finishTime = Math.max(virtualTime, priorityClass.lastFinishTime) + priorityClass.increment ;
+            priorityClass.lastFinishTime = finishTime ;
+            priorityClass.queue.addLast(new QueuedMessage(message, finishTime, System.nanoTime())) ;
+            queued++ ;
+            notEmpty.signal() ;
+        } finally {
+            lock.unlock() ;
+        }
+    }
+
+    /**
+     * Get the names of the priority classes.
+     * @return The class names, in declaration order.
+     */
+    public String[] getClassNames() {
+        final String[] names = new String[classes.length] ;
+        for(int count = 0 ; count < classes.length ; count++) {
+            names[count] = classes[count].name ;
+        }
+        return names ;
+    }
+
+    /**
+     * Get the number of messages waiting on the priority class.
+     * @param priorityClass The class index, in declaration order.
+     * @return The queue depth of the class.
+     */
+    public int getQueueDepth(final int priorityClass) {
+        lock.lock() ;
+        try {
+            return classes[priorityClass].queue.size() ;
+        } finally {
+            lock.unlock() ;
+        }
+    }
+
+    /**
+     * Get the number of messages of the priority class processed by the pipeline.
+     * @param priorityClass The class index, in declaration order.
+     * @return The number of processed messages.
+     */
+    public long getProcessedCount(final int priorityClass) {
+        return classes[priorityClass].processed.get() ;
+    }
+
+    /**
+     * Get the histogram of the time messages of the priority class spent queued.
+     * @param priorityClass The class index, in declaration order.
+     * @return The queue time histogram, in nanoseconds.
+     */
+    public LatencyHistogram getQueueTime(final int priorityClass) {
+        return classes[priorityClass].queueTime ;
+    }
+
+    /**
+     * Log the queue time of each priority class.
+     */
+    public void dump() {
+        for(PriorityClass priorityClass: classes) {
+            final LatencyHistogram queueTime = priorityClass.queueTime ;
+            logger.info("Priority class " + priorityClass.name + ": processed=" + priorityClass.processed.get() +
+                ", queueTime mean=" + queueTime.getMean() / 1000 + "us, p50=" + queueTime.getPercentile(50) / 1000 +
+                "us, p99=" + queueTime.getPercentile(99) / 1000 + "us, max=" + queueTime.getMax() / 1000 + "us") ;
+        }
+    }
+
+    /**
+     * Select the priority class of the message.
+     * @param message The message.
+     * @return The priority class.
+     */
+    private PriorityClass classify(final Message message) {
+        final Object value ;
+        switch(locationType) {
+        case LOCATION_TYPE_CONTEXT:
+            value = message.getContext().getContext(priorityKey) ;
+            break ;
+        case LOCATION_TYPE_HEADER:
+            value = HeaderFields.getValue(message.getHeader().getCall(), priorityKey) ;
+            break ;
+        default:
+            value = message.getProperties().getProperty(priorityKey) ;
+        }
+        if (value != null) {
+            final PriorityClass priorityClass = classesByValue.get(value.toString()) ;
+            if (priorityClass != null) {
+                return priorityClass ;
+            }
+        }
+        return defaultClass ;
+    }
+
+    /**
+     * Remove the queued message with the earliest virtual finish time, waiting if none are queued.
+     * @return The queued message, or null if the scheduler has stopped and no messages remain.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private QueuedMessage take() throws InterruptedException {
+        lock.lockInterruptibly() ;
+        try {
+            while(queued == 0) {
+                if (!running) {
+                    return null ;
+                }
+                notEmpty.await(100, TimeUnit.MILLISECONDS) ;
+            }
+            PriorityClass selected = null ;
+            for(PriorityClass priorityClass: classes) {
+                final QueuedMessage head = priorityClass.queue.peek() ;
+                if ((head != null) && ((selected == null) || (head.finishTime < selected.queue.peek().finishTime))) {
+                    selected = priorityClass ;
+                }
+            }
+            final QueuedMessage queuedMessage = selected.queue.removeFirst() ;
+            queued-- ;
+            virtualTime = Math.max(virtualTime, queuedMessage.finishTime - selected.increment) ;
+            selected.notFull.signal() ;
+            queuedMessage.priorityClass = selected ;
+            return queuedMessage ;
+        } finally {
+            lock.unlock() ;
+        }
+    }
+
+    /**
+     * A priority class and its queue.
+     */
+    private final class PriorityClass {
+        final String name ;
+        final int queueSize ;
+        /**
+         * The virtual time consumed by each message of the class.
+         */
+        final long increment ;
+        final LinkedList<QueuedMessage> queue = new LinkedList<QueuedMessage>() ;
+        final Condition notFull = lock.newCondition() ;
+        final AtomicLong processed = new AtomicLong() ;
+        final LatencyHistogram queueTime = new LatencyHistogram() ;
+        /**
+         * The virtual finish time of the last message queued on the class.
+         */
+        long lastFinishTime ;
+
+        PriorityClass(final String name, final int weight, final int queueSize) {
+            this.name = name ;
+            this.queueSize = queueSize ;
+            this.increment = VIRTUAL_TIME_SCALE / weight ;
+        }
+    }
+
+    /**
+     * A message waiting on a priority class.
+     */
+    private static final class QueuedMessage {
+        final Message message ;
+        final long finishTime ;
+        final long queuedNanos ;
+        PriorityClass priorityClass ;
+
+        QueuedMessage(final Message message, final long finishTime, final long queuedNanos) {
+            this.message = message ;
+            this.finishTime = finishTime ;
+            this.queuedNanos = queuedNanos ;
+        }
+    }
+
+    /**
+     * A worker thread, processing the scheduled messages.
+     */
+    private final class Worker implements Runnable {
+        public void run() {
+            while(true) {
+                final QueuedMessage queuedMessage ;
+                try {
+                    queuedMessage = take() ;
+                } catch (final InterruptedException ie) {
+                    break ;
+                }
+                if (queuedMessage == null) {
+                    break ;
+                }
+                final PriorityClass priorityClass = queuedMessage.priorityClass ;
+                priorityClass.queueTime.record(System.nanoTime() - queuedMessage.queuedNanos) ;
+                try {
+                    pipeline.release(pipeline.process(queuedMessage.message)) ;
+                } catch (final ActionProcessingException ape) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Action pipeline failed on " + Thread.currentThread().getName(), ape) ;
+                    }
+                } catch (final Throwable th) {
+                    logger.warn("Unexpected exception caught on " + Thread.currentThread().getName(), th) ;
+                }
+                priorityClass.processed.incrementAndGet() ;
+            }
+        }
+    }
+}
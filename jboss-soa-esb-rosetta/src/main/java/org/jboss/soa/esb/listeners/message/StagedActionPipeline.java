@@ -0,0 +1,360 @@
+package org.jboss.soa.esb.listeners.message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.jboss.soa.esb.ConfigurationException;
+import org.jboss.soa.esb.actions.ActionLifecycleException;
+import org.jboss.soa.esb.actions.ActionPipelineProcessor;
+import org.jboss.soa.esb.helpers.ConfigTree;
+import org.jboss.soa.esb.message.Message;
+
+/**
+ * Action pipeline executing each stage on its own thread pool.
+ * <p/>
+ * Consecutive actions sharing the same stage attribute are grouped into a single
+ * stage, actions without the attribute form a stage of their own.  The stages
+ * are connected by bounded queues: when a stage queue is full the threads of the
+ * preceding stage block, and ultimately so does the caller of
+ * {@link #submit(Message)}, propagating backpressure to the gateway instead of
+ * queueing without limit.
+ * <p/>
+ * The first action of each stage may size the stage through the stageThreads
+ * and stageQueueSize attributes.  Each stage reports its queue depth and mean
+ * service time.
+ */
+public class StagedActionPipeline {
+
+    private static final Logger logger = Logger.getLogger(StagedActionPipeline.class) ;
+
+    /**
+     * The name of the attribute grouping actions into a stage.
+     */
+    public static final String STAGE_ATTRIBUTE = "stage" ;
+
+    /**
+     * The name of the attribute specifying the number of threads of a stage.
+     */
+    public static final String STAGE_THREADS_ATTRIBUTE = "stageThreads" ;
+
+    /**
+     * The name of the attribute specifying the queue capacity of a stage.
+     */
+    public static final String STAGE_QUEUE_SIZE_ATTRIBUTE = "stageQueueSize" ;
+
+    /**
+     * The default number of threads of a stage.
+     */
+    public static final int DEFAULT_STAGE_THREADS = 1 ;
+
+    /**
+     * The default queue capacity of a stage.
+     */
+    public static final int DEFAULT_STAGE_QUEUE_SIZE = 100 ;
+
+    /**
+     * The pipeline holding all action processors.
+     */
+    private final CompiledActionPipeline pipeline ;
+    /**
+     * The stages, in pipeline order.
+     */
+    private final Stage[] stages ;
+
+    /**
+     * Compile the staged pipeline from the service configuration.
+     * @param config The service configuration.
+     * @throws ConfigurationException for errors creating the actions or stages.
+     */
+    public StagedActionPipeline(final ConfigTree config) throws ConfigurationException {
+        final ConfigTree[] actionConfigs = CompiledActionPipeline.getActionConfigs(config) ;
+        final List<ActionPipelineProcessor> processors = new ArrayList<ActionPipelineProcessor>(actionConfigs.length) ;
+        final List<Stage> stageList = new ArrayList<Stage>() ;
+        String currentStage = null ;
+        for(int count = 0 ; count < actionConfigs.length ; count++) {
+            final ConfigTree actionConfig = actionConfigs[count] ;
+            processors.add(CompiledActionPipeline.createProcessor(actionConfig)) ;
+            final String stageName = actionConfig.getAttribute(STAGE_ATTRIBUTE) ;
+            if ((stageName == null) || !stageName.equals(currentStage)) {
+                final String name = (stageName != null ? stageName : actionConfig.getAttribute("name", "stage-" + count)) ;
+                stageList.add(new Stage(stageList.size(), name, count,
+                    getPositiveAttribute(actionConfig, STAGE_THREADS_ATTRIBUTE, DEFAULT_STAGE_THREADS),
+                    getPositiveAttribute(actionConfig, STAGE_QUEUE_SIZE_ATTRIBUTE, DEFAULT_STAGE_QUEUE_SIZE))) ;
+            }
+            currentStage = stageName ;
+        }
+        pipeline = new CompiledActionPipeline(processors) ;
+        stages = stageList.toArray(new Stage[stageList.size()]) ;
+        for(int count = 0 ; count < stages.length ; count++) {
+            stages[count].end = (count + 1 < stages.length ? stages[count + 1].start : processors.size()) ;
+        }
+    }
+
+    /**
+     * Initialise the actions and start the stage thread pools.
+     * @throws ActionLifecycleException for errors during initialisation.
+     */
+    public void initialise() throws ActionLifecycleException {
+        pipeline.initialise() ;
+        for(Stage stage: stages) {
+            stage.start() ;
+        }
+    }
+
+    /**
+     * Stop the stage thread pools, waiting for queued messages, and destroy the actions.
+     * @param timeout The maximum time to wait for each stage, specified in milliseconds.
+     */
+    public void destroy(final long timeout) {
+        for(Stage stage: stages) {
+            stage.executor.shutdown() ;
+            try {
+                if (!stage.executor.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+                    logger.warn("Stage " + stage.name + " did not complete within " + timeout + "ms") ;
+                }
+            } catch (final InterruptedException ie) {
+                Thread.currentThread().interrupt() ;
+            }
+        }
+        pipeline.destroy() ;
+    }
+
+    /**
+     * Submit the message to the first stage, blocking while the stage queue is full.
+     * @param message The message.
+     * @throws RejectedExecutionException if the pipeline has been destroyed or the caller is interrupted.
+     */
+    public void submit(final Message message) {
+        if (stages.length == 0) {
+            return ;
+        }
+        stages[0].execute(new Work(message)) ;
+    }
+
+    /**
+     * Get the number of stages.
+     * @return The number of stages.
+     */
+    public int getStageCount() {
+        return stages.length ;
+    }
+
+    /**
+     * Get the name of the stage.
+     * @param stage The stage number.
+     * @return The stage name.
+     */
+    public String getStageName(final int stage) {
+        return stages[stage].name ;
+    }
+
+    /**
+     * Get the number of messages waiting on the stage.
+     * @param stage The stage number.
+     * @return The queue depth of the stage.
+     */
+    public int getStageQueueDepth(final int stage) {
+        return stages[stage].executor.getQueue().size() ;
+    }
+
+    /**
+     * Get the number of messages processed by the stage.
+     * @param stage The stage number.
+     * @return The number of processed messages.
+     */
+    public long getStageProcessedCount(final int stage) {
+        return stages[stage].processed.get() ;
+    }
+
+    /**
+     * Get the mean time taken by the stage to process a message.
+     * @param stage The stage number.
+     * @return The mean service time, specified in microseconds.
+     */
+    public long getStageServiceTime(final int stage) {
+        final Stage current = stages[stage] ;
+        final long processed = current.processed.get() ;
+        return (processed == 0 ? 0 : current.serviceTime.get() / processed / 1000) ;
+    }
+
+    /**
+     * Read a positive integer attribute.
+     * @param config The configuration.
+     * @param name The attribute name.
+     * @param defaultValue The default value.
+     * @return The attribute value.
+     * @throws ConfigurationException if the value is not positive.
+     */
+    private static int getPositiveAttribute(final ConfigTree config, final String name, final int defaultValue) throws ConfigurationException {
+        final long value = config.getLongAttribute(name, defaultValue) ;
+        if ((value < 1) || (value > Integer.MAX_VALUE)) {
+            throw new ConfigurationException("Invalid " + name + " value of " + value) ;
+        }
+        return (int)value ;
+    }
+
+    /**
+     * The progress of a single message through the stages.
+     */
+    private static final class Work {
+        /**
+         * The message which entered the pipeline.
+         */
+        private final Message input ;
+        /**
+         * The message passed to the next action.
+         */
+        private Message current ;
+        /**
+         * The position of the last action which has seen the message.
+         */
+        private int lastIndex = -1 ;
+
+        Work(final Message message) {
+            this.input = message ;
+            this.current = message ;
+        }
+    }
+
+    /**
+     * A group of consecutive actions executed on one thread pool.
+     */
+    private final class Stage {
+        /**
+         * The stage number.
+         */
+        private final int number ;
+        /**
+         * The stage name.
+         */
+        private final String name ;
+        /**
+         * The position of the first action of the stage.
+         */
+        private final int start ;
+        /**
+         * The position after the last action of the stage.
+         */
+        private int end ;
+        /**
+         * The stage thread pool.
+         */
+        private final ThreadPoolExecutor executor ;
+        /**
+         * The number of messages processed by the stage.
+         */
+        private final AtomicLong processed = new AtomicLong() ;
+        /**
+         * The accumulated service time, in nanoseconds.
+         */
+        private final AtomicLong serviceTime = new AtomicLong() ;
+
+        Stage(final int number, final String name, final int start, final int threads, final int queueSize) {
+            this.number = number ;
+            this.name = name ;
+            this.start = start ;
+            executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new StageThreadFactory(name), new BlockingRejectionHandler()) ;
+        }
+
+        void start() {
+            executor.prestartAllCoreThreads() ;
+        }
+
+        void execute(final Work work) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    process(work) ;
+                }
+            }) ;
+        }
+
+        /**
+         * Execute the actions of the stage and hand the message to the next stage.
+         * @param work The message progress.
+         */
+        private void process(final Work work) {
+            final long startTime = System.nanoTime() ;
+            try {
+                for(int index = start ; index < end ; index++) {
+                    work.lastIndex = index ;
+                    final Message next ;
+                    try {
+                        next = pipeline.invoke(index, work.current) ;
+                    } catch (final Throwable th) {
+                        pipeline.notifyException(index, work.input, work.current, th) ;
+                        return ;
+                    }
+                    if (next == null) {
+                        pipeline.notifySuccess(index, work.input, work.current) ;
+                        return ;
+                    }
+                    work.current = next ;
+                }
+            } finally {
+                serviceTime.addAndGet(System.nanoTime() - startTime) ;
+                processed.incrementAndGet() ;
+            }
+            if (number + 1 < stages.length) {
+                try {
+                    stages[number + 1].execute(work) ;
+                } catch (final RejectedExecutionException ree) {
+                    pipeline.notifyException(work.lastIndex, work.input, work.current, ree) ;
+                }
+            } else {
+                pipeline.notifySuccess(work.lastIndex, work.input, work.current) ;
+            }
+        }
+    }
+
+    /**
+     * Rejection handler blocking the submitting thread until the stage queue has space.
+     * <p/>
+     * The stage may be shut down while the thread is waiting, after its workers have
+     * drained the queue, so the task is withdrawn again if it is still queued once
+     * the stage is found to be shut down.
+     */
+    private static final class BlockingRejectionHandler implements RejectedExecutionHandler {
+        public void rejectedExecution(final Runnable runnable, final ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("Stage has been shut down") ;
+            }
+            try {
+                executor.getQueue().put(runnable) ;
+            } catch (final InterruptedException ie) {
+                Thread.currentThread().interrupt() ;
+                throw new RejectedExecutionException("Interrupted while waiting for stage capacity") ;
+            }
+            if (executor.isShutdown() && executor.remove(runnable)) {
+                throw new RejectedExecutionException("Stage has been shut down") ;
+            }
+        }
+    }
+
+    /**
+     * The thread factory for a stage.
+     */
+    private static final class StageThreadFactory implements ThreadFactory {
+        private final String name ;
+        private final AtomicInteger count = new AtomicInteger() ;
+
+        StageThreadFactory(final String name) {
+            this.name = name ;
+        }
+
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "StagedActionPipeline-" + name + "-" + count.incrementAndGet()) ;
+            thread.setDaemon(true) ;
+            return thread ;
+        }
+    }
+}
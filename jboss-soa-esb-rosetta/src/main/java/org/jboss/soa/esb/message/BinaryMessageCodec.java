@@ -0,0 +1,807 @@
+package org.jboss.soa.esb.message;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.jboss.soa.esb.addressing.Call;
+import org.jboss.soa.esb.addressing.EPR;
+import org.jboss.soa.esb.message.body.content.BufferPayload;
+import org.jboss.soa.esb.message.format.MessageFactory;
+
+/**
+ * Compact binary encoding of a {@link Message}, used in place of Java serialization.
+ * <p/>
+ * The encoding walks the message through its interface: the type, the header
+ * call, the context, body, fault, attachment and properties.  Integers are
+ * written as variable length quantities, strings as UTF-8 and byte array and
+ * {@link BufferPayload} values as their raw bytes.  Keys of the context, body,
+ * attachment and properties are written once per encoding, later occurrences
+ * referring to the first through a string table, so repeated property names cost
+ * a byte or two.  Attachments which are themselves messages are encoded inline.
+ * Values of other types, including endpoint references and fault causes, fall
+ * back to Java serialization, followed by a CRC32 of the serialized form.
+ * <p/>
+ * Decoding creates the message through the {@link MessageFactory}, validates
+ * every length and count against the remaining input and checks serialized values
+ * against their CRC32 before deserializing them, so corrupt input raises an
+ * IOException rather than exhausting memory.  As with Java serialization, content
+ * from untrusted sources must not be decoded.
+ */
+public final class BinaryMessageCodec {
+
+    /**
+     * The first byte of an encoded message.  Java serialization streams start with 0xAC.
+     */
+    public static final int MAGIC = 0xE5 ;
+
+    /**
+     * The encoding version.
+     */
+    public static final int VERSION = 1 ;
+
+    /**
+     * The maximum depth of nested messages.
+     */
+    private static final int MAX_DEPTH = 32 ;
+
+    private static final int TAG_NULL = 0 ;
+    private static final int TAG_STRING = 1 ;
+    private static final int TAG_BYTES = 2 ;
+    private static final int TAG_INT = 3 ;
+    private static final int TAG_LONG = 4 ;
+    private static final int TAG_TRUE = 5 ;
+    private static final int TAG_FALSE = 6 ;
+    private static final int TAG_DOUBLE = 7 ;
+    private static final int TAG_FLOAT = 8 ;
+    private static final int TAG_SHORT = 9 ;
+    private static final int TAG_BYTE = 10 ;
+    private static final int TAG_CHAR = 11 ;
+    private static final int TAG_URI = 12 ;
+    private static final int TAG_MESSAGE = 13 ;
+    private static final int TAG_BUFFER = 14 ;
+    private static final int TAG_SERIALIZED = 15 ;
+
+    private static final int CALL_TO = 0x01 ;
+    private static final int CALL_FROM = 0x02 ;
+    private static final int CALL_REPLY_TO = 0x04 ;
+    private static final int CALL_FAULT_TO = 0x08 ;
+    private static final int CALL_RELATES_TO = 0x10 ;
+    private static final int CALL_ACTION = 0x20 ;
+    private static final int CALL_MESSAGE_ID = 0x40 ;
+    private static final int CALL_PRESENT = 0x80 ;
+
+    private BinaryMessageCodec() {
+    }
+
+    /**
+     * Encode the message.
+     * @param message The message.
+     * @return The encoded message.
+     * @throws IOException if a value of the message cannot be encoded.
+     */
+    public static byte[] encode(final Message message) throws IOException {
+        final Writer writer = new Writer() ;
+        writer.writeByte(MAGIC) ;
+        writer.writeByte(VERSION) ;
+        writer.writeMessage(message, 0) ;
+        return writer.toByteArray() ;
+    }
+
+    /**
+     * Decode a message.
+     * @param content The encoded message.
+     * @return The message.
+     * @throws IOException if the content is not a valid encoding or a value cannot be decoded.
+     */
+    public static Message decode(final byte[] content) throws IOException {
+        return decode(content, 0, content.length) ;
+    }
+
+    /**
+     * Decode a message.
+     * @param content The buffer holding the encoded message.
+     * @param offset The offset of the encoded message.
+     * @param length The length of the encoded message.
+     * @return The message.
+     * @throws IOException if the content is not a valid encoding or a value cannot be decoded.
+     */
+    public static Message decode(final byte[] content, final int offset, final int length) throws IOException {
+        final Reader reader = new Reader(content, offset, length) ;
+        if (reader.readByte() != MAGIC) {
+            throw new StreamCorruptedException("Not an encoded message") ;
+        }
+        final int version = reader.readByte() ;
+        if (version != VERSION) {
+            throw new StreamCorruptedException("Unsupported message encoding version " + version) ;
+        }
+        final Message message = reader.readMessage(0) ;
+        if (reader.remaining() != 0) {
+            throw new StreamCorruptedException(reader.remaining() + " unexpected bytes after encoded message") ;
+        }
+        return message ;
+    }
+
+    /**
+     * Is the content an encoded message?
+     * @param content The content.
+     * @return true if the content starts with the encoding magic, false otherwise.
+     */
+    public static boolean isEncoded(final byte[] content) {
+        return (content.length > 0) && ((content[0] & 0xff) == MAGIC) ;
+    }
+
+    /**
+     * Deep copy a message by encoding and decoding it.
+     * @param message The message.
+     * @return The copy.
+     * @throws IOException if a value of the message cannot be copied.
+     */
+    public static Message copy(final Message message) throws IOException {
+        return decode(encode(message)) ;
+    }
+
+    /**
+     * Encoder writing into a growable array.
+     */
+    private static final class Writer {
+        private byte[] buffer = new byte[256] ;
+        private int position ;
+        /**
+         * The identifiers of the keys written so far.
+         */
+        private final Map<String, Integer> keys = new HashMap<String, Integer>() ;
+
+        byte[] toByteArray() {
+            final byte[] result = new byte[position] ;
+            System.arraycopy(buffer, 0, result, 0, position) ;
+            return result ;
+        }
+
+        void writeMessage(final Message original, final int depth) throws IOException {
+            if (depth > MAX_DEPTH) {
+                throw new IOException("Messages nested deeper than " + MAX_DEPTH) ;
+            }
+            final Message message = CopyOnWriteMessage.forReading(original) ;
+            final URI type = message.getType() ;
+            writeString(type == null ? null : type.toString()) ;
+            writeCall(message.getHeader()) ;
+            writeContext(message.getContext(), depth) ;
+            writeBody(message.getBody(), depth) ;
+            writeFault(message.getFault(), depth) ;
+            writeAttachment(message.getAttachment(), depth) ;
+            writeProperties(message.getProperties(), depth) ;
+        }
+
+        private void writeCall(final Header header) throws IOException {
+            final Call call = (header == null ? null : header.getCall()) ;
+            if (call == null) {
+                writeByte(0) ;
+                return ;
+            }
+            final EPR to = call.getTo() ;
+            final EPR from = call.getFrom() ;
+            final EPR replyTo = call.getReplyTo() ;
+            final EPR faultTo = call.getFaultTo() ;
+            final URI relatesTo = call.getRelatesTo() ;
+            final URI action = call.getAction() ;
+            final URI messageID = call.getMessageID() ;
+            writeByte(CALL_PRESENT | (to != null ? CALL_TO : 0) | (from != null ? CALL_FROM : 0) |
+                (replyTo != null ? CALL_REPLY_TO : 0) | (faultTo != null ? CALL_FAULT_TO : 0) |
+                (relatesTo != null ? CALL_RELATES_TO : 0) | (action != null ? CALL_ACTION : 0) |
+                (messageID != null ? CALL_MESSAGE_ID : 0)) ;
+            if (to != null) {
+                writeSerialized(to) ;
+            }
+            if (from != null) {
+                writeSerialized(from) ;
+            }
+            if (replyTo != null) {
+                writeSerialized(replyTo) ;
+            }
+            if (faultTo != null) {
+                writeSerialized(faultTo) ;
+            }
+            if (relatesTo != null) {
+                writeString(relatesTo.toString()) ;
+            }
+            if (action != null) {
+                writeString(action.toString()) ;
+            }
+            if (messageID != null) {
+                writeString(messageID.toString()) ;
+            }
+        }
+
+        private void writeContext(final Context context, final int depth) throws IOException {
+            final Set<String> names = (context == null ? null : context.getContextKeys()) ;
+            if (names == null) {
+                writeVarint(0) ;
+                return ;
+            }
+            writeVarint(names.size()) ;
+            for(String name: names) {
+                writeKey(name) ;
+                writeValue(context.getContext(name), depth) ;
+            }
+        }
+
+        private void writeBody(final Body body, final int depth) throws IOException {
+            final String[] names = (body == null ? null : body.getNames()) ;
+            if (names == null) {
+                writeVarint(0) ;
+                return ;
+            }
+            writeVarint(names.length) ;
+            for(String name: names) {
+                writeKey(name) ;
+                writeValue(body.get(name), depth) ;
+            }
+        }
+
+        private void writeFault(final Fault fault, final int depth) throws IOException {
+            final URI code = (fault == null ? null : fault.getCode()) ;
+            writeString(code == null ? null : code.toString()) ;
+            writeString(fault == null ? null : fault.getReason()) ;
+            writeValue(fault == null ? null : fault.getCause(), depth) ;
+        }
+
+        private void writeAttachment(final Attachment attachment, final int depth) throws IOException {
+            final String[] names = (attachment == null ? null : attachment.getNames()) ;
+            if (names == null) {
+                writeVarint(0) ;
+            } else {
+                writeVarint(names.length) ;
+                for(String name: names) {
+                    writeKey(name) ;
+                    writeValue(attachment.get(name), depth) ;
+                }
+            }
+            final int unnamed = (attachment == null ? 0 : attachment.getUnnamedCount()) ;
+            writeVarint(unnamed) ;
+            for(int count = 0 ; count < unnamed ; count++) {
+                writeValue(attachment.itemAt(count), depth) ;
+            }
+        }
+
+        private void writeProperties(final Properties properties, final int depth) throws IOException {
+            final String[] names = (properties == null ? null : properties.getNames()) ;
+            if (names == null) {
+                writeVarint(0) ;
+                return ;
+            }
+            writeVarint(names.length) ;
+            for(String name: names) {
+                writeKey(name) ;
+                writeValue(properties.getProperty(name), depth) ;
+            }
+        }
+
+        /**
+         * Write a key through the string table: zero followed by the key on first
+         * occurrence, otherwise the key identifier plus one.
+         */
+        private void writeKey(final String key) throws IOException {
+            final Integer id = keys.get(key) ;
+            if (id != null) {
+                writeVarint(id.intValue() + 1) ;
+            } else {
+                writeVarint(0) ;
+                writeString(key) ;
+                keys.put(key, Integer.valueOf(keys.size())) ;
+            }
+        }
+
+        private void writeValue(final Object value, final int depth) throws IOException {
+            if (value == null) {
+                writeByte(TAG_NULL) ;
+            } else if (value instanceof String) {
+                writeByte(TAG_STRING) ;
+                writeString((String)value) ;
+            } else if (value instanceof byte[]) {
+                final byte[] bytes = (byte[])value ;
+                writeByte(TAG_BYTES) ;
+                writeVarint(bytes.length) ;
+                writeBytes(bytes, 0, bytes.length) ;
+            } else if (value instanceof Integer) {
+                writeByte(TAG_INT) ;
+                writeVarlong(zigzag(((Integer)value).intValue())) ;
+            } else if (value instanceof Long) {
+                writeByte(TAG_LONG) ;
+                writeVarlong(zigzag(((Long)value).longValue())) ;
+            } else if (value instanceof Boolean) {
+                writeByte(((Boolean)value).booleanValue() ? TAG_TRUE : TAG_FALSE) ;
+            } else if (value instanceof Double) {
+                writeByte(TAG_DOUBLE) ;
+                writeFixedLong(Double.doubleToLongBits(((Double)value).doubleValue())) ;
+            } else if (value instanceof Float) {
+                writeByte(TAG_FLOAT) ;
+                writeFixedInt(Float.floatToIntBits(((Float)value).floatValue())) ;
+            } else if (value instanceof Short) {
+                writeByte(TAG_SHORT) ;
+                writeVarlong(zigzag(((Short)value).shortValue())) ;
+            } else if (value instanceof Byte) {
+                writeByte(TAG_BYTE) ;
+                writeByte(((Byte)value).byteValue()) ;
+            } else if (value instanceof Character) {
+                writeByte(TAG_CHAR) ;
+                writeVarint(((Character)value).charValue()) ;
+            } else if (value instanceof URI) {
+                writeByte(TAG_URI) ;
+                writeString(value.toString()) ;
+            } else if (value instanceof Message) {
+                writeByte(TAG_MESSAGE) ;
+                writeMessage((Message)value, depth + 1) ;
+            } else if (value instanceof BufferPayload) {
+                final ByteBuffer payload ;
+                try {
+                    payload = ((BufferPayload)value).asBuffer() ;
+                } catch (final IllegalStateException ise) {
+                    throw new IOException("Buffer payload has been released") ;
+                }
+                final int length = payload.remaining() ;
+                writeByte(TAG_BUFFER) ;
+                writeVarint(length) ;
+                ensureCapacity(length) ;
+                payload.get(buffer, position, length) ;
+                position += length ;
+            } else {
+                writeByte(TAG_SERIALIZED) ;
+                writeSerialized(value) ;
+            }
+        }
+
+        private void writeSerialized(final Object value) throws IOException {
+            if (!(value instanceof Serializable)) {
+                throw new IOException("Value of type " + value.getClass().getName() + " cannot be encoded") ;
+            }
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream() ;
+            final ObjectOutputStream oos = new ObjectOutputStream(baos) ;
+            oos.writeObject(value) ;
+            oos.close() ;
+            final byte[] bytes = baos.toByteArray() ;
+            final CRC32 crc = new CRC32() ;
+            crc.update(bytes) ;
+            writeVarint(bytes.length) ;
+            writeFixedInt((int)crc.getValue()) ;
+            writeBytes(bytes, 0, bytes.length) ;
+        }
+
+        /**
+         * Write a nullable string: zero for null, otherwise the UTF-8 length plus one followed by the bytes.
+         */
+        private void writeString(final String value) throws IOException {
+            if (value == null) {
+                writeVarint(0) ;
+                return ;
+            }
+            final int length = value.length() ;
+            boolean ascii = true ;
+            for(int count = 0 ; count < length ; count++) {
+                if (value.charAt(count) >= 0x80) {
+                    ascii = false ;
+                    break ;
+                }
+            }
+            if (ascii) {
+                writeVarint(length + 1) ;
+                ensureCapacity(length) ;
+                for(int count = 0 ; count < length ; count++) {
+                    buffer[position++] = (byte)value.charAt(count) ;
+                }
+            } else {
+                final byte[] bytes = value.getBytes("UTF-8") ;
+                writeVarint(bytes.length + 1) ;
+                writeBytes(bytes, 0, bytes.length) ;
+            }
+        }
+
+        void writeByte(final int value) {
+            ensureCapacity(1) ;
+            buffer[position++] = (byte)value ;
+        }
+
+        private void writeBytes(final byte[] bytes, final int offset, final int length) {
+            ensureCapacity(length) ;
+            System.arraycopy(bytes, offset, buffer, position, length) ;
+            position += length ;
+        }
+
+        private void writeVarint(final int value) {
+            writeVarlong(value & 0xffffffffL) ;
+        }
+
+        private void writeVarlong(final long value) {
+            ensureCapacity(10) ;
+            long remaining = value ;
+            while((remaining & ~0x7fL) != 0) {
+                buffer[position++] = (byte)((remaining & 0x7f) | 0x80) ;
+                remaining >>>= 7 ;
+            }
+            buffer[position++] = (byte)remaining ;
+        }
+
+        private void writeFixedInt(final int value) {
+            ensureCapacity(4) ;
+            for(int shift = 24 ; shift >= 0 ; shift -= 8) {
+                buffer[position++] = (byte)(value >>> shift) ;
+            }
+        }
+
+        private void writeFixedLong(final long value) {
+            ensureCapacity(8) ;
+            for(int shift = 56 ; shift >= 0 ; shift -= 8) {
+                buffer[position++] = (byte)(value >>> shift) ;
+            }
+        }
+
+        private void ensureCapacity(final int length) {
+            final int required = position + length ;
+            if (required < 0) {
+                throw new IllegalStateException("Encoded message exceeds the maximum array size") ;
+            }
+            if (required > buffer.length) {
+                final byte[] newBuffer = new byte[Math.max(required, buffer.length << 1)] ;
+                System.arraycopy(buffer, 0, newBuffer, 0, position) ;
+                buffer = newBuffer ;
+            }
+        }
+    }
+
+    /**
+     * Decoder reading from an array, checking every read against the remaining input.
+     */
+    private static final class Reader {
+        private final byte[] buffer ;
+        private int position ;
+        private final int limit ;
+        /**
+         * The keys read so far, indexed by identifier.
+         */
+        private final List<String> keys = new ArrayList<String>() ;
+
+        Reader(final byte[] buffer, final int offset, final int length) {
+            if ((offset < 0) || (length < 0) || (offset + length > buffer.length) || (offset + length < 0)) {
+                throw new IndexOutOfBoundsException("Invalid offset " + offset + " and length " + length) ;
+            }
+            this.buffer = buffer ;
+            this.position = offset ;
+            this.limit = offset + length ;
+        }
+
+        int remaining() {
+            return limit - position ;
+        }
+
+        Message readMessage(final int depth) throws IOException {
+            if (depth > MAX_DEPTH) {
+                throw new StreamCorruptedException("Messages nested deeper than " + MAX_DEPTH) ;
+            }
+            final String type = readString() ;
+            final MessageFactory factory = MessageFactory.getInstance() ;
+            final Message message = (type == null ? factory.getMessage() : factory.getMessage(toURI(type))) ;
+            readCall(message) ;
+            readContext(message.getContext(), depth) ;
+            readBody(message.getBody(), depth) ;
+            readFault(message.getFault(), depth) ;
+            readAttachment(message.getAttachment(), depth) ;
+            readProperties(message.getProperties(), depth) ;
+            return message ;
+        }
+
+        private void readCall(final Message message) throws IOException {
+            final int flags = readByte() ;
+            if (flags == 0) {
+                return ;
+            }
+            if ((flags & CALL_PRESENT) == 0) {
+                throw new StreamCorruptedException("Invalid header flags " + flags) ;
+            }
+            final Call call = new Call() ;
+            if ((flags & CALL_TO) != 0) {
+                call.setTo(readEPR()) ;
+            }
+            if ((flags & CALL_FROM) != 0) {
+                call.setFrom(readEPR()) ;
+            }
+            if ((flags & CALL_REPLY_TO) != 0) {
+                call.setReplyTo(readEPR()) ;
+            }
+            if ((flags & CALL_FAULT_TO) != 0) {
+                call.setFaultTo(readEPR()) ;
+            }
+            if ((flags & CALL_RELATES_TO) != 0) {
+                call.setRelatesTo(toURI(readRequiredString())) ;
+            }
+            if ((flags & CALL_ACTION) != 0) {
+                call.setAction(toURI(readRequiredString())) ;
+            }
+            if ((flags & CALL_MESSAGE_ID) != 0) {
+                call.setMessageID(toURI(readRequiredString())) ;
+            }
+            message.getHeader().setCall(call) ;
+        }
+
+        private EPR readEPR() throws IOException {
+            final Object value = readSerialized() ;
+            if (!(value instanceof EPR)) {
+                throw new StreamCorruptedException("Invalid endpoint reference of type " + (value == null ? null : value.getClass().getName())) ;
+            }
+            return (EPR)value ;
+        }
+
+        private void readContext(final Context context, final int depth) throws IOException {
+            final int count = readCount() ;
+            for(int index = 0 ; index < count ; index++) {
+                final String name = readKey() ;
+                context.setContext(name, readValue(depth)) ;
+            }
+        }
+
+        private void readBody(final Body body, final int depth) throws IOException {
+            final int count = readCount() ;
+            for(int index = 0 ; index < count ; index++) {
+                final String name = readKey() ;
+                body.add(name, readValue(depth)) ;
+            }
+        }
+
+        private void readFault(final Fault fault, final int depth) throws IOException {
+            final String code = readString() ;
+            final String reason = readString() ;
+            final Object cause = readValue(depth) ;
+            if ((cause != null) && !(cause instanceof Throwable)) {
+                throw new StreamCorruptedException("Invalid fault cause of type " + cause.getClass().getName()) ;
+            }
+            if (code != null) {
+                fault.setCode(toURI(code)) ;
+            }
+            if (reason != null) {
+                fault.setReason(reason) ;
+            }
+            if (cause != null) {
+                fault.setCause((Throwable)cause) ;
+            }
+        }
+
+        private void readAttachment(final Attachment attachment, final int depth) throws IOException {
+            final int named = readCount() ;
+            for(int index = 0 ; index < named ; index++) {
+                final String name = readKey() ;
+                attachment.put(name, readValue(depth)) ;
+            }
+            final int unnamed = readCount() ;
+            for(int index = 0 ; index < unnamed ; index++) {
+                attachment.addItem(readValue(depth)) ;
+            }
+        }
+
+        private void readProperties(final Properties properties, final int depth) throws IOException {
+            final int count = readCount() ;
+            for(int index = 0 ; index < count ; index++) {
+                final String name = readKey() ;
+                properties.setProperty(name, readValue(depth)) ;
+            }
+        }
+
+        private String readKey() throws IOException {
+            final int id = readVarint() ;
+            if (id == 0) {
+                final String key = readRequiredString() ;
+                keys.add(key) ;
+                return key ;
+            }
+            if (id > keys.size()) {
+                throw new StreamCorruptedException("Invalid key reference " + id) ;
+            }
+            return keys.get(id - 1) ;
+        }
+
+        private Object readValue(final int depth) throws IOException {
+            final int tag = readByte() ;
+            switch(tag) {
+            case TAG_NULL:
+                return null ;
+            case TAG_STRING:
+                return readRequiredString() ;
+            case TAG_BYTES:
+                return readBytes(readLength()) ;
+            case TAG_INT:
+                return Integer.valueOf((int)unzigzag(readVarlong())) ;
+            case TAG_LONG:
+                return Long.valueOf(unzigzag(readVarlong())) ;
+            case TAG_TRUE:
+                return Boolean.TRUE ;
+            case TAG_FALSE:
+                return Boolean.FALSE ;
+            case TAG_DOUBLE:
+                return Double.valueOf(Double.longBitsToDouble(readFixedLong())) ;
+            case TAG_FLOAT:
+                return Float.valueOf(Float.intBitsToFloat(readFixedInt())) ;
+            case TAG_SHORT:
+                return Short.valueOf((short)unzigzag(readVarlong())) ;
+            case TAG_BYTE:
+                return Byte.valueOf((byte)readByte()) ;
+            case TAG_CHAR:
+                return Character.valueOf((char)readVarint()) ;
+            case TAG_URI:
+                return toURI(readRequiredString()) ;
+            case TAG_MESSAGE:
+                return readMessage(depth + 1) ;
+            case TAG_BUFFER:
+                return new BufferPayload(ByteBuffer.wrap(readBytes(readLength())), null) ;
+            case TAG_SERIALIZED:
+                return readSerialized() ;
+            default:
+                throw new StreamCorruptedException("Invalid value tag " + tag) ;
+            }
+        }
+
+        private Object readSerialized() throws IOException {
+            final int length = readVarint() ;
+            final int checksum = readFixedInt() ;
+            require(length) ;
+            final CRC32 crc = new CRC32() ;
+            crc.update(buffer, position, length) ;
+            if ((int)crc.getValue() != checksum) {
+                throw new StreamCorruptedException("Serialized value failed its checksum") ;
+            }
+            final ObjectInputStream ois = new ContextObjectInputStream(new ByteArrayInputStream(buffer, position, length)) ;
+            position += length ;
+            try {
+                return ois.readObject() ;
+            } catch (final ClassNotFoundException cnfe) {
+                final IOException ioe = new IOException("Class of serialized value not found") ;
+                ioe.initCause(cnfe) ;
+                throw ioe ;
+            } catch (final RuntimeException re) {
+                final IOException ioe = new StreamCorruptedException("Invalid serialized value") ;
+                ioe.initCause(re) ;
+                throw ioe ;
+            } finally {
+                ois.close() ;
+            }
+        }
+
+        private String readString() throws IOException {
+            final int length = readVarint() ;
+            if (length == 0) {
+                return null ;
+            }
+            return decodeString(length - 1) ;
+        }
+
+        private String readRequiredString() throws IOException {
+            final String value = readString() ;
+            if (value == null) {
+                throw new StreamCorruptedException("Unexpected null string") ;
+            }
+            return value ;
+        }
+
+        private String decodeString(final int length) throws IOException {
+            require(length) ;
+            final int end = position + length ;
+            final char[] chars = new char[length] ;
+            int current = position ;
+            while(current < end) {
+                final byte value = buffer[current] ;
+                if (value < 0) {
+                    final String result = new String(buffer, position, length, "UTF-8") ;
+                    position = end ;
+                    return result ;
+                }
+                chars[current - position] = (char)value ;
+                current++ ;
+            }
+            position = end ;
+            return new String(chars) ;
+        }
+
+        /**
+         * Read an element count, each element occupying at least one byte.
+         */
+        private int readCount() throws IOException {
+            final int count = readVarint() ;
+            if ((count < 0) || (count > remaining())) {
+                throw new StreamCorruptedException("Invalid count " + count) ;
+            }
+            return count ;
+        }
+
+        private int readLength() throws IOException {
+            final int length = readVarint() ;
+            require(length) ;
+            return length ;
+        }
+
+        private byte[] readBytes(final int length) throws IOException {
+            require(length) ;
+            final byte[] bytes = new byte[length] ;
+            System.arraycopy(buffer, position, bytes, 0, length) ;
+            position += length ;
+            return bytes ;
+        }
+
+        int readByte() throws IOException {
+            require(1) ;
+            return buffer[position++] & 0xff ;
+        }
+
+        private int readVarint() throws IOException {
+            final long value = readVarlong() ;
+            if ((value & ~0x7fffffffL) != 0) {
+                throw new StreamCorruptedException("Integer out of range") ;
+            }
+            return (int)value ;
+        }
+
+        private long readVarlong() throws IOException {
+            long value = 0 ;
+            for(int shift = 0 ; shift < 64 ; shift += 7) {
+                final int current = readByte() ;
+                value |= (long)(current & 0x7f) << shift ;
+                if ((current & 0x80) == 0) {
+                    return value ;
+                }
+            }
+            throw new StreamCorruptedException("Variable length integer too long") ;
+        }
+
+        private int readFixedInt() throws IOException {
+            require(4) ;
+            int value = 0 ;
+            for(int count = 0 ; count < 4 ; count++) {
+                value = (value << 8) | (buffer[position++] & 0xff) ;
+            }
+            return value ;
+        }
+
+        private long readFixedLong() throws IOException {
+            require(8) ;
+            long value = 0 ;
+            for(int count = 0 ; count < 8 ; count++) {
+                value = (value << 8) | (buffer[position++] & 0xff) ;
+            }
+            return value ;
+        }
+
+        private void require(final int length) throws IOException {
+            if ((length < 0) || (length > limit - position)) {
+                throw new EOFException("Encoded message truncated") ;
+            }
+        }
+    }
+
+    private static long zigzag(final long value) {
+        return (value << 1) ^ (value >> 63) ;
+    }
+
+    private static long unzigzag(final long value) {
+        return (value >>> 1) ^ -(value & 1) ;
+    }
+
+    private static URI toURI(final String value) throws IOException {
+        try {
+            return new URI(value) ;
+        } catch (final URISyntaxException urise) {
+            final IOException ioe = new StreamCorruptedException("Invalid URI " + value) ;
+            ioe.initCause(urise) ;
+            throw ioe ;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package org.jboss.soa.esb.message;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+
+/**
+ * Object input stream resolving classes through the thread context class loader,
+ * falling back to the default resolution when the class is not visible to it.
+ * <p/>
+ * Used wherever message content is deserialized, so that the classes of a
+ * deployed service are found when the message is decoded by the ESB.
+ */
+public class ContextObjectInputStream extends ObjectInputStream {
+
+    /**
+     * Create the stream.
+     * @param in The stream to read from.
+     * @throws IOException for errors reading the stream header.
+     */
+    public ContextObjectInputStream(final InputStream in) throws IOException {
+        super(in) ;
+    }
+
+    protected Class<?> resolveClass(final ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+        final ClassLoader classLoader = Thread.currentThread().getContextClassLoader() ;
+        if (classLoader != null) {
+            try {
+                return Class.forName(desc.getName(), false, classLoader) ;
+            } catch (final ClassNotFoundException cnfe) {
+                // fall through to the default resolution
+            }
+        }
+        return super.resolveClass(desc) ;
+    }
+}
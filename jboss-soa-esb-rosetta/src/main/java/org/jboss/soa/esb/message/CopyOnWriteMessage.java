@@ -0,0 +1,679 @@
+package org.jboss.soa.esb.message;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.net.URI;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.soa.esb.addressing.Call;
+
+/**
+ * Message implementation whose {@link #copy()} shares the message components
+ * instead of serializing them.
+ * <p/>
+ * A copy initially shares the header, context, body, fault, attachment and
+ * properties with the message it was copied from.  The getters return views of
+ * the components which read the shared instance directly.  The first call to a
+ * method of a view which changes its component deep copies the shared instance,
+ * so that changes made through either message are never visible through the
+ * other, and from then on the message owns its private instance.  Components
+ * which are never changed are never copied, which makes copying a message a
+ * pointer operation in the common read-only case.
+ * <p/>
+ * Only changes made through the component methods are detected.  Objects held by
+ * a component, such as the payload or the call returned from the header, must not
+ * be modified in place; they should be replaced through the component.  The header
+ * call is mutable and commonly updated in place, so {@link Header#getCall()} is
+ * treated as a change.  A view is serialized as the component it currently reads.
+ * <p/>
+ * Code which only reads a component, such as logging or routing actions, can use
+ * the peek methods, or the message returned by {@link #forReading(Message)}, to
+ * inspect the underlying instance without the indirection of the views.  The
+ * instances returned by the peek methods must not be modified, nor may a component
+ * instance obtained before the message was copied.
+ * <p/>
+ * Each component must be serializable for the deep copy.  Like the other message
+ * implementations this class is not safe for concurrent use by multiple threads.
+ */
+public class CopyOnWriteMessage implements Message, Serializable {
+
+    private static final long serialVersionUID = 6178032465318407193L;
+
+    /**
+     * The message type.
+     */
+    private final URI type ;
+    /**
+     * The header component.
+     */
+    private Part<Header> header ;
+    /**
+     * The context component.
+     */
+    private Part<Context> context ;
+    /**
+     * The body component.
+     */
+    private Part<Body> body ;
+    /**
+     * The fault component.
+     */
+    private Part<Fault> fault ;
+    /**
+     * The attachment component.
+     */
+    private Part<Attachment> attachment ;
+    /**
+     * The properties component.
+     */
+    private Part<Properties> properties ;
+
+    /**
+     * The views returned by the getters, created on first use.
+     */
+    private transient Header headerView ;
+    private transient Context contextView ;
+    private transient Body bodyView ;
+    private transient Fault faultView ;
+    private transient Attachment attachmentView ;
+    private transient Properties propertiesView ;
+
+    /**
+     * Create a copy-on-write message taking over the components of the supplied message.
+     * The supplied message should no longer be used once wrapped.  A copy-on-write
+     * message is not wrapped, its components are shared as by {@link #copy()}.
+     * @param message The message providing the components.
+     */
+    public CopyOnWriteMessage(final Message message) {
+        if (message instanceof CopyOnWriteMessage) {
+            final CopyOnWriteMessage original = (CopyOnWriteMessage)message ;
+            this.type = original.type ;
+            this.header = original.header.share() ;
+            this.context = original.context.share() ;
+            this.body = original.body.share() ;
+            this.fault = original.fault.share() ;
+            this.attachment = original.attachment.share() ;
+            this.properties = original.properties.share() ;
+        } else {
+            this.type = message.getType() ;
+            this.header = new Part<Header>(message.getHeader()) ;
+            this.context = new Part<Context>(message.getContext()) ;
+            this.body = new Part<Body>(message.getBody()) ;
+            this.fault = new Part<Fault>(message.getFault()) ;
+            this.attachment = new Part<Attachment>(message.getAttachment()) ;
+            this.properties = new Part<Properties>(message.getProperties()) ;
+        }
+    }
+
+    /**
+     * Create a copy-on-write message from its components.
+     * @param type The message type.
+     * @param header The header component.
+     * @param context The context component.
+     * @param body The body component.
+     * @param fault The fault component.
+     * @param attachment The attachment component.
+     * @param properties The properties component.
+     */
+    public CopyOnWriteMessage(final URI type, final Header header, final Context context, final Body body,
+        final Fault fault, final Attachment attachment, final Properties properties) {
+        this.type = type ;
+        this.header = new Part<Header>(header) ;
+        this.context = new Part<Context>(context) ;
+        this.body = new Part<Body>(body) ;
+        this.fault = new Part<Fault>(fault) ;
+        this.attachment = new Part<Attachment>(attachment) ;
+        this.properties = new Part<Properties>(properties) ;
+    }
+
+    public Header getHeader() {
+        if ((headerView == null) && (header.value != null)) {
+            headerView = new HeaderView() ;
+        }
+        return headerView ;
+    }
+
+    public Context getContext() {
+        if ((contextView == null) && (context.value != null)) {
+            contextView = new ContextView() ;
+        }
+        return contextView ;
+    }
+
+    public Body getBody() {
+        if ((bodyView == null) && (body.value != null)) {
+            bodyView = new BodyView() ;
+        }
+        return bodyView ;
+    }
+
+    public Fault getFault() {
+        if ((faultView == null) && (fault.value != null)) {
+            faultView = new FaultView() ;
+        }
+        return faultView ;
+    }
+
+    public Attachment getAttachment() {
+        if ((attachmentView == null) && (attachment.value != null)) {
+            attachmentView = new AttachmentView() ;
+        }
+        return attachmentView ;
+    }
+
+    public URI getType() {
+        return type ;
+    }
+
+    public Properties getProperties() {
+        if ((propertiesView == null) && (properties.value != null)) {
+            propertiesView = new PropertiesView() ;
+        }
+        return propertiesView ;
+    }
+
+    /**
+     * @return a duplicate of this instance sharing its components until they are changed.
+     */
+    public Message copy() throws IOException {
+        return new CopyOnWriteMessage(this) ;
+    }
+
+    /**
+     * @return the header component, possibly shared with other messages.  It must not be modified.
+     */
+    public Header peekHeader() {
+        return header.value ;
+    }
+
+    /**
+     * @return the context component, possibly shared with other messages.  It must not be modified.
+     */
+    public Context peekContext() {
+        return context.value ;
+    }
+
+    /**
+     * @return the body component, possibly shared with other messages.  It must not be modified.
+     */
+    public Body peekBody() {
+        return body.value ;
+    }
+
+    /**
+     * @return the fault component, possibly shared with other messages.  It must not be modified.
+     */
+    public Fault peekFault() {
+        return fault.value ;
+    }
+
+    /**
+     * @return the attachment component, possibly shared with other messages.  It must not be modified.
+     */
+    public Attachment peekAttachment() {
+        return attachment.value ;
+    }
+
+    /**
+     * @return the properties component, possibly shared with other messages.  It must not be modified.
+     */
+    public Properties peekProperties() {
+        return properties.value ;
+    }
+
+    /**
+     * Get a view of the message for code which only reads it.
+     * <p/>
+     * The getters of the view return the components of a copy-on-write message
+     * through its peek methods, so reading the message through the view never
+     * copies a shared component.  Components obtained through the view must not be
+     * modified.  Other messages are returned unchanged.
+     * @param message The message.
+     * @return The message view.
+     */
+    public static Message forReading(final Message message) {
+        return (message instanceof CopyOnWriteMessage ? ((CopyOnWriteMessage)message).new ReadView() : message) ;
+    }
+
+    public String toString() {
+        return "message: [ type: " + type + " ]\n" + header.value + "\n" + context.value + "\n" +
+            body.value + "\n" + fault.value + "\n" + attachment.value + "\n" + properties.value ;
+    }
+
+    /**
+     * @return the header component owned by this message, copying it if shared.
+     */
+    private Header writeHeader() {
+        header = header.own() ;
+        return header.value ;
+    }
+
+    /**
+     * @return the context component owned by this message, copying it if shared.
+     */
+    private Context writeContext() {
+        context = context.own() ;
+        return context.value ;
+    }
+
+    /**
+     * @return the body component owned by this message, copying it if shared.
+     */
+    private Body writeBody() {
+        body = body.own() ;
+        return body.value ;
+    }
+
+    /**
+     * @return the fault component owned by this message, copying it if shared.
+     */
+    private Fault writeFault() {
+        fault = fault.own() ;
+        return fault.value ;
+    }
+
+    /**
+     * @return the attachment component owned by this message, copying it if shared.
+     */
+    private Attachment writeAttachment() {
+        attachment = attachment.own() ;
+        return attachment.value ;
+    }
+
+    /**
+     * @return the properties component owned by this message, copying it if shared.
+     */
+    private Properties writeProperties() {
+        properties = properties.own() ;
+        return properties.value ;
+    }
+
+    /**
+     * Header view, copying the shared header before it is changed.
+     */
+    private final class HeaderView implements Header, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Serialize the underlying component rather than the view.
+         */
+        private Object writeReplace() {
+            return header.value ;
+        }
+
+        public Call getCall() {
+            return writeHeader().getCall() ;
+        }
+
+        public void setCall(final Call call) {
+            writeHeader().setCall(call) ;
+        }
+
+        public String toString() {
+            return String.valueOf(header.value) ;
+        }
+    }
+
+    /**
+     * Context view, copying the shared context before it is changed.
+     */
+    private final class ContextView implements Context, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Serialize the underlying component rather than the view.
+         */
+        private Object writeReplace() {
+            return context.value ;
+        }
+
+        public Object setContext(final String key, final Object value) {
+            return writeContext().setContext(key, value) ;
+        }
+
+        public Object getContext(final String key) {
+            return context.value.getContext(key) ;
+        }
+
+        public Object removeContext(final String key) {
+            return writeContext().removeContext(key) ;
+        }
+
+        public Set<String> getContextKeys() {
+            return context.value.getContextKeys() ;
+        }
+
+        public void clearContext() {
+            writeContext().clearContext() ;
+        }
+
+        public String toString() {
+            return String.valueOf(context.value) ;
+        }
+    }
+
+    /**
+     * Body view, copying the shared body before it is changed.
+     */
+    private final class BodyView implements Body, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Serialize the underlying component rather than the view.
+         */
+        private Object writeReplace() {
+            return body.value ;
+        }
+
+        public void add(final String name, final Object value) {
+            writeBody().add(name, value) ;
+        }
+
+        public Object get(final String name) {
+            return body.value.get(name) ;
+        }
+
+        public void add(final Object value) {
+            writeBody().add(value) ;
+        }
+
+        public Object get() {
+            return body.value.get() ;
+        }
+
+        public Object remove(final String name) {
+            return writeBody().remove(name) ;
+        }
+
+        public String[] getNames() {
+            return body.value.getNames() ;
+        }
+
+        public void replace(final Body other) {
+            writeBody().replace(other) ;
+        }
+
+        public void merge(final Body other) {
+            writeBody().merge(other) ;
+        }
+
+        public String toString() {
+            return String.valueOf(body.value) ;
+        }
+    }
+
+    /**
+     * Fault view, copying the shared fault before it is changed.
+     */
+    private final class FaultView implements Fault, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Serialize the underlying component rather than the view.
+         */
+        private Object writeReplace() {
+            return fault.value ;
+        }
+
+        public URI getCode() {
+            return fault.value.getCode() ;
+        }
+
+        public void setCode(final URI code) {
+            writeFault().setCode(code) ;
+        }
+
+        public String getReason() {
+            return fault.value.getReason() ;
+        }
+
+        public void setReason(final String reason) {
+            writeFault().setReason(reason) ;
+        }
+
+        public Throwable getCause() {
+            return fault.value.getCause() ;
+        }
+
+        public void setCause(final Throwable cause) {
+            writeFault().setCause(cause) ;
+        }
+
+        public String toString() {
+            return String.valueOf(fault.value) ;
+        }
+    }
+
+    /**
+     * Attachment view, copying the shared attachment before it is changed.
+     */
+    private final class AttachmentView implements Attachment, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Serialize the underlying component rather than the view.
+         */
+        private Object writeReplace() {
+            return attachment.value ;
+        }
+
+        public Object get(final String name) {
+            return attachment.value.get(name) ;
+        }
+
+        public Object put(final String name, final Object value) {
+            return writeAttachment().put(name, value) ;
+        }
+
+        public Object remove(final String name) {
+            return writeAttachment().remove(name) ;
+        }
+
+        public String[] getNames() {
+            return attachment.value.getNames() ;
+        }
+
+        public Object itemAt(final int index) {
+            return attachment.value.itemAt(index) ;
+        }
+
+        public Object removeItemAt(final int index) {
+            return writeAttachment().removeItemAt(index) ;
+        }
+
+        public Object replaceItemAt(final int index, final Object value) {
+            return writeAttachment().replaceItemAt(index, value) ;
+        }
+
+        public void addItem(final Object value) {
+            writeAttachment().addItem(value) ;
+        }
+
+        public void addItemAt(final int index, final Object value) {
+            writeAttachment().addItemAt(index, value) ;
+        }
+
+        public int getNamedCount() {
+            return attachment.value.getNamedCount() ;
+        }
+
+        public int getUnnamedCount() {
+            return attachment.value.getUnnamedCount() ;
+        }
+
+        public String toString() {
+            return String.valueOf(attachment.value) ;
+        }
+    }
+
+    /**
+     * Properties view, copying the shared properties before they are changed.
+     */
+    private final class PropertiesView implements Properties, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Serialize the underlying component rather than the view.
+         */
+        private Object writeReplace() {
+            return properties.value ;
+        }
+
+        public Object getProperty(final String name) {
+            return properties.value.getProperty(name) ;
+        }
+
+        public Object getProperty(final String name, final Object defaultValue) {
+            return properties.value.getProperty(name, defaultValue) ;
+        }
+
+        public Object setProperty(final String name, final Object value) {
+            return writeProperties().setProperty(name, value) ;
+        }
+
+        public Object remove(final String name) {
+            return writeProperties().remove(name) ;
+        }
+
+        public int size() {
+            return properties.value.size() ;
+        }
+
+        public String[] getNames() {
+            return properties.value.getNames() ;
+        }
+
+        public String toString() {
+            return String.valueOf(properties.value) ;
+        }
+    }
+
+    /**
+     * Read-only view of the message, returning the components without copying them.
+     */
+    private final class ReadView implements Message {
+        public Header getHeader() {
+            return peekHeader() ;
+        }
+
+        public Context getContext() {
+            return peekContext() ;
+        }
+
+        public Body getBody() {
+            return peekBody() ;
+        }
+
+        public Fault getFault() {
+            return peekFault() ;
+        }
+
+        public Attachment getAttachment() {
+            return peekAttachment() ;
+        }
+
+        public URI getType() {
+            return type ;
+        }
+
+        public Properties getProperties() {
+            return peekProperties() ;
+        }
+
+        public Message copy() throws IOException {
+            return CopyOnWriteMessage.this.copy() ;
+        }
+
+        public String toString() {
+            return CopyOnWriteMessage.this.toString() ;
+        }
+    }
+
+    /**
+     * A message component and the number of messages sharing it.
+     */
+    private static final class Part<T> implements Serializable {
+
+        private static final long serialVersionUID = -2712094937581940411L;
+
+        /**
+         * The component.
+         */
+        private final T value ;
+        /**
+         * The number of messages sharing the component.
+         */
+        private transient AtomicInteger owners = new AtomicInteger(1) ;
+
+        Part(final T value) {
+            this.value = value ;
+        }
+
+        /**
+         * Register an additional message sharing the component.
+         * @return this part.
+         */
+        Part<T> share() {
+            owners.incrementAndGet() ;
+            return this ;
+        }
+
+        /**
+         * Obtain a part owned exclusively by the requesting message.  Messages sharing
+         * the part may be owned by different threads, so the share is released atomically.
+         * @return this part if it is not shared, otherwise a part holding a deep copy of the component.
+         */
+        Part<T> own() {
+            if (owners.get() == 1) {
+                return this ;
+            }
+            // copy before releasing the share, the last remaining owner may change the component
+            final Part<T> copy = new Part<T>(deepCopy(value)) ;
+            while(true) {
+                final int current = owners.get() ;
+                if (current == 1) {
+                    // the other owners have released the component meanwhile
+                    return this ;
+                }
+                if (owners.compareAndSet(current, current - 1)) {
+                    return copy ;
+                }
+            }
+        }
+
+        private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+            in.defaultReadObject() ;
+            owners = new AtomicInteger(1) ;
+        }
+    }
+
+    /**
+     * Deep copy a component by serializing and deserializing it.
+     * @param value The component.
+     * @return The copy.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T deepCopy(final T value) {
+        try {
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream() ;
+            final ObjectOutputStream oos = new ObjectOutputStream(baos) ;
+            oos.writeObject(value) ;
+            oos.close() ;
+            final ObjectInputStream ois = new ContextObjectInputStream(new ByteArrayInputStream(baos.toByteArray())) ;
+            try {
+                return (T)ois.readObject() ;
+            } finally {
+                ois.close() ;
+            }
+        } catch (final IOException ioe) {
+            throw new IllegalStateException("Failed to copy message component " + value.getClass().getName(), ioe) ;
+        } catch (final ClassNotFoundException cnfe) {
+            throw new IllegalStateException("Failed to copy message component " + value.getClass().getName(), cnfe) ;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package org.jboss.soa.esb.message;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.net.URI;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.jboss.soa.esb.message.format.MessageFactory;
+
+/**
+ * Bounded pool of reusable messages.
+ * <p/>
+ * Messages are acquired by the gateway and released by the action pipeline once
+ * the processors have been notified of the outcome, see
+ * {@link org.jboss.soa.esb.listeners.message.CompiledActionPipeline#setMessagePool(MessagePool)}.
+ * A message returned by the pipeline is released by the caller once it has been
+ * used, see {@link org.jboss.soa.esb.listeners.message.CompiledActionPipeline#release(Message)}.
+ * A released message is cleared and kept for reuse, so steady state processing
+ * does not allocate message components.  Messages released while the pool is
+ * full are discarded.
+ * <p/>
+ * Leak detection is intended for test environments and is enabled through the
+ * {@link #LEAK_DETECTION_PROPERTY} system property or
+ * {@link #setLeakDetection(boolean)}.  Each acquisition then records its call
+ * site and a message which becomes unreachable without being released is
+ * reported, together with the call site, the next time a message is acquired or
+ * {@link #detectLeaks()} is called.
+ */
+public class MessagePool {
+
+    private static final Logger logger = Logger.getLogger(MessagePool.class) ;
+
+    /**
+     * The system property enabling leak detection.
+     */
+    public static final String LEAK_DETECTION_PROPERTY = "org.jboss.soa.esb.message.pool.leakDetection" ;
+
+    /**
+     * The message type created by the pool.
+     */
+    private final URI type ;
+    /**
+     * The maximum number of idle messages retained.
+     */
+    private final int capacity ;
+    /**
+     * The idle messages.
+     */
+    private final Queue<PooledMessage> idle = new ConcurrentLinkedQueue<PooledMessage>() ;
+    /**
+     * The number of idle messages.
+     */
+    private final AtomicInteger idleCount = new AtomicInteger() ;
+    /**
+     * The number of messages created by the pool.
+     */
+    private final AtomicLong createdCount = new AtomicLong() ;
+    /**
+     * The number of acquisitions.
+     */
+    private final AtomicLong acquiredCount = new AtomicLong() ;
+    /**
+     * The number of acquired messages not yet released.
+     */
+    private final AtomicInteger outstandingCount = new AtomicInteger() ;
+    /**
+     * The number of leaked messages detected.
+     */
+    private final AtomicLong leakCount = new AtomicLong() ;
+    /**
+     * Is leak detection enabled?
+     */
+    private volatile boolean leakDetection = Boolean.getBoolean(LEAK_DETECTION_PROPERTY) ;
+    /**
+     * The trackers of the messages acquired while leak detection was enabled.
+     */
+    private final Map<LeakTracker, Boolean> trackers = new ConcurrentHashMap<LeakTracker, Boolean>() ;
+    /**
+     * The queue receiving the trackers of unreachable messages.
+     */
+    private final ReferenceQueue<PooledMessage> unreachable = new ReferenceQueue<PooledMessage>() ;
+
+    /**
+     * Create a message pool.
+     * @param type The message type, or null for the default type.
+     * @param capacity The maximum number of idle messages retained.
+     */
+    public MessagePool(final URI type, final int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity) ;
+        }
+        this.type = type ;
+        this.capacity = capacity ;
+    }
+
+    /**
+     * Acquire a cleared message.
+     * @return The message.
+     */
+    public PooledMessage acquire() {
+        PooledMessage message = idle.poll() ;
+        if (message != null) {
+            idleCount.decrementAndGet() ;
+        } else {
+            final MessageFactory factory = MessageFactory.getInstance() ;
+            message = new PooledMessage(this, (type == null ? factory.getMessage() : factory.getMessage(type))) ;
+            createdCount.incrementAndGet() ;
+        }
+        message.acquire() ;
+        acquiredCount.incrementAndGet() ;
+        outstandingCount.incrementAndGet() ;
+        if (leakDetection) {
+            detectLeaks() ;
+            message.tracker = new LeakTracker(message, unreachable) ;
+            trackers.put(message.tracker, Boolean.TRUE) ;
+        }
+        return message ;
+    }
+
+    /**
+     * Release a message, clearing it and retaining it for reuse.
+     * @param message The message.
+     * @return true if the message was acquired from this pool, false otherwise.
+     * @throws IllegalStateException if the message has already been released.
+     */
+    public boolean release(final Message message) {
+        if (!owns(message)) {
+            return false ;
+        }
+        final PooledMessage pooledMessage = (PooledMessage)message ;
+        if (!pooledMessage.release()) {
+            throw new IllegalStateException("Message has already been released to the pool") ;
+        }
+        outstandingCount.decrementAndGet() ;
+        final LeakTracker tracker = pooledMessage.tracker ;
+        if (tracker != null) {
+            pooledMessage.tracker = null ;
+            trackers.remove(tracker) ;
+            tracker.clear() ;
+        }
+        try {
+            pooledMessage.reset() ;
+        } catch (final RuntimeException re) {
+            logger.warn("Failed to reset pooled message, discarding", re) ;
+            return true ;
+        }
+        if (idleCount.incrementAndGet() <= capacity) {
+            idle.offer(pooledMessage) ;
+        } else {
+            idleCount.decrementAndGet() ;
+        }
+        return true ;
+    }
+
+    /**
+     * Was the message acquired from this pool?
+     * @param message The message.
+     * @return true if the message belongs to this pool, false otherwise.
+     */
+    public boolean owns(final Message message) {
+        return ((message instanceof PooledMessage) && (((PooledMessage)message).getPool() == this)) ;
+    }
+
+    /**
+     * Report the messages which have become unreachable without being released.
+     * @return The number of leaks detected by this call.
+     */
+    public int detectLeaks() {
+        int leaks = 0 ;
+        LeakTracker tracker ;
+        while((tracker = (LeakTracker)unreachable.poll()) != null) {
+            if (trackers.remove(tracker) != null) {
+                leaks++ ;
+                leakCount.incrementAndGet() ;
+                outstandingCount.decrementAndGet() ;
+                logger.error("Pooled message was not released before being discarded, acquired at", tracker.acquisition) ;
+            }
+        }
+        return leaks ;
+    }
+
+    /**
+     * Is leak detection enabled?
+     * @return true if enabled, false otherwise.
+     */
+    public boolean isLeakDetection() {
+        return leakDetection ;
+    }
+
+    /**
+     * Enable or disable leak detection for subsequent acquisitions.
+     * @param leakDetection true to enable leak detection, false to disable it.
+     */
+    public void setLeakDetection(final boolean leakDetection) {
+        this.leakDetection = leakDetection ;
+    }
+
+    /**
+     * Get the number of messages created by the pool.
+     * @return The number of messages created.
+     */
+    public long getCreatedCount() {
+        return createdCount.get() ;
+    }
+
+    /**
+     * Get the number of acquisitions.
+     * @return The number of acquisitions.
+     */
+    public long getAcquiredCount() {
+        return acquiredCount.get() ;
+    }
+
+    /**
+     * Get the number of idle messages held by the pool.
+     * @return The number of idle messages.
+     */
+    public int getIdleCount() {
+        return Math.min(idleCount.get(), capacity) ;
+    }
+
+    /**
+     * Get the number of acquired messages not yet released.
+     * @return The number of outstanding messages.
+     */
+    public int getOutstandingCount() {
+        return outstandingCount.get() ;
+    }
+
+    /**
+     * Get the number of leaked messages detected.
+     * @return The number of leaks.
+     */
+    public long getLeakCount() {
+        return leakCount.get() ;
+    }
+
+    /**
+     * Tracks an acquired message and the call site which acquired it.
+     */
+    static final class LeakTracker extends WeakReference<PooledMessage> {
+        /**
+         * The acquisition call site.
+         */
+        private final Throwable acquisition = new Throwable("Message acquisition") ;
+
+        LeakTracker(final PooledMessage message, final ReferenceQueue<PooledMessage> queue) {
+            super(message, queue) ;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package org.jboss.soa.esb.message;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+import org.jboss.soa.esb.addressing.Call;
+import org.jboss.soa.esb.message.body.content.BufferPayload;
+
+/**
+ * Message acquired from a {@link MessagePool}.
+ * <p/>
+ * The message delegates to components created once by the message factory.
+ * When the message is released its components are cleared, releasing any
+ * {@link BufferPayload} held in the body or attachments, and the message is
+ * reused for a later acquisition.  The message must not be used once it has been
+ * released, {@link #copy()} returns an unpooled message which may be retained.
+ */
+public final class PooledMessage implements Message {
+
+    private static final Logger logger = Logger.getLogger(PooledMessage.class) ;
+
+    /**
+     * The pool owning the message.
+     */
+    private final MessagePool pool ;
+    /**
+     * The message providing the reusable components.
+     */
+    private final Message delegate ;
+    /**
+     * Has the message been acquired and not yet released?
+     */
+    private final AtomicBoolean inUse = new AtomicBoolean() ;
+    /**
+     * The leak tracker of the current acquisition, if leak detection is enabled.
+     */
+    MessagePool.LeakTracker tracker ;
+
+    PooledMessage(final MessagePool pool, final Message delegate) {
+        this.pool = pool ;
+        this.delegate = delegate ;
+    }
+
+    public Header getHeader() {
+        return delegate.getHeader() ;
+    }
+
+    public Context getContext() {
+        return delegate.getContext() ;
+    }
+
+    public Body getBody() {
+        return delegate.getBody() ;
+    }
+
+    public Fault getFault() {
+        return delegate.getFault() ;
+    }
+
+    public Attachment getAttachment() {
+        return delegate.getAttachment() ;
+    }
+
+    public URI getType() {
+        return delegate.getType() ;
+    }
+
+    public Properties getProperties() {
+        return delegate.getProperties() ;
+    }
+
+    /**
+     * @return an unpooled duplicate of this message.
+     */
+    public Message copy() throws IOException {
+        return delegate.copy() ;
+    }
+
+    /**
+     * Get the pool owning the message.
+     * @return The pool.
+     */
+    public MessagePool getPool() {
+        return pool ;
+    }
+
+    /**
+     * Is the message currently acquired?
+     * @return true if acquired, false if it is held by the pool.
+     */
+    public boolean isInUse() {
+        return inUse.get() ;
+    }
+
+    public String toString() {
+        return delegate.toString() ;
+    }
+
+    /**
+     * Mark the message as acquired.
+     */
+    void acquire() {
+        inUse.set(true) ;
+    }
+
+    /**
+     * Mark the message as released.
+     * @return true if the message was acquired, false if it had already been released.
+     */
+    boolean release() {
+        return inUse.compareAndSet(true, false) ;
+    }
+
+    /**
+     * Clear the message components so the message can be reused.
+     */
+    void reset() {
+        final Call call = delegate.getHeader().getCall() ;
+        if (call != null) {
+            call.setTo(null) ;
+            call.setFrom(null) ;
+            call.setReplyTo(null) ;
+            call.setFaultTo(null) ;
+            call.setRelatesTo(null) ;
+            call.setAction(null) ;
+            call.setMessageID(null) ;
+        }
+
+        delegate.getContext().clearContext() ;
+
+        final Body body = delegate.getBody() ;
+        for(String name: body.getNames()) {
+            releaseValue(body.remove(name)) ;
+        }
+
+        final Fault fault = delegate.getFault() ;
+        fault.setCode(null) ;
+        fault.setReason(null) ;
+        fault.setCause(null) ;
+
+        final Attachment attachment = delegate.getAttachment() ;
+        for(String name: attachment.getNames()) {
+            releaseValue(attachment.remove(name)) ;
+        }
+        for(int count = attachment.getUnnamedCount() - 1 ; count >= 0 ; count--) {
+            releaseValue(attachment.removeItemAt(count)) ;
+        }
+
+        final Properties properties = delegate.getProperties() ;
+        for(String name: properties.getNames()) {
+            properties.remove(name) ;
+        }
+    }
+
+    /**
+     * Release a buffer payload removed from the message.
+     * @param value The value removed from the message.
+     */
+    private static void releaseValue(final Object value) {
+        if (value instanceof BufferPayload) {
+            try {
+                ((BufferPayload)value).release() ;
+            } catch (final IllegalStateException ise) {
+                logger.warn("Buffer payload released before its message", ise) ;
+            }
+        }
+    }
+}
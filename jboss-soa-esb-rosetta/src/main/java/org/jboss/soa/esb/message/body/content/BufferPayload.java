@@ -0,0 +1,322 @@
+package org.jboss.soa.esb.message.body.content;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Message payload held in a direct or memory mapped byte buffer.
+ * <p/>
+ * Large payloads can be placed in the body at {@link #BUFFER_LOCATION}, or any
+ * other location, without being copied onto the heap.  Actions read the payload
+ * through {@link #asBuffer()} or {@link #asInputStream()}, each of which returns
+ * an independent read-only view over the same memory.
+ * <p/>
+ * The payload is reference counted.  It is created with a count of one, each
+ * additional holder calls {@link #retain()} and every holder calls
+ * {@link #release()} when finished.  When the count reaches zero a pooled buffer
+ * is returned to its pool and the payload can no longer be read.  A mapped file
+ * is unmapped by the garbage collector once the payload is unreachable.
+ * <p/>
+ * Serializing the payload copies its contents, the deserialized instance is held
+ * on the heap and is not pooled.
+ */
+public final class BufferPayload implements Serializable {
+
+    private static final long serialVersionUID = -4127340867745312097L;
+
+    /**
+     * The default body location of a buffer payload.
+     */
+    public static final String BUFFER_LOCATION = "org.jboss.soa.esb.message.body.content.buffer" ;
+
+    /**
+     * The size of the chunks used when copying or decoding the payload.
+     */
+    private static final int CHUNK_SIZE = 8192 ;
+
+    /**
+     * The buffer, positioned at the start of the payload and limited to its end.
+     */
+    private transient ByteBuffer buffer ;
+    /**
+     * The buffer acquired from the pool, returned to the pool on release.  The payload
+     * buffer is a slice of it and does not have its capacity.
+     */
+    private transient ByteBuffer pooledBuffer ;
+    /**
+     * The pool owning the pooled buffer, or null if the buffer is not pooled.
+     */
+    private transient DirectBufferPool pool ;
+    /**
+     * The number of holders of the payload.
+     */
+    private transient AtomicInteger refCount = new AtomicInteger(1) ;
+
+    /**
+     * Create a payload taking ownership of the buffer.  The payload consists of the
+     * bytes between the position and limit of the buffer, which must not be modified
+     * by the caller once the payload has been created.
+     * @param buffer The buffer holding the payload.
+     * @param pool The pool the buffer was acquired from and is returned to on release, or null if not pooled.
+     */
+    public BufferPayload(final ByteBuffer buffer, final DirectBufferPool pool) {
+        if (buffer == null) {
+            throw new IllegalArgumentException("Null buffer") ;
+        }
+        this.buffer = buffer.slice() ;
+        this.pooledBuffer = (pool == null ? null : buffer) ;
+        this.pool = pool ;
+    }
+
+    /**
+     * Create a payload from the stream, using a buffer from the shared pool.
+     * @param in The stream providing the payload.
+     * @param size The number of bytes to read from the stream.
+     * @return The payload.
+     * @throws IOException for errors reading the stream or if it ends prematurely.
+     */
+    public static BufferPayload read(final InputStream in, final int size) throws IOException {
+        final DirectBufferPool pool = DirectBufferPool.getSharedPool() ;
+        final ByteBuffer buffer = pool.acquire(size) ;
+        try {
+            final byte[] chunk = new byte[Math.min(size, CHUNK_SIZE)] ;
+            while(buffer.hasRemaining()) {
+                final int count = in.read(chunk, 0, Math.min(chunk.length, buffer.remaining())) ;
+                if (count < 0) {
+                    throw new IOException("Stream ended after " + buffer.position() + " of " + size + " bytes") ;
+                }
+                buffer.put(chunk, 0, count) ;
+            }
+        } catch (final IOException ioe) {
+            pool.release(buffer) ;
+            throw ioe ;
+        }
+        buffer.flip() ;
+        return new BufferPayload(buffer, pool) ;
+    }
+
+    /**
+     * Create a payload mapping the contents of the file.
+     * @param file The file.
+     * @return The payload.
+     * @throws IOException for errors mapping the file.
+     */
+    public static BufferPayload map(final File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r") ;
+        try {
+            final FileChannel channel = raf.getChannel() ;
+            return new BufferPayload(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), null) ;
+        } finally {
+            raf.close() ;
+        }
+    }
+
+    /**
+     * Get the size of the payload.
+     * @return The number of bytes in the payload.
+     */
+    public int size() {
+        return buffer.remaining() ;
+    }
+
+    /**
+     * Is the payload held off the heap?
+     * @return true if the payload is in a direct or mapped buffer, false otherwise.
+     */
+    public boolean isDirect() {
+        return buffer.isDirect() ;
+    }
+
+    /**
+     * Get a read-only view of the payload.  The view has its own position and limit
+     * and is only valid until the payload is released.
+     * @return The view.
+     * @throws IllegalStateException if the payload has been released.
+     */
+    public ByteBuffer asBuffer() {
+        checkAvailable() ;
+        return buffer.asReadOnlyBuffer() ;
+    }
+
+    /**
+     * Get a stream reading the payload.  The stream is only valid until the payload
+     * is released.
+     * @return The stream.
+     * @throws IllegalStateException if the payload has been released.
+     */
+    public InputStream asInputStream() {
+        return new BufferInputStream(asBuffer()) ;
+    }
+
+    /**
+     * Decode the payload, appending the characters to the builder.
+     * @param builder The builder.
+     * @param charset The character set of the payload.
+     * @return The builder.
+     * @throws CharacterCodingException if the payload cannot be decoded.
+     * @throws IllegalStateException if the payload has been released.
+     */
+    public StringBuilder appendTo(final StringBuilder builder, final Charset charset) throws CharacterCodingException {
+        final ByteBuffer in = asBuffer() ;
+        final CharsetDecoder decoder = charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE) ;
+        final CharBuffer out = CharBuffer.allocate(Math.min(Math.max(in.remaining(), 1), CHUNK_SIZE)) ;
+        boolean endOfInput = false ;
+        while(true) {
+            final CoderResult result = (endOfInput ? decoder.flush(out) : decoder.decode(in, out, true)) ;
+            if (result.isError()) {
+                result.throwException() ;
+            }
+            out.flip() ;
+            builder.append(out) ;
+            out.clear() ;
+            if (result.isUnderflow()) {
+                if (endOfInput) {
+                    return builder ;
+                }
+                endOfInput = true ;
+            }
+        }
+    }
+
+    /**
+     * Register an additional holder of the payload.
+     * @return this payload.
+     * @throws IllegalStateException if the payload has already been released.
+     */
+    public BufferPayload retain() {
+        while(true) {
+            final int current = refCount.get() ;
+            if (current <= 0) {
+                throw new IllegalStateException("Buffer payload has been released") ;
+            }
+            if (refCount.compareAndSet(current, current + 1)) {
+                return this ;
+            }
+        }
+    }
+
+    /**
+     * Release a holder of the payload, returning the buffer to its pool when the
+     * last holder has released it.
+     * @return true if the payload has been freed, false if it is still held.
+     * @throws IllegalStateException if the payload has already been released.
+     */
+    public boolean release() {
+        final int remaining = refCount.decrementAndGet() ;
+        if (remaining > 0) {
+            return false ;
+        } else if (remaining < 0) {
+            refCount.incrementAndGet() ;
+            throw new IllegalStateException("Buffer payload has been released") ;
+        }
+        if (pool != null) {
+            pool.release(pooledBuffer) ;
+            pooledBuffer = null ;
+        }
+        return true ;
+    }
+
+    /**
+     * Get the number of holders of the payload.
+     * @return The reference count, zero once released.
+     */
+    public int getRefCount() {
+        return refCount.get() ;
+    }
+
+    public String toString() {
+        return "BufferPayload[size=" + buffer.remaining() + ", direct=" + buffer.isDirect() + ", refCount=" + refCount.get() + "]" ;
+    }
+
+    private void checkAvailable() {
+        if (refCount.get() <= 0) {
+            throw new IllegalStateException("Buffer payload has been released") ;
+        }
+    }
+
+    private void writeObject(final ObjectOutputStream out) throws IOException {
+        final ByteBuffer view = asBuffer() ;
+        out.defaultWriteObject() ;
+        out.writeInt(view.remaining()) ;
+        final byte[] chunk = new byte[Math.min(view.remaining(), CHUNK_SIZE)] ;
+        while(view.hasRemaining()) {
+            final int count = Math.min(chunk.length, view.remaining()) ;
+            view.get(chunk, 0, count) ;
+            out.write(chunk, 0, count) ;
+        }
+    }
+
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject() ;
+        final byte[] contents = new byte[in.readInt()] ;
+        in.readFully(contents) ;
+        buffer = ByteBuffer.wrap(contents) ;
+        refCount = new AtomicInteger(1) ;
+    }
+
+    /**
+     * Input stream reading a buffer view.
+     */
+    private static final class BufferInputStream extends InputStream {
+        private final ByteBuffer view ;
+
+        BufferInputStream(final ByteBuffer view) {
+            this.view = view ;
+            view.mark() ;
+        }
+
+        public int read() {
+            return (view.hasRemaining() ? view.get() & 0xff : -1) ;
+        }
+
+        public int read(final byte[] bytes, final int offset, final int length) {
+            if (length == 0) {
+                return 0 ;
+            }
+            if (!view.hasRemaining()) {
+                return -1 ;
+            }
+            final int count = Math.min(length, view.remaining()) ;
+            view.get(bytes, offset, count) ;
+            return count ;
+        }
+
+        public long skip(final long count) {
+            final int skipped = (int)Math.min(Math.max(count, 0), view.remaining()) ;
+            view.position(view.position() + skipped) ;
+            return skipped ;
+        }
+
+        public int available() {
+            return view.remaining() ;
+        }
+
+        public boolean markSupported() {
+            return true ;
+        }
+
+        public synchronized void mark(final int readLimit) {
+            view.mark() ;
+        }
+
+        public synchronized void reset() {
+            view.reset() ;
+        }
+    }
+}
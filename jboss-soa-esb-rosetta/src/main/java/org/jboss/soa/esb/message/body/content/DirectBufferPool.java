@@ -0,0 +1,128 @@
+package org.jboss.soa.esb.message.body.content;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct byte buffers used to hold large payloads off the heap.
+ * <p/>
+ * Buffers are pooled in power of two size classes up to the maximum buffer
+ * size, larger requests are allocated directly and discarded on release.  The
+ * pool never retains more than the configured number of bytes.
+ */
+public class DirectBufferPool {
+
+    /**
+     * The smallest size class, 4KB.
+     */
+    private static final int MIN_SHIFT = 12 ;
+
+    /**
+     * The shared pool, retaining up to 64MB of buffers of up to 16MB each.
+     */
+    private static final DirectBufferPool sharedPool = new DirectBufferPool(16 * 1024 * 1024, 64L * 1024 * 1024) ;
+
+    /**
+     * The free buffers of each size class.
+     */
+    private final List<Queue<ByteBuffer>> freeBuffers ;
+    /**
+     * The largest pooled buffer size.
+     */
+    private final int maxBufferSize ;
+    /**
+     * The maximum number of bytes retained by the pool.
+     */
+    private final long maxRetained ;
+    /**
+     * The number of bytes currently retained by the pool.
+     */
+    private final AtomicLong retained = new AtomicLong() ;
+
+    /**
+     * Create a pool.
+     * @param maxBufferSize The largest pooled buffer size, rounded up to a power of two.
+     * @param maxRetained The maximum number of bytes retained by the pool.
+     */
+    public DirectBufferPool(final int maxBufferSize, final long maxRetained) {
+        int classes = 1 ;
+        while ((1 << (MIN_SHIFT + classes - 1)) < maxBufferSize) {
+            classes++ ;
+        }
+        this.freeBuffers = new ArrayList<Queue<ByteBuffer>>(classes) ;
+        for(int count = 0 ; count < classes ; count++) {
+            freeBuffers.add(new ConcurrentLinkedQueue<ByteBuffer>()) ;
+        }
+        this.maxBufferSize = 1 << (MIN_SHIFT + classes - 1) ;
+        this.maxRetained = maxRetained ;
+    }
+
+    /**
+     * Get the shared pool.
+     * @return The shared pool.
+     */
+    public static DirectBufferPool getSharedPool() {
+        return sharedPool ;
+    }
+
+    /**
+     * Acquire a direct buffer with at least the specified capacity.
+     * @param size The required capacity.
+     * @return A cleared buffer whose limit is the requested size.
+     */
+    public ByteBuffer acquire(final int size) {
+        if (size > maxBufferSize) {
+            return ByteBuffer.allocateDirect(size) ;
+        }
+        final int sizeClass = sizeClass(size) ;
+        ByteBuffer buffer = freeBuffers.get(sizeClass).poll() ;
+        if (buffer != null) {
+            retained.addAndGet(-buffer.capacity()) ;
+            buffer.clear() ;
+        } else {
+            buffer = ByteBuffer.allocateDirect(1 << (MIN_SHIFT + sizeClass)) ;
+        }
+        buffer.limit(size) ;
+        return buffer ;
+    }
+
+    /**
+     * Return a buffer to the pool.  The buffer must no longer be used by the caller.
+     * @param buffer The buffer acquired from this pool.
+     */
+    public void release(final ByteBuffer buffer) {
+        final int capacity = buffer.capacity() ;
+        if (!buffer.isDirect() || (capacity > maxBufferSize) || (Integer.bitCount(capacity) != 1) || (capacity < (1 << MIN_SHIFT))) {
+            return ;
+        }
+        if (retained.addAndGet(capacity) > maxRetained) {
+            retained.addAndGet(-capacity) ;
+            return ;
+        }
+        freeBuffers.get(sizeClass(capacity)).offer(buffer) ;
+    }
+
+    /**
+     * Get the number of bytes currently retained by the pool.
+     * @return The retained bytes.
+     */
+    public long getRetainedBytes() {
+        return retained.get() ;
+    }
+
+    /**
+     * Get the size class for the buffer size.
+     * @param size The buffer size.
+     * @return The size class.
+     */
+    private static int sizeClass(final int size) {
+        if (size <= (1 << MIN_SHIFT)) {
+            return 0 ;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT ;
+    }
+}
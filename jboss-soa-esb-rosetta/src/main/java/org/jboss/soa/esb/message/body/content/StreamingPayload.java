@@ -0,0 +1,448 @@
+package org.jboss.soa.esb.message.body.content;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Message payload streamed through a bounded buffer.
+ * <p/>
+ * The gateway places the payload in the body at {@link #STREAM_LOCATION}, or any
+ * other location, and fills it through {@link #getOutputStream()} or
+ * {@link #fill(InputStream)} while the actions consume it incrementally through
+ * the channel methods or {@link #asInputStream()}.  The producer blocks while the
+ * buffer is full and the consumer blocks while it is empty, so a payload of any
+ * size passes through the service using no more memory than the buffer size.
+ * <p/>
+ * An action which needs to look ahead, for example to detect the content type,
+ * can {@link #mark(int)} the current position and {@link #reset()} to replay the
+ * bytes read since.  The marked bytes are retained in the buffer, the mark is
+ * discarded once more than the read limit has been read past it.
+ * <p/>
+ * A streaming payload can be consumed once and is not serializable, the message
+ * must not be copied or sent through a transport while the payload is in use.
+ */
+public final class StreamingPayload implements ReadableByteChannel {
+
+    /**
+     * The default body location of a streaming payload.
+     */
+    public static final String STREAM_LOCATION = "org.jboss.soa.esb.message.body.content.stream" ;
+
+    /**
+     * The default buffer size, 64KB.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024 ;
+
+    /**
+     * The buffer, holding the marked and unread bytes.
+     */
+    private final byte[] buffer ;
+    /**
+     * The lock protecting the buffer state.
+     */
+    private final ReentrantLock lock = new ReentrantLock() ;
+    /**
+     * Signalled when bytes have been written or the producer completes.
+     */
+    private final Condition notEmpty = lock.newCondition() ;
+    /**
+     * Signalled when buffer space has been released or the consumer closes.
+     */
+    private final Condition notFull = lock.newCondition() ;
+    /**
+     * The total number of bytes written.
+     */
+    private long writePosition ;
+    /**
+     * The total number of bytes read, less any replayed bytes.
+     */
+    private long readPosition ;
+    /**
+     * The marked read position, or -1 if there is no mark.
+     */
+    private long markPosition = -1 ;
+    /**
+     * The number of bytes which can be read past the mark before it is discarded.
+     */
+    private int markLimit ;
+    /**
+     * Has the producer written all of the payload?
+     */
+    private boolean complete ;
+    /**
+     * The failure reported by the producer.
+     */
+    private IOException failure ;
+    /**
+     * Has the consumer closed the channel?
+     */
+    private boolean closed ;
+
+    /**
+     * Create a streaming payload with the default buffer size.
+     */
+    public StreamingPayload() {
+        this(DEFAULT_BUFFER_SIZE) ;
+    }
+
+    /**
+     * Create a streaming payload.
+     * @param bufferSize The buffer size, bounding the memory used by the payload.
+     */
+    public StreamingPayload(final int bufferSize) {
+        if (bufferSize < 2) {
+            throw new IllegalArgumentException("Invalid buffer size " + bufferSize) ;
+        }
+        buffer = new byte[bufferSize] ;
+    }
+
+    /**
+     * Get the buffer size.
+     * @return The buffer size.
+     */
+    public int getBufferSize() {
+        return buffer.length ;
+    }
+
+    /**
+     * Write bytes to the payload, blocking while the buffer is full.
+     * @param bytes The bytes.
+     * @param offset The offset of the first byte.
+     * @param length The number of bytes to write.
+     * @throws ClosedChannelException if the consumer has closed the payload.
+     * @throws InterruptedIOException if interrupted while waiting for buffer space.
+     * @throws IOException if the payload has already been completed.
+     */
+    public void write(final byte[] bytes, final int offset, final int length) throws IOException {
+        int current = offset ;
+        final int end = offset + length ;
+        lock.lock() ;
+        try {
+            while(current < end) {
+                if (complete || (failure != null)) {
+                    throw new IOException("Streaming payload has been completed") ;
+                }
+                if (closed) {
+                    throw new ClosedChannelException() ;
+                }
+                final int space = buffer.length - (int)(writePosition - retainedPosition()) ;
+                if (space == 0) {
+                    await(notFull) ;
+                    continue ;
+                }
+                final int count = Math.min(space, end - current) ;
+                final int index = (int)(writePosition % buffer.length) ;
+                final int first = Math.min(count, buffer.length - index) ;
+                System.arraycopy(bytes, current, buffer, index, first) ;
+                System.arraycopy(bytes, current + first, buffer, 0, count - first) ;
+                writePosition += count ;
+                current += count ;
+                notEmpty.signalAll() ;
+            }
+        } finally {
+            lock.unlock() ;
+        }
+    }
+
+    /**
+     * Signal that the whole payload has been written.
+     */
+    public void complete() {
+        lock.lock() ;
+        try {
+            complete = true ;
+            notEmpty.signalAll() ;
+        } finally {
+            lock.unlock() ;
+        }
+    }
+
+    /**
+     * Abort the payload, the consumer receives the failure once it has read the
+     * bytes already written.
+     * @param cause The failure.
+     */
+    public void abort(final IOException cause) {
+        lock.lock() ;
+        try {
+            if (!complete && (failure == null)) {
+                failure = cause ;
+                notEmpty.signalAll() ;
+            }
+        } finally {
+            lock.unlock() ;
+        }
+    }
+
+    /**
+     * Fill the payload from the stream until it is exhausted, completing the payload
+     * on success and aborting it on failure.
+     * @param in The stream providing the payload.
+     * @throws IOException for errors reading the stream or writing the payload.
+     */
+    public void fill(final InputStream in) throws IOException {
+        final byte[] chunk = new byte[Math.min(buffer.length, 8192)] ;
+        try {
+            while(true) {
+                final int count = in.read(chunk) ;
+                if (count < 0) {
+                    break ;
+                }
+                write(chunk, 0, count) ;
+            }
+        } catch (final IOException ioe) {
+            abort(ioe) ;
+            throw ioe ;
+        }
+        complete() ;
+    }
+
+    /**
+     * Get a stream writing to the payload, closing the stream completes the payload.
+     * @return The stream.
+     */
+    public OutputStream getOutputStream() {
+        return new OutputStream() {
+            public void write(final int value) throws IOException {
+                StreamingPayload.this.write(new byte[] {(byte)value}, 0, 1) ;
+            }
+
+            public void write(final byte[] bytes, final int offset, final int length) throws IOException {
+                StreamingPayload.this.write(bytes, offset, length) ;
+            }
+
+            public void close() {
+                complete() ;
+            }
+        } ;
+    }
+
+    /**
+     * Read bytes from the payload, blocking until at least one byte is available.
+     * @param dst The buffer receiving the bytes.
+     * @return The number of bytes read, or -1 at the end of the payload.
+     * @throws ClosedChannelException if the channel has been closed.
+     * @throws InterruptedIOException if interrupted while waiting for bytes.
+     * @throws IOException if the producer aborted the payload.
+     */
+    public int read(final ByteBuffer dst) throws IOException {
+        lock.lock() ;
+        try {
+            final int available = awaitAvailable() ;
+            if (available <= 0) {
+                return available ;
+            }
+            final int count = Math.min(available, dst.remaining()) ;
+            final int index = (int)(readPosition % buffer.length) ;
+            final int first = Math.min(count, buffer.length - index) ;
+            dst.put(buffer, index, first) ;
+            dst.put(buffer, 0, count - first) ;
+            advance(count) ;
+            return count ;
+        } finally {
+            lock.unlock() ;
+        }
+    }
+
+    /**
+     * Read bytes from the payload, blocking until at least one byte is available.
+     * @param bytes The array receiving the bytes.
+     * @param offset The offset of the first byte.
+     * @param length The maximum number of bytes to read.
+     * @return The number of bytes read, or -1 at the end of the payload.
+     * @throws IOException for the reasons given by {@link #read(ByteBuffer)}.
+     */
+    public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+        return read(ByteBuffer.wrap(bytes, offset, length)) ;
+    }
+
+    /**
+     * Mark the current read position.
+     * @param readLimit The number of bytes which can be read before the mark is discarded,
+     *  less than the buffer size.
+     */
+    public void mark(final int readLimit) {
+        if ((readLimit < 1) || (readLimit >= buffer.length)) {
+            throw new IllegalArgumentException("Read limit must be between 1 and " + (buffer.length - 1)) ;
+        }
+        lock.lock() ;
+        try {
+            markPosition = readPosition ;
+            markLimit = readLimit ;
+            notFull.signalAll() ;
+        } finally {
+            lock.unlock() ;
+        }
+    }
+
+    /**
+     * Return to the marked position, replaying the bytes read since.
+     * @throws IOException if there is no mark or it has been discarded.
+     */
+    public void reset() throws IOException {
+        lock.lock() ;
+        try {
+            if (markPosition < 0) {
+                throw new IOException("Streaming payload has no valid mark") ;
+            }
+            readPosition = markPosition ;
+        } finally {
+            lock.unlock() ;
+        }
+    }
+
+    /**
+     * Get a stream reading the payload, supporting mark and reset.
+     * @return The stream.
+     */
+    public InputStream asInputStream() {
+        return new InputStream() {
+            public int read() throws IOException {
+                final byte[] value = new byte[1] ;
+                final int count = StreamingPayload.this.read(value, 0, 1) ;
+                return (count < 0 ? -1 : value[0] & 0xff) ;
+            }
+
+            public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+                return (length == 0 ? 0 : StreamingPayload.this.read(bytes, offset, length)) ;
+            }
+
+            public int available() {
+                lock.lock() ;
+                try {
+                    return (int)(writePosition - readPosition) ;
+                } finally {
+                    lock.unlock() ;
+                }
+            }
+
+            public boolean markSupported() {
+                return true ;
+            }
+
+            public void mark(final int readLimit) {
+                StreamingPayload.this.mark(Math.max(1, Math.min(readLimit, buffer.length - 1))) ;
+            }
+
+            public void reset() throws IOException {
+                StreamingPayload.this.reset() ;
+            }
+
+            public void close() {
+                StreamingPayload.this.close() ;
+            }
+        } ;
+    }
+
+    public boolean isOpen() {
+        lock.lock() ;
+        try {
+            return !closed ;
+        } finally {
+            lock.unlock() ;
+        }
+    }
+
+    /**
+     * Close the channel, discarding any unread bytes and failing further writes.
+     */
+    public void close() {
+        lock.lock() ;
+        try {
+            closed = true ;
+            markPosition = -1 ;
+            notEmpty.signalAll() ;
+            notFull.signalAll() ;
+        } finally {
+            lock.unlock() ;
+        }
+    }
+
+    /**
+     * Get the number of bytes written by the producer.
+     * @return The number of bytes written.
+     */
+    public long getBytesWritten() {
+        lock.lock() ;
+        try {
+            return writePosition ;
+        } finally {
+            lock.unlock() ;
+        }
+    }
+
+    public String toString() {
+        lock.lock() ;
+        try {
+            return "StreamingPayload[bufferSize=" + buffer.length + ", written=" + writePosition +
+                ", read=" + readPosition + ", complete=" + complete + "]" ;
+        } finally {
+            lock.unlock() ;
+        }
+    }
+
+    /**
+     * Wait until bytes are available to read.  Called with the lock held.
+     * @return The number of bytes available, or -1 at the end of the payload.
+     * @throws IOException if the channel is closed, the payload was aborted or the caller interrupted.
+     */
+    private int awaitAvailable() throws IOException {
+        while(true) {
+            if (closed) {
+                throw new ClosedChannelException() ;
+            }
+            final int available = (int)(writePosition - readPosition) ;
+            if (available > 0) {
+                return available ;
+            } else if (failure != null) {
+                final IOException ioe = new IOException("Streaming payload aborted by producer") ;
+                ioe.initCause(failure) ;
+                throw ioe ;
+            } else if (complete) {
+                return -1 ;
+            }
+            await(notEmpty) ;
+        }
+    }
+
+    /**
+     * Advance the read position, discarding the mark once past its limit.  Called with the lock held.
+     * @param count The number of bytes read.
+     */
+    private void advance(final int count) {
+        readPosition += count ;
+        if ((markPosition >= 0) && (readPosition - markPosition > markLimit)) {
+            markPosition = -1 ;
+        }
+        notFull.signalAll() ;
+    }
+
+    /**
+     * Get the position of the oldest byte retained in the buffer.  Called with the lock held.
+     * @return The mark position if marked, otherwise the read position.
+     */
+    private long retainedPosition() {
+        return (markPosition >= 0 ? markPosition : readPosition) ;
+    }
+
+    /**
+     * Wait on the condition.  Called with the lock held.
+     * @param condition The condition.
+     * @throws InterruptedIOException if interrupted while waiting.
+     */
+    private void await(final Condition condition) throws InterruptedIOException {
+        try {
+            condition.await() ;
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt() ;
+            throw new InterruptedIOException("Interrupted while waiting on streaming payload") ;
+        }
+    }
+}